@@ -0,0 +1,329 @@
+
+package org.hapiserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Iterator which reads records from binary day files in the cache, one day
+ * at a time.  Each day is either one file containing all the parameters, or
+ * one file for each parameter, in which case the columns are pasted together
+ * into records.  Files are memory-mapped, and one record is reused for each
+ * record read, so use BinaryHapiRecord.copy() to keep a record.  Records
+ * have a fixed size, so the first and last record within the time range
+ * are found by binary search of the time column, and only these records are
+ * read.  The number of records is found in the same way, from the sizes of 
+ * the files, except when the files are compressed.
+ * @author jbf
+ */
+public class BinaryCacheIterator implements SeekableHapiRecordIterator, CountedIterator<HapiRecord> {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    private final File[][] files;
+
+    private final BinaryHapiRecordConverter converter;
+
+    private final int recordSize;
+
+    /**
+     * the number of bytes of each parameter in each record.
+     */
+    private final int[] widths;
+
+    /**
+     * the index of the next day to read.
+     */
+    private int iday;
+
+    /**
+     * records of the current day.
+     */
+    private ByteBuffer block;
+
+    private BinaryHapiRecord record;
+
+    private String startTime;
+    
+    private String endTime;
+    
+    /**
+     * the start and end times, formatted like the times in the cache, or 
+     * null before the first day is read.
+     */
+    private char[] startKey;
+    private char[] endKey;
+    
+    /**
+     * the number of records within the time range, -1 if not known, or -2 
+     * before it is counted.
+     */
+    private long count= -2;
+    
+    /**
+     * create the iterator, which returns all records of the files.
+     * @param info the info describing the parameters.
+     * @param files for each day, either one file with all parameters, or one file for each parameter.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    public BinaryCacheIterator( JSONObject info, File[][] files ) throws JSONException {
+        this( info, files, null, null );
+    }
+    
+    /**
+     * create the iterator, which returns the records greater than or equal to 
+     * startTime, and less than endTime.
+     * @param info the info describing the parameters.
+     * @param files for each day, either one file with all parameters, or one file for each parameter.
+     * @param startTime the start time, in isoTime, or null.
+     * @param endTime the end time, in isoTime, or null.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    public BinaryCacheIterator( JSONObject info, File[][] files, String startTime, String endTime ) throws JSONException {
+        this.files= files;
+        this.startTime= startTime;
+        this.endTime= endTime;
+        this.converter= new BinaryHapiRecordConverter(info);
+        this.recordSize= converter.getRecordSizeBytes();
+        this.widths= new int[converter.sizes.length];
+        for ( int i=0; i<widths.length; i++ ) {
+            widths[i]= converter.sizes[i] * converter.lengths[i];
+        }
+        this.iday= 0;
+        this.block= null;
+    }
+
+    /**
+     * read the file, mapping it into memory unless it is compressed.
+     * @param f the file
+     * @return little-endian buffer of the contents.
+     */
+    private static ByteBuffer readFile( File f ) throws IOException {
+        ByteBuffer result;
+        if ( f.getName().endsWith(".gz") ) {
+            ByteArrayOutputStream out= new ByteArrayOutputStream();
+            try ( InputStream ins= new GZIPInputStream( new FileInputStream(f) ) ) {
+                byte[] buf= new byte[65536];
+                int n;
+                while ( ( n= ins.read(buf) )!=-1 ) {
+                    out.write( buf, 0, n );
+                }
+            }
+            result= ByteBuffer.wrap( out.toByteArray() );
+        } else {
+            try ( FileInputStream fin= new FileInputStream(f);
+                    FileChannel ch= fin.getChannel() ) {
+                result= ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() );
+            }
+        }
+        result.order( ByteOrder.LITTLE_ENDIAN );
+        return result;
+    }
+
+    /**
+     * return the index of the first time which is greater than or equal to the key.
+     * @param buf buffer containing the time column.
+     * @param stride the number of bytes between times.
+     * @param len the number of bytes in each time.
+     * @param nrec the number of times.
+     * @param key the time, formatted like the times in the buffer.
+     * @return the index, which is nrec if all times are less than the key.
+     */
+    private static int search( ByteBuffer buf, int stride, int len, int nrec, char[] key ) {
+        int lo= 0;
+        int hi= nrec;
+        while ( lo<hi ) {
+            int mid= ( lo + hi ) >>> 1;
+            if ( IsoTimeFormat.compare( buf, mid*stride, len, key )<0 ) {
+                lo= mid+1;
+            } else {
+                hi= mid;
+            }
+        }
+        return lo;
+    }
+    
+    /**
+     * format the start and end times like the times in the cache, using the first time found.
+     */
+    private void initializeKeys( ByteBuffer timeColumn ) {
+        String example= BinaryHapiRecord.decodeString( timeColumn, 0, converter.lengths[0] );
+        int n= example.length();
+        while ( n>0 && example.charAt(n-1)==0 ) n--;
+        example= example.substring(0,n);
+        IsoTimeFormat format= new IsoTimeFormat( example );
+        if ( startTime!=null ) {
+            startKey= format.formatChars( startTime );
+        }
+        if ( endTime!=null ) {
+            endKey= format.formatChars( endTime );
+        }
+    }
+    
+    /**
+     * return the number of bytes between the times of the time column of the day.
+     */
+    private int stride( File[] dayFiles ) {
+        boolean combined= dayFiles.length==1;
+        if ( !combined && dayFiles.length!=widths.length ) {
+            throw new IllegalArgumentException("parameters length doesn't equal files length, something has gone wrong.");
+        }
+        return combined ? recordSize : widths[0];
+    }
+    
+    /**
+     * find the records of the day within the time range.
+     * @param dayFiles the files for the day.
+     * @param timeColumn the contents of the first file.
+     * @return the index of the first record, and the index following the last.
+     */
+    private int[] findRecords( File[] dayFiles, ByteBuffer timeColumn ) throws IOException {
+        int stride= stride( dayFiles );
+        if ( timeColumn.limit() % stride != 0 ) {
+            throw new IOException("cache file is not a whole number of records: "+dayFiles[0]);
+        }
+        int nrec= timeColumn.limit() / stride;
+        
+        int first= 0;
+        int last= nrec;
+        if ( nrec>0 && ( startTime!=null || endTime!=null ) ) {
+            if ( startKey==null && endKey==null ) {
+                initializeKeys( timeColumn );
+            }
+            int len= converter.lengths[0];
+            if ( startKey!=null ) first= search( timeColumn, stride, len, nrec, startKey );
+            if ( endKey!=null ) last= search( timeColumn, stride, len, nrec, endKey );
+            if ( last<first ) last= first;
+        }
+        return new int[] { first, last };
+    }
+    
+    /**
+     * read the records of the day within the time range.  When each parameter 
+     * is in its own file, the columns are copied into records.
+     * @param dayFiles the files for the day.
+     * @return buffer containing the records.
+     */
+    private ByteBuffer readDay( File[] dayFiles ) throws IOException {
+        boolean combined= dayFiles.length==1;
+        ByteBuffer timeColumn= readFile( dayFiles[0] );
+        int[] range= findRecords( dayFiles, timeColumn );
+        int nrec= timeColumn.limit() / stride( dayFiles );
+        int first= range[0];
+        int last= range[1];
+        
+        if ( combined ) {
+            timeColumn.limit( last*recordSize );
+            timeColumn.position( first*recordSize );
+            return timeColumn;
+        }
+        
+        int n= last-first;
+        byte[] records= new byte[ n * recordSize ];
+        byte[] column= null;
+        for ( int j=0; j<dayFiles.length; j++ ) {
+            ByteBuffer b= j==0 ? timeColumn : readFile( dayFiles[j] );
+            int w= widths[j];
+            if ( b.limit()!=nrec*w ) {
+                throw new IOException("cache files for the day have different numbers of records: "+dayFiles[j]);
+            }
+            if ( column==null || column.length<n*w ) {
+                column= new byte[n*w];
+            }
+            b.position( first*w );
+            b.get( column, 0, n*w );
+            int off= converter.offsets[j];
+            for ( int k=0; k<n; k++ ) {
+                System.arraycopy( column, k*w, records, k*recordSize + off, w );
+            }
+        }
+        ByteBuffer result= ByteBuffer.wrap( records );
+        result.order( ByteOrder.LITTLE_ENDIAN );
+        return result;
+    }
+
+    @Override
+    public void seek( String startTime, String endTime ) {
+        if ( iday>0 ) {
+            throw new IllegalStateException("seek must be called before records are read");
+        }
+        this.startTime= startTime;
+        this.endTime= endTime;
+        this.startKey= null;
+        this.endKey= null;
+        this.count= -2;
+    }
+
+    /**
+     * return the number of records within the time range, found by searching
+     * the time column of each day, or -1 when the files are compressed and 
+     * would have to be read to count them.
+     * @return the number of records, or -1.
+     */
+    @Override
+    public long getCount() {
+        if ( count==-2 ) {
+            long n= 0;
+            try {
+                for ( File[] dayFiles: files ) {
+                    if ( dayFiles[0].getName().endsWith(".gz") ) {
+                        n= -1;
+                        break;
+                    }
+                    int[] range= findRecords( dayFiles, readFile( dayFiles[0] ) );
+                    n+= range[1]-range[0];
+                }
+            } catch ( IOException ex ) {
+                logger.log(Level.FINE, "unable to count records of cache", ex );
+                n= -1;
+            }
+            count= n;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( block==null || !block.hasRemaining() ) {
+            if ( iday==files.length ) {
+                return false;
+            }
+            try {
+                logger.log(Level.FINER, "reading cache files for day {0}", iday );
+                block= readDay( files[iday] );
+            } catch ( IOException ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+            iday++;
+        }
+        return true;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        int offset= block.position();
+        if ( record==null ) {
+            record= converter.convert( block, offset );
+        } else {
+            record.reset( block, offset );
+        }
+        block.position( offset + recordSize );
+        return record;
+    }
+
+}
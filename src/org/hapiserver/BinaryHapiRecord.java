@@ -1,11 +1,15 @@
-
 package org.hapiserver;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import org.json.JSONObject;
 
 /**
- *
+ * HapiRecord backed by a binary response.  The record is a view of
+ * recordSize bytes starting at recordOffset within a ByteBuffer, which
+ * is typically a large block shared by many records.  Iterators may
+ * reuse one instance for each record read (a flyweight), so use
+ * {@link #copy()} to keep a record after the iterator is advanced.
  * @author jbf
  */
 public class BinaryHapiRecord implements HapiRecord {
@@ -14,22 +18,99 @@ public class BinaryHapiRecord implements HapiRecord {
     int[] lengths;
     int[] offsets;
     ByteBuffer bbuf;
-    
+
+    /**
+     * the position of the record within bbuf.
+     */
+    int recordOffset;
+
+    /**
+     * the number of bytes in each record.
+     */
+    int recordSize;
+
     private static final int LEN_DOUBLE=8;
     private static final int LEN_INT=4;
-    
+
     public BinaryHapiRecord( JSONObject info, int[] sizes, int[] lengths, int[] offsets, ByteBuffer bbuf ) {
         this.bbuf= bbuf;
         this.sizes= sizes;
         this.lengths= lengths;
         this.offsets= offsets;
+        int n= offsets.length;
+        this.recordSize= offsets[n-1] + sizes[n-1]*lengths[n-1];
+        this.recordOffset= 0;
     }
-    
+
+    /**
+     * reposition this record so that it views a different record, possibly
+     * in a different buffer.  This is used by iterators which reuse one
+     * instance for each record.
+     * @param bbuf the buffer containing the record, which must be little-endian.
+     * @param recordOffset the position of the record within the buffer.
+     */
+    void reset( ByteBuffer bbuf, int recordOffset ) {
+        this.bbuf= bbuf;
+        this.recordOffset= recordOffset;
+    }
+
+    /**
+     * return a copy of this record, which does not share the buffer with the
+     * iterator which produced it.  This must be used when a record is kept
+     * after the iterator is advanced.
+     * @return a record backed by its own buffer.
+     */
+    public BinaryHapiRecord copy() {
+        byte[] bytes= new byte[recordSize];
+        ByteBuffer src= bbuf.duplicate();
+        src.position(recordOffset);
+        src.get(bytes);
+        ByteBuffer b= ByteBuffer.wrap(bytes);
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        BinaryHapiRecord result= new BinaryHapiRecord(null,sizes,lengths,offsets,b);
+        return result;
+    }
+
+    /**
+     * decode the string found at the position within the buffer.
+     * @param offs the position within the buffer.
+     * @param lens the number of bytes.
+     * @return the string.
+     */
+    private String decodeString( int offs, int lens ) {
+        return decodeString( bbuf, offs, lens );
+    }
+
+    /**
+     * decode the string found at the position within the buffer.
+     * @param bbuf the buffer, which may be a direct buffer.
+     * @param offs the position within the buffer.
+     * @param lens the number of bytes.
+     * @return the string.
+     */
+    static String decodeString( ByteBuffer bbuf, int offs, int lens ) {
+        if ( bbuf.hasArray() ) {
+            return new String( bbuf.array(), bbuf.arrayOffset()+offs, lens );
+        } else {
+            byte[] bytes= new byte[lens];
+            for ( int j=0; j<lens; j++ ) {
+                bytes[j]= bbuf.get(offs+j);
+            }
+            return new String( bytes );
+        }
+    }
+
     @Override
     public String getIsoTime(int i) {
         return getString(i);
     }
 
+    @Override
+    public long getNanosecondsSince1970(int i) {
+        int offs= this.recordOffset + this.offsets[i];
+        return TimeUtil.toNanosecondsSince1970( bbuf, offs, offs+this.lengths[i] );
+    }
+
     @Override
     public String[] getIsoTimeArray(int i) {
         return getStringArray(i);
@@ -37,19 +118,19 @@ public class BinaryHapiRecord implements HapiRecord {
 
     @Override
     public String getString(int i) {
-        int offs= this.offsets[i];
+        int offs= this.recordOffset + this.offsets[i];
         int lens= this.lengths[i];
-        return new String( this.bbuf.array(), offs, lens );
+        return decodeString( offs, lens );
     }
 
     @Override
     public String[] getStringArray(int i) {
         int n= this.sizes[i];
-        int offs= this.offsets[i];
+        int offs= this.recordOffset + this.offsets[i];
         int lens= this.lengths[i];
         String[] result= new String[n];
         for ( int j=0; j<n; j++ ) {
-            String s= new String( this.bbuf.array(), offs + j*lens, lens );
+            String s= decodeString( offs + j*lens, lens );
             result[j]= s;
         }
         return result;
@@ -57,56 +138,86 @@ public class BinaryHapiRecord implements HapiRecord {
 
     @Override
     public double getDouble(int i) {
-        return bbuf.getDouble(offsets[i]);
+        return bbuf.getDouble(recordOffset+offsets[i]);
     }
 
     @Override
     public double[] getDoubleArray(int i) {
         int n= this.sizes[i];
+        int offs= this.recordOffset + this.offsets[i];
         double[] result= new double[n];
         for ( int j=0; j<n; j++ ) {
-            result[j]= bbuf.getDouble(offsets[i]+j*LEN_DOUBLE);
+            result[j]= bbuf.getDouble(offs+j*LEN_DOUBLE);
         }
         return result;
     }
 
+    @Override
+    public void getDoubleArray(int i, double[] dest, int off) {
+        int n= this.sizes[i];
+        int offs= this.recordOffset + this.offsets[i];
+        for ( int j=0; j<n; j++ ) {
+            dest[off+j]= bbuf.getDouble(offs+j*LEN_DOUBLE);
+        }
+    }
+
     @Override
     public int getInteger(int i) {
-        return bbuf.getInt(offsets[i]);
+        return bbuf.getInt(recordOffset+offsets[i]);
     }
 
     @Override
     public int[] getIntegerArray(int i) {
         int n= this.sizes[i];
+        int offs= this.recordOffset + this.offsets[i];
         int[] result= new int[n];
         for ( int j=0; j<n; j++ ) {
-            result[j]= bbuf.getInt(offsets[i]+j*LEN_INT);
+            result[j]= bbuf.getInt(offs+j*LEN_INT);
         }
         return result;
     }
 
+    @Override
+    public void getIntegerArray(int i, int[] dest, int off) {
+        int n= this.sizes[i];
+        int offs= this.recordOffset + this.offsets[i];
+        for ( int j=0; j<n; j++ ) {
+            dest[off+j]= bbuf.getInt(offs+j*LEN_INT);
+        }
+    }
+
     @Override
     public String getAsString(int i) {
         throw new UnsupportedOperationException("this should only be used with CSV");
     }
 
     /**
-     * get the value as a byte buffer.
+     * get the bytes of the column, including all elements of an array.  The
+     * buffer shares content with the record's buffer.
      * @param i the index of the column
-     * @return the string value.
+     * @return the bytes of the column.
      */
     public ByteBuffer getAsByteBuffer(int i) {
-        int offs= this.offsets[i];
-        int lens= this.lengths[i];
-        bbuf.position(offs);
-        bbuf.limit(offs+lens);
-        return bbuf.slice();        
+        int offs= this.recordOffset + this.offsets[i];
+        int lens= this.lengths[i] * this.sizes[i];
+        ByteBuffer b= bbuf.duplicate();
+        b.limit(offs+lens);
+        b.position(offs);
+        return b.slice();
     }
-    
+
+    /**
+     * get the bytes of the record.  The buffer shares content with the
+     * record's buffer.
+     * @return the bytes of the record.
+     */
     public ByteBuffer getAsByteBuffer() {
-        return bbuf.asReadOnlyBuffer();
+        ByteBuffer b= bbuf.asReadOnlyBuffer();
+        b.limit(recordOffset+recordSize);
+        b.position(recordOffset);
+        return b.slice();
     }
-    
+
     @Override
     public int length() {
         return offsets.length;
@@ -3,7 +3,6 @@ package org.hapiserver;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -15,51 +14,20 @@ public class BinaryHapiRecordConverter {
     
     Map<Integer,Integer> indexMap;
     JSONObject info;
-    JSONArray params;
+    ParameterSchema schema;
     int[] sizes;
     int[] lengths;
     int[] offsets;
     
     public BinaryHapiRecordConverter( JSONObject info ) throws JSONException {
         this.info= info;
-        this.params= info.getJSONArray("parameters");
-        this.sizes= new int[params.length()];
-        this.lengths= new int[params.length()];
-        this.offsets= new int[params.length()];
-        for ( int i=0; i<params.length(); i++ ) {
-            JSONObject jo= params.getJSONObject(i);
-            String type= jo.getString("type");
-            int length;
-            switch (type) {
-                case "isotime":
-                    length= jo.getInt("length");
-                    break;
-                case "string":
-                    length= jo.getInt("length");
-                    break;
-                case "integer":
-                    length= 4;
-                    break;
-                case "double":
-                    length= 8;
-                    break;
-                default:
-                    throw new IllegalArgumentException("not supported: "+type);
-            }
-            lengths[i]= length;
-            if ( jo.has("size") ) {
-                JSONArray size= jo.getJSONArray("size");
-                sizes[i]= size.getInt(0);
-                for ( int j=1; j<size.length(); j++ ) {
-                    sizes[i]*= size.getInt(j);
-                }
-            } else {
-                sizes[i]= 1;
-            }
-            if ( i==0 ) {
-                offsets[i]= 0;
-            } else {
-                offsets[i]= offsets[i-1] + sizes[i-1]*lengths[i-1];
+        this.schema= ParameterSchema.of(info);
+        this.sizes= schema.sizes;
+        this.lengths= schema.lengths;
+        this.offsets= schema.offsets;
+        for ( int i=0; i<lengths.length; i++ ) {
+            if ( lengths[i]==0 ) {
+                throw new JSONException("length is required for binary: "+schema.names[i]);
             }
         }
     }
@@ -69,8 +37,7 @@ public class BinaryHapiRecordConverter {
      * @return the length of each record in bytes.
      */
     public int getRecordSizeBytes() {
-        int n= offsets.length;
-        return offsets[n-1]+sizes[n-1]*lengths[n-1];
+        return schema.recordSize;
     }
 
     /**
@@ -82,4 +49,64 @@ public class BinaryHapiRecordConverter {
         return new BinaryHapiRecord(info,sizes,lengths,offsets,bbuf);
     }
 
+    /**
+     * return a record viewing the data at the offset within the buffer.  The
+     * record is not copied, and the buffer must remain valid while the record
+     * is used.
+     * @param bbuf little-endian byte buffer containing many records.
+     * @param offset the position of the record within the buffer.
+     * @return a HapiRecord viewing the data.
+     */
+    public BinaryHapiRecord convert( ByteBuffer bbuf, int offset ) {
+        BinaryHapiRecord result= new BinaryHapiRecord(info,sizes,lengths,offsets,bbuf);
+        result.reset( bbuf, offset );
+        return result;
+    }
+
+    /**
+     * decode the record at the offset within the buffer directly into the next 
+     * record of the block, without creating a HapiRecord.
+     * @param bbuf little-endian byte buffer containing many records.
+     * @param offset the position of the record within the buffer.
+     * @param block the block which receives the record.
+     */
+    public void convert( ByteBuffer bbuf, int offset, HapiRecordBlock block ) {
+        int irec= block.size();
+        for ( int i=0; i<offsets.length; i++ ) {
+            int n= sizes[i];
+            int len= lengths[i];
+            int offs= offset + offsets[i];
+            int off= irec * n;
+            switch ( schema.types[i] ) {
+                case ISOTIME:
+                    long[] tt= (long[])block.getColumn(i);
+                    for ( int j=0; j<n; j++ ) {
+                        tt[off+j]= TimeUtil.toNanosecondsSince1970( bbuf, offs+j*len, offs+j*len+len );
+                    }
+                    break;
+                case DOUBLE:
+                    double[] dd= (double[])block.getColumn(i);
+                    for ( int j=0; j<n; j++ ) {
+                        dd[off+j]= bbuf.getDouble( offs+j*len );
+                    }
+                    break;
+                case INTEGER:
+                    int[] ii= (int[])block.getColumn(i);
+                    for ( int j=0; j<n; j++ ) {
+                        ii[off+j]= bbuf.getInt( offs+j*len );
+                    }
+                    break;
+                case STRING:
+                    String[] ss= (String[])block.getColumn(i);
+                    for ( int j=0; j<n; j++ ) {
+                        ss[off+j]= BinaryHapiRecord.decodeString( bbuf, offs+j*len, len );
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("not supported: "+schema.types[i]);
+            }
+        }
+        block.incrementSize();
+    }
+
 }
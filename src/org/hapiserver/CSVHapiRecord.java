@@ -5,82 +5,373 @@ import java.util.Map;
 import org.json.JSONObject;
 
 /**
- * HapiRecord backed by CSV response.
+ * HapiRecord backed by CSV response.  The record keeps the characters of the
+ * line and the start and end offsets of each comma-separated field, so the
+ * line is tokenized once and fields are only decoded when they are used.
  * @author jbf
  */
 public class CSVHapiRecord implements HapiRecord {
-        
-    String[] fields;
+
+    /**
+     * the characters containing the line, which may contain other lines as well.
+     */
+    char[] buf;
+
+    /**
+     * the start and end offsets of each column within buf.
+     */
+    int[] bounds;
+
+    /**
+     * the index of the first column of each parameter.
+     */
+    int[] firstColumn;
+
+    /**
+     * the number of columns of each parameter.
+     */
+    int[] sizes;
+
     Map<Integer,Integer> indexMap;
 
+    /**
+     * the types of the parameters and the values of each column of the 
+     * double parameters, when these were parsed in advance, or null.
+     */
+    private ParameterSchema.Type[] types;
+    private double[] doubles;
+
+    /**
+     * create a record from fields which have already been split.  Array
+     * parameters are comma-separated within a field, and commas within
+     * quotes belong to the element, as in the CSV response.
+     * @param info the info (presently unused).
+     * @param fields the fields.
+     */
     public CSVHapiRecord( JSONObject info, String[] fields ) {
-        this.fields= fields;   
+        StringBuilder b= new StringBuilder();
+        this.sizes= new int[fields.length];
+        this.firstColumn= new int[fields.length];
+        int ncolumns= 0;
+        for ( int i=0; i<fields.length; i++ ) {
+            if ( i>0 ) b.append(',');
+            b.append(fields[i]);
+            int n= 1;
+            boolean inQuotes= false;
+            for ( int j=0; j<fields[i].length(); j++ ) {
+                char c= fields[i].charAt(j);
+                if ( c=='"' ) {
+                    inQuotes= !inQuotes;
+                } else if ( c==',' && !inQuotes ) {
+                    n++;
+                }
+            }
+            this.firstColumn[i]= ncolumns;
+            this.sizes[i]= n;
+            ncolumns+= n;
+        }
+        this.buf= b.toString().toCharArray();
+        this.bounds= new int[2*ncolumns];
+        CSVHapiRecordConverter.tokenize( buf, 0, buf.length, bounds );
     }
-    
+
+    /**
+     * create a record from the tokenized line.
+     * @param buf the characters containing the line.
+     * @param bounds the start and end offsets of each column within buf.
+     * @param firstColumn the index of the first column of each parameter.
+     * @param sizes the number of columns of each parameter.
+     * @see CSVHapiRecordConverter#tokenize(char[], int, int, int[])
+     */
+    CSVHapiRecord( char[] buf, int[] bounds, int[] firstColumn, int[] sizes ) {
+        this.buf= buf;
+        this.bounds= bounds;
+        this.firstColumn= firstColumn;
+        this.sizes= sizes;
+    }
+
+    /**
+     * return the field, which for arrays includes all elements and the
+     * commas separating them.
+     * @param i the index of the parameter
+     * @return the field
+     */
+    private String field( int i ) {
+        int start= bounds[ 2*firstColumn[i] ];
+        int end= bounds[ 2*(firstColumn[i]+sizes[i]-1) + 1 ];
+        return new String( buf, start, end-start );
+    }
+
+    /**
+     * return the element of an array parameter.
+     * @param i the index of the parameter
+     * @param j the index of the element
+     * @return the element
+     */
+    private String element( int i, int j ) {
+        int k= 2*(firstColumn[i]+j);
+        return new String( buf, bounds[k], bounds[k+1]-bounds[k] );
+    }
+
     @Override
     public String getIsoTime(int i) {
-        return fields[i];
+        return field(i);
     }
-    
+
+    @Override
+    public long getNanosecondsSince1970(int i) {
+        int k= 2*firstColumn[i];
+        return TimeUtil.toNanosecondsSince1970( buf, bounds[k], bounds[k+1] );
+    }
+
     @Override
     public String[] getIsoTimeArray(int i) {
-        String[] result= fields[i].split(",");
-        return result;
-    }    
+        return getStringArray(i);
+    }
 
     @Override
     public String getString(int i) {
-        return fields[i];
+        return field(i);
     }
-    
+
     @Override
     public String[] getStringArray(int i) {
-        String[] result= fields[i].split(","); // note no commas are allowed in fields.
+        int n= sizes[i];
+        String[] result= new String[n];
+        for ( int j=0; j<n; j++ ) {
+            result[j]= element(i,j);
+        }
         return result;
-    }    
+    }
+
+    /**
+     * parse the values of the double parameters now, so that this work can 
+     * be done on another thread.  If any value is not a number, nothing is 
+     * kept, and the error is thrown when the value is used.
+     * @param types the type of each parameter.
+     */
+    void parseDoubles( ParameterSchema.Type[] types ) {
+        double[] result= new double[ bounds.length/2 ];
+        try {
+            for ( int i=0; i<types.length; i++ ) {
+                if ( types[i]==ParameterSchema.Type.DOUBLE ) {
+                    int k= 2*firstColumn[i];
+                    for ( int j=0; j<sizes[i]; j++, k+=2 ) {
+                        result[k/2]= parseDouble( buf, bounds[k], bounds[k+1] );
+                    }
+                }
+            }
+        } catch ( NumberFormatException ex ) {
+            return;
+        }
+        this.doubles= result;
+        this.types= types;
+    }
 
     @Override
     public double getDouble(int i) {
-        return Double.valueOf(fields[i]);
+        if ( doubles!=null && types[i]==ParameterSchema.Type.DOUBLE ) {
+            return doubles[ firstColumn[i] ];
+        }
+        int k= 2*firstColumn[i];
+        return parseDouble( buf, bounds[k], bounds[k+1] );
     }
 
     @Override
     public double[] getDoubleArray(int i) {
-        String[] ss= fields[i].split(",");
-        double[] result= new double[ss.length];
-        for ( int j=0; j<ss.length; j++ ) {
-            result[j]= Double.parseDouble(ss[j]);
-        }
+        double[] result= new double[sizes[i]];
+        getDoubleArray( i, result, 0 );
         return result;
     }
 
+    @Override
+    public void getDoubleArray(int i, double[] dest, int off) {
+        int n= sizes[i];
+        if ( doubles!=null && types[i]==ParameterSchema.Type.DOUBLE ) {
+            System.arraycopy( doubles, firstColumn[i], dest, off, n );
+            return;
+        }
+        int k= 2*firstColumn[i];
+        for ( int j=0; j<n; j++ ) {
+            dest[off+j]= parseDouble( buf, bounds[k], bounds[k+1] );
+            k+= 2;
+        }
+    }
+
     @Override
     public int getInteger(int i) {
-        return Integer.valueOf(fields[i]);
+        int k= 2*firstColumn[i];
+        return parseInt( buf, bounds[k], bounds[k+1] );
     }
 
     @Override
     public int[] getIntegerArray(int i) {
-        String[] ss= fields[i].split(",");
-        int[] result= new int[ss.length];
-        for ( int j=0; j<ss.length; j++ ) {
-            result[j]= Integer.parseInt(ss[j]);
-        }
+        int[] result= new int[sizes[i]];
+        getIntegerArray( i, result, 0 );
         return result;
     }
-    
+
+    @Override
+    public void getIntegerArray(int i, int[] dest, int off) {
+        int n= sizes[i];
+        int k= 2*firstColumn[i];
+        for ( int j=0; j<n; j++ ) {
+            dest[off+j]= parseInt( buf, bounds[k], bounds[k+1] );
+            k+= 2;
+        }
+    }
+
+    /**
+     * powers of ten which are exactly represented by doubles.
+     */
+    private static final double[] POW10= {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * the largest integer for which all smaller integers are exactly represented by doubles.
+     */
+    private static final long MAX_EXACT= 1L<<53;
+
+    /**
+     * parse the double from the characters, without creating a String.  When the
+     * significant digits and the power of ten are both exactly represented by 
+     * doubles, a single multiply or divide gives the correctly rounded result, 
+     * which is the same as Double.parseDouble.  Other cases, such as NaN or more
+     * than 18 significant digits, are handled by Double.parseDouble.
+     * @param buf the characters
+     * @param start the index of the first character
+     * @param end the index following the last character
+     * @return the double
+     * @throws NumberFormatException if the characters are not a number.
+     */
+    static double parseDouble( char[] buf, int start, int end ) {
+        while ( start<end && buf[start]<=' ' ) start++;
+        while ( end>start && buf[end-1]<=' ' ) end--;
+        int i= start;
+        boolean negative= false;
+        if ( i<end && ( buf[i]=='-' || buf[i]=='+' ) ) {
+            negative= buf[i]=='-';
+            i++;
+        }
+        long mantissa= 0;
+        int ndigits= 0;
+        int exp10= 0;
+        boolean anyDigits= false;
+        boolean inFraction= false;
+        while ( i<end ) {
+            char c= buf[i];
+            if ( c>='0' && c<='9' ) {
+                anyDigits= true;
+                if ( mantissa>0 || c!='0' ) {
+                    if ( ndigits==18 ) {
+                        return parseDoubleSlowly( buf, start, end );
+                    }
+                    mantissa= mantissa*10 + ( c-'0' );
+                    ndigits++;
+                }
+                if ( inFraction ) exp10--;
+            } else if ( c=='.' && !inFraction ) {
+                inFraction= true;
+            } else {
+                break;
+            }
+            i++;
+        }
+        if ( !anyDigits ) {
+            return parseDoubleSlowly( buf, start, end );
+        }
+        if ( i<end && ( buf[i]=='e' || buf[i]=='E' ) ) {
+            i++;
+            boolean negativeExponent= false;
+            if ( i<end && ( buf[i]=='-' || buf[i]=='+' ) ) {
+                negativeExponent= buf[i]=='-';
+                i++;
+            }
+            if ( i==end ) {
+                return parseDoubleSlowly( buf, start, end );
+            }
+            int exponent= 0;
+            while ( i<end && buf[i]>='0' && buf[i]<='9' ) {
+                if ( exponent<10000 ) exponent= exponent*10 + ( buf[i]-'0' );
+                i++;
+            }
+            exp10+= negativeExponent ? -exponent : exponent;
+        }
+        if ( i<end || mantissa>MAX_EXACT ) {
+            return parseDoubleSlowly( buf, start, end );
+        }
+        double result= mantissa;
+        if ( mantissa==0 || exp10==0 ) {
+            // result is correct.
+        } else if ( exp10>0 && exp10<=22 ) {
+            result= result * POW10[exp10];
+        } else if ( exp10<0 && exp10>=-22 ) {
+            result= result / POW10[-exp10];
+        } else if ( exp10>22 && exp10<=22+15 ) {
+            result= result * POW10[exp10-22]; // exact when this is no more than MAX_EXACT.
+            if ( result>MAX_EXACT ) {
+                return parseDoubleSlowly( buf, start, end );
+            }
+            result= result * POW10[22];
+        } else {
+            return parseDoubleSlowly( buf, start, end );
+        }
+        return negative ? -result : result;
+    }
+
+    private static double parseDoubleSlowly( char[] buf, int start, int end ) {
+        return Double.parseDouble( new String( buf, start, end-start ) );
+    }
+
+    /**
+     * parse the integer from the characters, without creating a String.
+     * @param buf the characters
+     * @param start the index of the first character
+     * @param end the index following the last character
+     * @return the integer
+     * @throws NumberFormatException if the characters are not an integer.
+     */
+    static int parseInt( char[] buf, int start, int end ) {
+        while ( start<end && buf[start]<=' ' ) start++;
+        while ( end>start && buf[end-1]<=' ' ) end--;
+        int i= start;
+        boolean negative= false;
+        if ( i<end && ( buf[i]=='-' || buf[i]=='+' ) ) {
+            negative= buf[i]=='-';
+            i++;
+        }
+        if ( i==end || end-i>10 ) {
+            return Integer.parseInt( new String( buf, start, end-start ) );
+        }
+        long result= 0;
+        while ( i<end ) {
+            char c= buf[i];
+            if ( c<'0' || c>'9' ) {
+                return Integer.parseInt( new String( buf, start, end-start ) );
+            }
+            result= result*10 + ( c-'0' );
+            i++;
+        }
+        if ( negative ) result= -result;
+        if ( result<Integer.MIN_VALUE || result>Integer.MAX_VALUE ) {
+            return Integer.parseInt( new String( buf, start, end-start ) );
+        }
+        return (int)result;
+    }
+
     @Override
     public int length() {
-        return fields.length;
+        return sizes.length;
     }
-    
+
     @Override
     public String toString() {
-        return String.format( "%s: %d fields", fields[0], fields.length );
+        return String.format( "%s: %d fields", field(0), sizes.length );
     }
 
     @Override
     public String getAsString(int i) {
-        return fields[i];
+        return field(i);
     }
 }
@@ -2,7 +2,6 @@
 package org.hapiserver;
 
 import java.util.Map;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -11,28 +10,70 @@ import org.json.JSONObject;
  * @author jbf
  */
 public class CSVHapiRecordConverter {
-    
+
     Map<Integer,Integer> indexMap;
     JSONObject info;
-    JSONArray params;
+    ParameterSchema schema;
     int[] sizes;
-    
+
+    /**
+     * the index of the first column of each parameter.
+     */
+    int[] firstColumn;
+
+    /**
+     * the total number of columns, where each element of an array is a column.
+     */
+    int ncolumns;
+
+    /**
+     * field offsets reused when lines are decoded into blocks.
+     */
+    private int[] blockBounds;
+
     public CSVHapiRecordConverter( JSONObject info ) throws JSONException {
         this.info= info;
-        this.params= info.getJSONArray("parameters");
-        this.sizes= new int[params.length()];
-        for ( int i=0; i<params.length(); i++ ) {
-            JSONObject jo= params.getJSONObject(i);
-            if ( jo.has("size") ) {
-                JSONArray size= jo.getJSONArray("size");
-                sizes[i]= size.getInt(0);
-                for ( int j=1; j<size.length(); j++ ) {
-                    sizes[i]*= size.getInt(j);
+        this.schema= ParameterSchema.of(info);
+        this.sizes= schema.sizes;
+        this.firstColumn= schema.firstColumn;
+        this.ncolumns= schema.ncolumns;
+    }
+
+    /**
+     * find the start and end of each comma-separated field within the
+     * characters, in a single pass.  Commas within double quotes do not
+     * separate fields.  The start and end offsets of field i are stored
+     * in bounds[2*i] and bounds[2*i+1], and fields beyond the capacity
+     * of bounds are counted but not recorded.
+     * @param buf the characters
+     * @param start the index of the first character of the line.
+     * @param end the index following the last character of the line.
+     * @param bounds array of start and end offsets for each field.
+     * @return the number of fields found.
+     */
+    static int tokenize( char[] buf, int start, int end, int[] bounds ) {
+        int nmax= bounds.length/2;
+        int ifield= 0;
+        int fieldStart= start;
+        boolean inQuotes= false;
+        for ( int i=start; i<end; i++ ) {
+            char c= buf[i];
+            if ( c=='"' ) {
+                inQuotes= !inQuotes;
+            } else if ( c==',' && !inQuotes ) {
+                if ( ifield<nmax ) {
+                    bounds[2*ifield]= fieldStart;
+                    bounds[2*ifield+1]= i;
                 }
-            } else {
-                sizes[i]= 1;
+                ifield++;
+                fieldStart= i+1;
             }
         }
+        if ( ifield<nmax ) {
+            bounds[2*ifield]= fieldStart;
+            bounds[2*ifield+1]= end;
+        }
+        return ifield+1;
     }
 
     /**
@@ -41,22 +82,88 @@ public class CSVHapiRecordConverter {
      * @return a HapiRecord containing the data.
      */
     public HapiRecord convert( String record ) {
-        String[] fields= record.trim().split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)",-2);
-        String[] ff= new String[params.length()];
-        int i=0;
-        for ( int j=0; j<params.length(); j++ ) {
-            if ( sizes[j]==1 ) {
-                ff[j]= fields[i];
-                i=i+1;
-            } else {
-                StringBuilder build= new StringBuilder(fields[i]);
-                for ( int k=1; k<sizes[j]; k++ ) {
-                    build.append(",").append(fields[i+k]);
-                }
-                ff[j]= build.toString();
-                i+=sizes[j];
+        char[] buf= record.toCharArray();
+        return convert( buf, 0, buf.length );
+    }
+
+    /**
+     * convert the characters into a HapiRecord, breaking the line on commas.
+     * The record will refer to the characters, so these must not be modified.
+     * @param buf buffer containing the ASCII-encoded data.
+     * @param offset the offset of the line within the buffer.
+     * @param length the number of characters in the line.
+     * @return a HapiRecord containing the data.
+     */
+    public HapiRecord convert( char[] buf, int offset, int length ) {
+        int start= offset;
+        int end= offset+length;
+        while ( start<end && buf[start]<=' ' ) start++;
+        while ( end>start && buf[end-1]<=' ' ) end--;
+        int[] bounds= new int[2*ncolumns];
+        int n= tokenize( buf, start, end, bounds );
+        if ( n<ncolumns ) {
+            throw new IllegalArgumentException("expected "+ncolumns+" fields but found "+n+": "
+                    + new String( buf, start, end-start ) );
+        }
+        return new CSVHapiRecord( buf, bounds, firstColumn, sizes );
+    }
+
+    /**
+     * decode the characters directly into the next record of the block, 
+     * without creating a HapiRecord.
+     * @param buf buffer containing the ASCII-encoded data.
+     * @param offset the offset of the line within the buffer.
+     * @param length the number of characters in the line.
+     * @param block the block which receives the record.
+     */
+    public void convert( char[] buf, int offset, int length, HapiRecordBlock block ) {
+        int start= offset;
+        int end= offset+length;
+        while ( start<end && buf[start]<=' ' ) start++;
+        while ( end>start && buf[end-1]<=' ' ) end--;
+        if ( blockBounds==null ) {
+            blockBounds= new int[2*ncolumns];
+        }
+        int[] bounds= blockBounds;
+        int nfield= tokenize( buf, start, end, bounds );
+        if ( nfield<ncolumns ) {
+            throw new IllegalArgumentException("expected "+ncolumns+" fields but found "+nfield+": "
+                    + new String( buf, start, end-start ) );
+        }
+        int irec= block.size();
+        for ( int i=0; i<sizes.length; i++ ) {
+            int n= sizes[i];
+            int off= irec * n;
+            int k= 2*firstColumn[i];
+            switch ( schema.types[i] ) {
+                case ISOTIME:
+                    long[] tt= (long[])block.getColumn(i);
+                    for ( int j=0; j<n; j++, k+=2 ) {
+                        tt[off+j]= TimeUtil.toNanosecondsSince1970( buf, bounds[k], bounds[k+1] );
+                    }
+                    break;
+                case DOUBLE:
+                    double[] dd= (double[])block.getColumn(i);
+                    for ( int j=0; j<n; j++, k+=2 ) {
+                        dd[off+j]= CSVHapiRecord.parseDouble( buf, bounds[k], bounds[k+1] );
+                    }
+                    break;
+                case INTEGER:
+                    int[] ii= (int[])block.getColumn(i);
+                    for ( int j=0; j<n; j++, k+=2 ) {
+                        ii[off+j]= CSVHapiRecord.parseInt( buf, bounds[k], bounds[k+1] );
+                    }
+                    break;
+                case STRING:
+                    String[] ss= (String[])block.getColumn(i);
+                    for ( int j=0; j<n; j++, k+=2 ) {
+                        ss[off+j]= new String( buf, bounds[k], bounds[k+1]-bounds[k] );
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("not supported: "+schema.types[i]);
             }
         }
-        return new CSVHapiRecord(info,ff);
+        block.incrementSize();
     }
 }
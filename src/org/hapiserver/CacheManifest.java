@@ -0,0 +1,335 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Index of the files in the cache of one dataset, so that the files of a
+ * request can be found by reading one small file, rather than by checking
+ * each day and parameter on the file system.  The manifest is a text file
+ * in the dataset's cache folder, with a line for each file installed:
+ * <pre>
+ * path	size	records	writeTime
+ * </pre>
+ * where path is relative to the folder, like 2020/01/20200102.x.binary,
+ * records is -1 when it is not known, and writeTime is in milliseconds
+ * since 1970.  A size of -1 marks a file which was removed.  Later lines
+ * replace earlier lines for the same path.  Lines are only appended, each
+ * with a single write, so other processes sharing the cache see complete
+ * lines, and only the new lines are read when the manifest grows.  The
+ * manifest is rewritten when most of its lines have been replaced, and
+ * readers notice this because the file is replaced.  Changes are made 
+ * while holding a lock on a second file, manifest.lock, after reading 
+ * the lines added by other processes, so that a rewrite does not lose them.
+ * When a cache has no manifest, as with caches written by older versions,
+ * it is made by listing the files of the folder.  A file removed from
+ * the cache by hand is removed from the manifest when it is found to be
+ * missing.
+ * @author jbf
+ */
+final class CacheManifest {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    /**
+     * the name of the manifest within the dataset's cache folder.
+     */
+    static final String NAME= "manifest.txt";
+
+    /**
+     * the name of the file locked while the manifest is changed.
+     */
+    static final String LOCK_NAME= "manifest.lock";
+
+    /**
+     * one file of the cache.
+     */
+    static final class Entry {
+        final long size;
+        final int records;
+        final long writeTime;
+        Entry( long size, int records, long writeTime ) {
+            this.size= size;
+            this.records= records;
+            this.writeTime= writeTime;
+        }
+    }
+
+    private static final Map<String,CacheManifest> instances= new HashMap<>();
+
+    private final File root;
+
+    private final File file;
+
+    private final File lockFile;
+
+    private final Map<String,Entry> entries= new HashMap<>();
+
+    /**
+     * the number of bytes and lines of the manifest which have been read.
+     */
+    private long position= 0;
+    private int lines= 0;
+
+    /**
+     * identifies the manifest which was read, which changes when it is rewritten.
+     */
+    private Object fileKey= null;
+
+    private CacheManifest( File root ) {
+        this.root= root;
+        this.file= new File( root, NAME );
+        this.lockFile= new File( root, LOCK_NAME );
+    }
+
+    /**
+     * return the manifest for the dataset, which is loaded once for each
+     * process.
+     * @param root the cache folder of the dataset.
+     * @return the manifest.
+     */
+    static CacheManifest getInstance( File root ) {
+        String key= root.getAbsoluteFile().toPath().normalize().toString();
+        synchronized ( instances ) {
+            CacheManifest result= instances.get(key);
+            if ( result==null ) {
+                result= new CacheManifest( new File(key) );
+                instances.put( key, result );
+            }
+            return result;
+        }
+    }
+
+    /**
+     * return the path of the file relative to the dataset's cache folder,
+     * with / separators.
+     */
+    String relativePath( File f ) {
+        Path p= root.toPath().relativize( f.getAbsoluteFile().toPath().normalize() );
+        return p.toString().replace( File.separatorChar, '/' );
+    }
+
+    /**
+     * read lines which were added to the manifest since it was last read,
+     * by this or another process.  This checks the length of the manifest,
+     * and reads only when it has changed.  When there is no manifest, it
+     * is made from the files of the folder.
+     */
+    synchronized void refresh() {
+        if ( !readNewLines() && root.exists() ) {
+            locked( this::load );
+        }
+    }
+
+    /**
+     * read the new lines of the manifest, or make it when there is none, 
+     * while holding the lock.
+     */
+    private void load() {
+        if ( !readNewLines() ) { // another process may have made it.
+            rebuild();
+        }
+    }
+
+    /**
+     * read lines which were added to the manifest since it was last read.
+     * @return false if there is no manifest.
+     */
+    private boolean readNewLines() {
+        BasicFileAttributes attr;
+        try {
+            attr= Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+        } catch ( IOException ex ) { // no manifest.
+            return false;
+        }
+        long length= attr.size();
+        Object key= attr.fileKey();
+        if ( length<position || ( key!=null && !key.equals(fileKey) ) ) { // the manifest was rewritten.
+            entries.clear();
+            position= 0;
+            lines= 0;
+        }
+        fileKey= key;
+        if ( length==position ) {
+            return true;
+        }
+        try ( RandomAccessFile raf= new RandomAccessFile( file, "r" ) ) {
+            byte[] bytes= new byte[ (int)( length-position ) ];
+            raf.seek( position );
+            raf.readFully( bytes );
+            int start= 0;
+            for ( int i=0; i<bytes.length; i++ ) {
+                if ( bytes[i]=='\n' ) {
+                    parseLine( new String( bytes, start, i-start, StandardCharsets.UTF_8 ) );
+                    start= i+1;
+                }
+            }
+            position+= start; // a line being appended is read next time.
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to read cache manifest {0}", file);
+        }
+        return true;
+    }
+
+    /**
+     * run the change to the manifest while holding the lock, so that other
+     * processes do not change it at the same time.  If the file system 
+     * cannot lock files, the change is made without the lock.
+     * @param change the change.
+     */
+    private void locked( Runnable change ) {
+        boolean done= false;
+        try ( FileChannel channel= FileChannel.open( lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE ) ) {
+            FileLock lock= channel.lock();
+            try {
+                change.run();
+                done= true;
+            } finally {
+                lock.release();
+            }
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, "unable to lock cache manifest {0}", file);
+        }
+        if ( !done ) {
+            change.run();
+        }
+    }
+
+    private void parseLine( String line ) {
+        String[] ss= line.split("\t");
+        if ( ss.length!=4 ) {
+            return;
+        }
+        try {
+            long size= Long.parseLong(ss[1]);
+            if ( size<0 ) {
+                entries.remove( ss[0] );
+            } else {
+                entries.put( ss[0], new Entry( size, Integer.parseInt(ss[2]), Long.parseLong(ss[3]) ) );
+            }
+            lines++;
+        } catch ( NumberFormatException ex ) {
+            logger.log(Level.FINE, "bad line in cache manifest: {0}", line);
+        }
+    }
+
+    private static String formatLine( String path, Entry e ) {
+        return path + "\t" + e.size + "\t" + e.records + "\t" + e.writeTime + "\n";
+    }
+
+    /**
+     * return the file, or null if it is not in the cache.  Call refresh
+     * first to see files added by other processes.
+     * @param path the path relative to the dataset's cache folder, like 2020/01/20200102.x.binary
+     * @return the entry or null.
+     */
+    synchronized Entry get( String path ) {
+        return entries.get(path);
+    }
+
+    /**
+     * record that the file was installed into the cache.
+     * @param f the file, within the dataset's cache folder.
+     * @param records the number of records, or -1 if not known.
+     */
+    synchronized void add( File f, int records ) {
+        String path= relativePath(f);
+        Entry e= new Entry( f.length(), records, f.lastModified() );
+        locked( () -> {
+            load();
+            entries.put( path, e );
+            append( formatLine( path, e ) );
+        } );
+    }
+
+    /**
+     * record that the file was removed from the cache.
+     * @param f the file, within the dataset's cache folder.
+     */
+    synchronized void remove( File f ) {
+        String path= relativePath(f);
+        locked( () -> {
+            load();
+            if ( entries.remove( path )!=null ) {
+                append( formatLine( path, new Entry( -1, 0, 0 ) ) );
+            }
+        } );
+    }
+
+    private void append( String line ) {
+        if ( lines > 2*entries.size() + 1000 ) {
+            rewrite();
+            return;
+        }
+        try ( OutputStream out= new FileOutputStream( file, true ) ) {
+            out.write( line.getBytes( StandardCharsets.UTF_8 ) ); // counted when it is read.
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write cache manifest {0}", file);
+        }
+    }
+
+    /**
+     * make the manifest from the files of the folder.
+     */
+    private void rebuild() {
+        logger.log(Level.FINE, "making cache manifest {0}", file);
+        entries.clear();
+        try ( Stream<Path> paths= Files.walk( root.toPath() ) ) {
+            paths.map( Path::toFile )
+                    .filter( f -> f.isFile() && !f.getName().equals(NAME) && !f.getName().equals(LOCK_NAME) && !f.getName().contains(".writing.") )
+                    .forEach( f -> entries.put( relativePath(f), new Entry( f.length(), -1, f.lastModified() ) ) );
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to list cache folder {0}", root);
+        }
+        rewrite();
+    }
+
+    /**
+     * write the manifest with one line for each file, replacing it atomically.
+     */
+    private void rewrite() {
+        StringBuilder b= new StringBuilder();
+        for ( Map.Entry<String,Entry> e: entries.entrySet() ) {
+            b.append( formatLine( e.getKey(), e.getValue() ) );
+        }
+        byte[] bytes= b.toString().getBytes( StandardCharsets.UTF_8 );
+        File temp= new File( file.getPath() + ".writing." + com.cottagesystems.util.Util.getProcessId("99999") );
+        try ( OutputStream out= new FileOutputStream( temp ) ) {
+            out.write( bytes );
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write cache manifest {0}", file);
+            return;
+        }
+        if ( !temp.renameTo( file ) ) {
+            logger.log(Level.WARNING, "unable to install cache manifest {0}", file);
+            if ( !temp.delete() ) {
+                logger.info("temporary file left in cache");
+            }
+            return;
+        }
+        position= bytes.length;
+        lines= entries.size();
+        try {
+            fileKey= Files.readAttributes( file.toPath(), BasicFileAttributes.class ).fileKey();
+        } catch ( IOException ex ) {
+            fileKey= null;
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * InputStream which copies the bytes of a data response into the cache as
+ * they are read, without decoding the records.  The records are found within
+ * the bytes, by the record size for binary, or by the newlines for CSV,
+ * and only the time of each record is parsed, to find the day files.  When
+ * each parameter has its own file, each record is split into its parameters,
+ * by offset for binary, or by counting commas for CSV.  Complete days
+ * within the request are installed into the cache when the end of the
+ * stream is read, and a day which is not complete when the stream is
+ * closed is discarded.
+ * @author jbf
+ */
+class CacheTeeInputStream extends FilterInputStream {
+
+    private static final long NANOS_PER_DAY= 86400000000000L;
+
+    private static final IsoTimeFormat DAY_FORMAT= new IsoTimeFormat("2000-01-01");
+
+    private static final byte[] NEWLINE= new byte[] { '\n' };
+
+    private final boolean binary;
+    private final boolean separateChannels;
+    private final File cacheRoot;
+    private final String[] names;
+    private final CacheWriter writer;
+
+    /**
+     * the first and last day boundaries of the complete days to cache.
+     */
+    private final long startNanos;
+    private final long endNanos;
+
+    /**
+     * for binary, the size of each record, and the offset and width of each parameter.
+     */
+    private int recordSize;
+    private int timeLength;
+    private int[] offsets;
+    private int[] widths;
+
+    /**
+     * for CSV, the index of the last column of each parameter.
+     */
+    private int[] lastColumn;
+
+    /**
+     * the bytes of a record which is split between reads.
+     */
+    private byte[] pending= new byte[1024];
+    private int pendingLength= 0;
+
+    /**
+     * the day being written, or null.
+     */
+    private String currentTag= null;
+    private long tempEndNanos;
+
+    /**
+     * the number of records of the day being written.
+     */
+    private int dayRecords;
+
+    private boolean closed= false;
+
+    private final byte[] single= new byte[1];
+
+    /**
+     * create the stream.
+     * @param info the info for the parameters of the response.
+     * @param in the response.
+     * @param format "csv" or "binary"
+     * @param startTime the start time of the request.
+     * @param endTime the end time of the request.
+     * @param cacheRoot the root of the cache for the dataset.
+     * @param separateChannels if true, write a file for each parameter.
+     * @param writeBehind if true, write the files on a separate thread.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    CacheTeeInputStream( JSONObject info, InputStream in, String format,
+            String startTime, String endTime, File cacheRoot,
+            boolean separateChannels, boolean writeBehind ) throws JSONException {
+        super(in);
+        this.binary= format.equals("binary");
+        this.separateChannels= separateChannels;
+        this.cacheRoot= cacheRoot;
+        this.startNanos= TimeUtil.toNanosecondsSince1970( TimeUtil.ceil(startTime) );
+        this.endNanos= TimeUtil.toNanosecondsSince1970( TimeUtil.floor(endTime) );
+        ParameterSchema schema= ParameterSchema.of(info);
+        this.names= schema.getNames();
+        if ( binary ) {
+            this.recordSize= schema.getRecordSize();
+            this.timeLength= schema.getLength(0);
+            this.offsets= schema.offsets;
+            this.widths= new int[names.length];
+            for ( int i=0; i<names.length; i++ ) {
+                widths[i]= schema.getElementCount(i) * schema.getLength(i);
+            }
+        } else {
+            this.lastColumn= new int[names.length];
+            for ( int i=0; i<names.length; i++ ) {
+                lastColumn[i]= schema.firstColumn[i] + schema.getElementCount(i) - 1;
+            }
+        }
+        this.writer= new CacheWriter( writeBehind, cacheRoot );
+    }
+
+    /**
+     * write gzip files, with .gz added to each name.  This must be set
+     * before any bytes are read.
+     * @param compressed true if the files should be compressed.
+     */
+    void setCompressed( boolean compressed ) {
+        writer.setCompressed( compressed );
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c= super.read();
+        if ( c==-1 ) {
+            endOfStream();
+        } else {
+            single[0]= (byte)c;
+            consume( single, 0, 1 );
+        }
+        return c;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        int n= super.read( b, off, len );
+        if ( n==-1 ) {
+            endOfStream();
+        } else if ( n>0 ) {
+            consume( b, off, n );
+        }
+        return n;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException {
+        byte[] buf= new byte[ (int)Math.min( n, 8192 ) ];
+        int r= read( buf, 0, buf.length );
+        return r<0 ? 0 : r;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( !closed ) {
+            closed= true;
+            if ( currentTag!=null ) {
+                writer.discardDay();
+                currentTag= null;
+            }
+            writer.close();
+        }
+        super.close();
+    }
+
+    /**
+     * install the last day and wait for the files to be written.
+     */
+    private void endOfStream() {
+        if ( closed ) return;
+        if ( !binary && pendingLength>0 ) { // last line without a newline
+            pending( NEWLINE, 0, 1 );
+            record( pending, 0, pendingLength );
+            pendingLength= 0;
+        }
+        if ( currentTag!=null ) {
+            writer.install( dayRecords );
+            currentTag= null;
+        }
+        closed= true;
+        writer.close();
+    }
+
+    /**
+     * return the index following the record which starts at the offset, or
+     * -1 if the record does not end within the bytes.
+     */
+    private int recordEnd( byte[] b, int off, int end ) {
+        if ( binary ) {
+            return off+recordSize<=end ? off+recordSize : -1;
+        } else {
+            for ( int i=off; i<end; i++ ) {
+                if ( b[i]=='\n' ) return i+1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * append bytes to the pending record.
+     */
+    private void pending( byte[] b, int off, int len ) {
+        if ( pendingLength+len>pending.length ) {
+            pending= Arrays.copyOf( pending, Math.max( pending.length*2, pendingLength+len ) );
+        }
+        System.arraycopy( b, off, pending, pendingLength, len );
+        pendingLength+= len;
+    }
+
+    /**
+     * find the records within the bytes which were read, keeping any
+     * partial record for the next read.
+     */
+    private void consume( byte[] b, int off, int len ) {
+        if ( closed ) return;
+        int p= off;
+        int end= off+len;
+        if ( pendingLength>0 ) {
+            int e;
+            if ( binary ) {
+                e= Math.min( end, p + recordSize - pendingLength );
+            } else {
+                e= recordEnd( b, p, end );
+                if ( e==-1 ) e= end;
+            }
+            pending( b, p, e-p );
+            p= e;
+            if ( recordEnd( pending, 0, pendingLength )==-1 ) {
+                return;
+            }
+            record( pending, 0, pendingLength );
+            pendingLength= 0;
+        }
+        while ( p<end ) {
+            int e= recordEnd( b, p, end );
+            if ( e==-1 ) break;
+            record( b, p, e );
+            p= e;
+        }
+        if ( p<end ) {
+            pending( b, p, end-p );
+        }
+    }
+
+    /**
+     * write the record to the cache, when it is within a complete day.
+     * @param b the bytes
+     * @param start the index of the first byte of the record
+     * @param end the index following the record, including the newline for CSV.
+     */
+    private void record( byte[] b, int start, int end ) {
+        int timeEnd;
+        if ( binary ) {
+            timeEnd= start+timeLength;
+        } else {
+            if ( end-start<8 || b[start]<'0' || b[start]>'9' ) {
+                return; // not a record, such as a JSON status.
+            }
+            timeEnd= start;
+            while ( timeEnd<end && b[timeEnd]!=',' && b[timeEnd]!='\n' && b[timeEnd]!='\r' ) timeEnd++;
+        }
+        long nanos= TimeUtil.toNanosecondsSince1970( b, start, timeEnd );
+
+        if ( currentTag!=null && tempEndNanos<=nanos ) {
+            writer.install( dayRecords );
+            currentTag= null;
+        }
+
+        if ( currentTag==null && startNanos<=nanos && nanos<endNanos ) {
+            String tag= DAY_FORMAT.format( nanos );
+            currentTag= tag.substring(0,4) + tag.substring(5,7) + tag.substring( 8,10 );
+            String ext= binary ? "binary" : "csv";
+            File[] files;
+            if ( separateChannels ) {
+                files= new File[names.length];
+                for ( int i=0; i<names.length; i++ ) {
+                    files[i]= WriteCacheIterator.getCacheFile( cacheRoot, currentTag, names[i], ext );
+                }
+            } else {
+                files= new File[] { WriteCacheIterator.getCacheFile( cacheRoot, currentTag, "", ext ) };
+            }
+            writer.open( files );
+            dayRecords= 0;
+            tempEndNanos= ( Math.floorDiv( nanos, NANOS_PER_DAY ) + 1 ) * NANOS_PER_DAY;
+        }
+
+        if ( currentTag==null ) {
+            return;
+        }
+        dayRecords++;
+
+        if ( !separateChannels ) {
+            writer.write( 0, b, start, end-start );
+        } else if ( binary ) {
+            for ( int i=0; i<names.length; i++ ) {
+                writer.write( i, b, start+offsets[i], widths[i] );
+            }
+        } else {
+            int lineEnd= end;
+            while ( lineEnd>start && ( b[lineEnd-1]=='\n' || b[lineEnd-1]=='\r' ) ) lineEnd--;
+            int column= 0;
+            int iparam= 0;
+            int fieldStart= start;
+            boolean inQuotes= false;
+            for ( int i=start; i<lineEnd && iparam<names.length-1; i++ ) {
+                byte c= b[i];
+                if ( c=='"' ) {
+                    inQuotes= !inQuotes;
+                } else if ( c==',' && !inQuotes ) {
+                    if ( column==lastColumn[iparam] ) {
+                        writer.write( iparam, b, fieldStart, i-fieldStart );
+                        writer.write( iparam, NEWLINE, 0, 1 );
+                        iparam++;
+                        fieldStart= i+1;
+                    }
+                    column++;
+                }
+            }
+            writer.write( iparam, b, fieldStart, lineEnd-fieldStart );
+            writer.write( iparam, NEWLINE, 0, 1 );
+        }
+    }
+
+}
@@ -0,0 +1,451 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the files of each day of the cache.  Each file is written to a
+ * staging file, named with ".writing.&lt;pid&gt;.&lt;n&gt;", which is renamed
+ * into the cache when the day is complete, so that readers never see part of
+ * a day.  In write-behind mode, the operations are passed through a bounded 
+ * queue to a thread which does the writing, so that the reader of the records
+ * is not delayed by the disk, and the reader waits only when the queue is full.
+ * The thread is started by the first operation, and when no operation arrives 
+ * for a minute while no day is being written, the thread stops, to be started
+ * again should more operations arrive.  A day being written is kept however 
+ * slowly its records arrive, and is only discarded by discardDay or when a 
+ * write fails.  Otherwise each operation is done immediately.  The bytes of each file 
+ * are collected into batches, so that each operation writes many records.
+ * When a write fails, the rest of the day is discarded rather than installed.
+ * Files may be compressed, where each batch is written as a separate gzip
+ * member, so the file can be read with GZIPInputStream or gunzip, and each
+ * member can be decompressed independently.  Installed files are recorded
+ * in the manifest of the dataset's cache.
+ * The methods which are not private are called from one thread.
+ * @author jbf
+ */
+class CacheWriter {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    private static final AtomicInteger threadCount= new AtomicInteger();
+
+    private static final AtomicInteger stagingCount= new AtomicInteger();
+
+    /**
+     * the number of operations which may be waiting for the writing thread.
+     */
+    private static final int QUEUE_SIZE= 64;
+
+    /**
+     * the number of bytes collected for each file before they are written.
+     */
+    private static final int BATCH_BYTES= 65536;
+
+    /**
+     * the time the writing thread waits for an operation before it stops, 
+     * when no day is being written.
+     */
+    private static final long IDLE_MS= 60000;
+
+    /**
+     * the header of each gzip member: deflate, no flags, no time, unknown OS.
+     */
+    private static final byte[] GZIP_HEADER= new byte[] { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+    /**
+     * the suffix of the staging files, unique to this writer.
+     */
+    private final String staging;
+
+    private final CacheManifest manifest;
+
+    private final boolean writeBehind;
+
+    private final BlockingQueue<Runnable> queue;
+
+    /**
+     * the thread doing the writing, or null when it is not running.  This is
+     * guarded by the writer's lock.
+     */
+    private Thread thread;
+
+    /**
+     * if true, write gzip files, with .gz added to each name.
+     */
+    private boolean compressed= false;
+
+    /**
+     * marks the end of the operations.
+     */
+    private static final Runnable END= () -> { };
+
+    /**
+     * the files being written, and their staging streams, used only by the thread doing the writing.
+     */
+    private File[] files;
+    private OutputStream[] outs;
+    private boolean failed;
+
+    /**
+     * the compressor, checksum and buffer for gzip members, reused for each 
+     * member of the day and used only by the thread doing the writing.
+     */
+    private Deflater deflater;
+    private final CRC32 crc= new CRC32();
+    private byte[] deflated;
+
+    /**
+     * bytes not yet submitted, for each file, used only by the thread calling write.
+     */
+    private byte[][] batches;
+    private int[] batchLengths;
+
+    /**
+     * create the writer.
+     * @param writeBehind if true, write on a separate thread.
+     * @param cacheRoot the cache folder of the dataset, containing the files.
+     */
+    CacheWriter( boolean writeBehind, File cacheRoot ) {
+        this.staging= ".writing." + com.cottagesystems.util.Util.getProcessId("99999") 
+                + "." + stagingCount.incrementAndGet();
+        this.manifest= CacheManifest.getInstance( cacheRoot );
+        this.writeBehind= writeBehind;
+        this.queue= writeBehind ? new ArrayBlockingQueue<>(QUEUE_SIZE) : null;
+    }
+
+    private void run() {
+        try {
+            while ( true ) {
+                Runnable op= queue.poll( IDLE_MS, TimeUnit.MILLISECONDS );
+                if ( op==null ) {
+                    if ( files!=null ) { // the records are slow, so keep the day.
+                        continue;
+                    }
+                    synchronized ( this ) {
+                        if ( queue.isEmpty() ) {
+                            thread= null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                if ( op==END ) {
+                    return;
+                }
+                try {
+                    op.run();
+                } catch ( RuntimeException ex ) {
+                    logger.log(Level.WARNING, "unable to write cache", ex);
+                    discard();
+                }
+            }
+        } catch ( InterruptedException ex ) {
+            logger.log(Level.WARNING, "cache writer interrupted", ex);
+            synchronized ( this ) {
+                discard();
+                thread= null;
+            }
+        }
+    }
+
+    /**
+     * do the operation now, or pass it to the writing thread, starting the
+     * thread when it is not running, and waiting while the queue is full.
+     */
+    private void submit( Runnable op ) {
+        if ( !writeBehind ) {
+            op.run();
+            return;
+        }
+        synchronized ( this ) { // the thread cannot stop while the queue has operations.
+            if ( thread==null ) {
+                thread= new Thread( this::run, "hapiCacheWriter-"+threadCount.incrementAndGet() );
+                thread.setDaemon(true);
+                thread.start();
+            }
+            try {
+                queue.put(op);
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(ex);
+            }
+        }
+    }
+
+    /**
+     * write gzip files, with .gz added to each name.  This must be set
+     * before the first day is opened.
+     * @param compressed true if the files should be compressed.
+     */
+    void setCompressed( boolean compressed ) {
+        this.compressed= compressed;
+    }
+
+    /**
+     * start writing the files for a new day.
+     * @param files the files within the cache.
+     */
+    void open( File[] files ) {
+        batches= new byte[files.length][];
+        batchLengths= new int[files.length];
+        submit( () -> doOpen(files) );
+    }
+
+    /**
+     * return the batch for the file, submitting it when it cannot hold n more bytes.
+     */
+    private byte[] batch( int i, int n ) {
+        byte[] batch= batches[i];
+        if ( batch!=null && batchLengths[i]+n>batch.length ) {
+            flush(i);
+            batch= null;
+        }
+        if ( batch==null ) {
+            batch= new byte[ Math.max( BATCH_BYTES, n ) ];
+            batches[i]= batch;
+        }
+        return batch;
+    }
+
+    /**
+     * write bytes to one of the files of the day.
+     * @param i the index of the file.
+     * @param bytes the bytes.
+     * @param off the index of the first byte.
+     * @param len the number of bytes to write.
+     */
+    void write( int i, byte[] bytes, int off, int len ) {
+        byte[] batch= batch( i, len );
+        System.arraycopy( bytes, off, batch, batchLengths[i], len );
+        batchLengths[i]+= len;
+    }
+
+    /**
+     * write the remaining bytes of the buffer to one of the files of the day.
+     * @param i the index of the file.
+     * @param bytes the bytes, which will have no bytes remaining.
+     */
+    void write( int i, ByteBuffer bytes ) {
+        int len= bytes.remaining();
+        byte[] batch= batch( i, len );
+        bytes.get( batch, batchLengths[i], len );
+        batchLengths[i]+= len;
+    }
+
+    /**
+     * submit the bytes collected for the file.
+     */
+    private void flush( int i ) {
+        final byte[] batch= batches[i];
+        final int len= batchLengths[i];
+        if ( len>0 ) {
+            submit( () -> doWrite( i, batch, len ) );
+        }
+        batches[i]= null;
+        batchLengths[i]= 0;
+    }
+
+    /**
+     * close the files of the day and move them into the cache.
+     * @param records the number of records of the day, or -1 if not known.
+     */
+    void install( int records ) {
+        for ( int i=0; i<batches.length; i++ ) {
+            flush(i);
+        }
+        submit( () -> doInstall(records) );
+    }
+
+    /**
+     * abandon the files of the day, which will not be moved into the cache.
+     */
+    void discardDay() {
+        batches= new byte[0][];
+        batchLengths= new int[0];
+        submit( this::discard );
+    }
+
+    /**
+     * wait until all operations are done.  After this, no operations may
+     * be submitted.
+     */
+    void close() {
+        Thread t;
+        synchronized ( this ) {
+            t= thread;
+            if ( t==null ) {
+                return;
+            }
+            thread= null;
+            try {
+                queue.put( END );
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        try {
+            t.join();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private File stagingFile( File f ) {
+        return new File( f.getAbsolutePath() + staging );
+    }
+
+    private void doOpen( File[] files ) {
+        if ( compressed ) {
+            File[] gzfiles= new File[files.length];
+            for ( int i=0; i<files.length; i++ ) {
+                gzfiles[i]= new File( files[i].getPath() + ".gz" );
+            }
+            files= gzfiles;
+        }
+        this.files= files;
+        this.outs= new OutputStream[files.length];
+        this.failed= false;
+        for ( int i=0; i<files.length; i++ ) {
+            File dir= files[i].getParentFile();
+            if ( !dir.exists() ) {
+                if ( !dir.mkdirs() ) {
+                    logger.log(Level.WARNING, "unable to make directory for {0}", files[i]);
+                }
+            }
+            try {
+                outs[i]= new FileOutputStream( stagingFile(files[i]) );
+            } catch ( IOException ex ) {
+                logger.log(Level.WARNING, null, ex);
+                failed= true;
+            }
+        }
+    }
+
+    private void doWrite( int i, byte[] bytes, int len ) {
+        if ( failed ) return;
+        try {
+            if ( compressed ) {
+                writeMember( outs[i], bytes, len );
+            } else {
+                outs[i].write( bytes, 0, len );
+            }
+        } catch ( IOException ex ) {
+            logger.warning(ex.getMessage());
+            failed= true;
+        }
+    }
+
+    /**
+     * write the bytes as one gzip member.
+     * @param out the staging file.
+     * @param bytes the bytes
+     * @param len the number of bytes.
+     * @throws IOException when the file cannot be written.
+     */
+    private void writeMember( OutputStream out, byte[] bytes, int len ) throws IOException {
+        if ( deflater==null ) {
+            deflater= new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+            deflated= new byte[BATCH_BYTES];
+        } else {
+            deflater.reset();
+        }
+        out.write( GZIP_HEADER );
+        deflater.setInput( bytes, 0, len );
+        deflater.finish();
+        while ( !deflater.finished() ) {
+            int n= deflater.deflate( deflated );
+            out.write( deflated, 0, n );
+        }
+        crc.reset();
+        crc.update( bytes, 0, len );
+        long c= crc.getValue();
+        byte[] trailer= new byte[] { 
+            (byte)c, (byte)(c>>8), (byte)(c>>16), (byte)(c>>24),
+            (byte)len, (byte)(len>>8), (byte)(len>>16), (byte)(len>>24) };
+        out.write( trailer );
+    }
+
+    /**
+     * close the staging files, and release the compressor.
+     */
+    private void closeFiles() {
+        if ( deflater!=null ) {
+            deflater.end();
+            deflater= null;
+            deflated= null;
+        }
+        for ( OutputStream out : outs ) {
+            if ( out!=null ) {
+                try {
+                    out.close();
+                } catch ( IOException ex ) {
+                    logger.warning(ex.getMessage());
+                    failed= true;
+                }
+            }
+        }
+    }
+
+    private void doInstall( int records ) {
+        if ( files==null ) return;
+        closeFiles();
+        for ( File f: files ) {
+            File ch= stagingFile(f);
+            if ( failed ) {
+                if ( ch.exists() && !ch.delete() ) {
+                    logger.info("temporary file left in cache");
+                }
+                continue;
+            }
+            if ( !ch.exists() ) {
+                logger.log(Level.WARNING, "incorrect name, should have found {0}", ch);
+                continue;
+            }
+            logger.log(Level.FINE, "move stage file into cache: {0}", f);
+            File other= compressed ? new File( f.getPath().substring( 0, f.getPath().length()-3 ) ) : new File( f.getPath() + ".gz" );
+            if ( other.exists() ) {
+                if ( other.delete() ) {
+                    manifest.remove( other );
+                } else {
+                    logger.log(Level.INFO, "unable to remove old cache file {0}", other);
+                }
+            }
+            if ( ch.renameTo( f ) ) {
+                manifest.add( f, records );
+            } else {
+                if ( !ch.delete() ) {
+                    logger.info("temporary file left in cache");
+                } else {
+                    logger.info("Unable to install file in cache");
+                }
+            }
+        }
+        files= null;
+        outs= null;
+    }
+
+    /**
+     * abandon the day being written.
+     */
+    private void discard() {
+        if ( files==null ) return;
+        failed= true;
+        doInstall( -1 );
+    }
+
+}
@@ -0,0 +1,221 @@
+
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+
+/**
+ * Reads the dataset ids from a catalog response as it is read, without
+ * making objects for the rest of the response.  Only the "id" of each
+ * object of the top-level "catalog" array is kept, and everything else,
+ * such as titles, is scanned and skipped.
+ * @author jbf
+ */
+final class CatalogIdReader {
+
+    private final Reader in;
+
+    private final char[] buf= new char[8192];
+    private int pos= 0;
+    private int limit= 0;
+
+    private final StringBuilder string= new StringBuilder();
+
+    private CatalogIdReader( Reader in ) {
+        this.in= in;
+    }
+
+    /**
+     * read the ids of the datasets in the catalog.
+     * @param in the catalog response.
+     * @return the ids, in the order of the catalog.
+     * @throws IOException when the response cannot be read.
+     * @throws JSONException when the response is not a catalog.
+     */
+    static String[] readIds( Reader in ) throws IOException, JSONException {
+        return new CatalogIdReader(in).readCatalog();
+    }
+
+    private int read() throws IOException {
+        if ( pos==limit ) {
+            limit= in.read( buf, 0, buf.length );
+            pos= 0;
+            if ( limit<=0 ) {
+                limit= 0;
+                return -1;
+            }
+        }
+        return buf[pos++];
+    }
+
+    /**
+     * return the next character which is not whitespace.
+     */
+    private int nextClean() throws IOException {
+        int c= read();
+        while ( c==' ' || c=='\n' || c=='\r' || c=='\t' ) {
+            c= read();
+        }
+        return c;
+    }
+
+    private JSONException syntaxError( String message ) {
+        return new JSONException( "catalog: " + message );
+    }
+
+    private void expect( int c, char expected ) throws JSONException {
+        if ( c!=expected ) {
+            throw syntaxError( "expected '" + expected + "'" );
+        }
+    }
+
+    /**
+     * read the string, following the opening quote.
+     * @param keep if false, the characters are skipped.
+     * @return the string, or null when it is skipped.
+     */
+    private String readString( boolean keep ) throws IOException, JSONException {
+        string.setLength(0);
+        while ( true ) {
+            int c= read();
+            switch ( c ) {
+                case -1:
+                    throw syntaxError( "unterminated string" );
+                case '"':
+                    return keep ? string.toString() : null;
+                case '\\':
+                    c= read();
+                    switch ( c ) {
+                        case 'b': c= '\b'; break;
+                        case 'f': c= '\f'; break;
+                        case 'n': c= '\n'; break;
+                        case 'r': c= '\r'; break;
+                        case 't': c= '\t'; break;
+                        case 'u':
+                            int u= 0;
+                            for ( int i=0; i<4; i++ ) {
+                                int d= Character.digit( read(), 16 );
+                                if ( d<0 ) throw syntaxError( "bad escape" );
+                                u= u*16 + d;
+                            }
+                            c= u;
+                            break;
+                        case -1:
+                            throw syntaxError( "unterminated string" );
+                        default:
+                            break; // \" \\ and \/
+                    }
+                    if ( keep ) string.append( (char)c );
+                    break;
+                default:
+                    if ( keep ) string.append( (char)c );
+                    break;
+            }
+        }
+    }
+
+    /**
+     * skip the value which starts with the character.
+     */
+    private void skipValue( int c ) throws IOException, JSONException {
+        if ( c=='"' ) {
+            readString( false );
+        } else if ( c=='{' || c=='[' ) {
+            int depth= 1;
+            while ( depth>0 ) {
+                c= read();
+                if ( c==-1 ) {
+                    throw syntaxError( "unterminated object or array" );
+                } else if ( c=='"' ) {
+                    readString( false );
+                } else if ( c=='{' || c=='[' ) {
+                    depth++;
+                } else if ( c=='}' || c==']' ) {
+                    depth--;
+                }
+            }
+        } else if ( c==-1 || c==',' || c=='}' || c==']' || c==':' ) {
+            throw syntaxError( "missing value" );
+        } else { // number, true, false, or null
+            while ( c!=-1 && c!=',' && c!='}' && c!=']' && c>' ' ) {
+                c= read();
+            }
+            if ( c!=-1 ) pos--; // the delimiter is read next.
+        }
+    }
+
+    /**
+     * read the members of the object, following the opening brace, calling
+     * the member reader for each name.
+     */
+    private void readObject( MemberReader member ) throws IOException, JSONException {
+        int c= nextClean();
+        if ( c=='}' ) return;
+        while ( true ) {
+            expect( c, '"' );
+            String name= readString( true );
+            expect( nextClean(), ':' );
+            member.read( name, nextClean() );
+            c= nextClean();
+            if ( c=='}' ) return;
+            expect( c, ',' );
+            c= nextClean();
+        }
+    }
+
+    private interface MemberReader {
+        /**
+         * read the value of the member.
+         * @param name the name of the member.
+         * @param c the first character of the value.
+         */
+        void read( String name, int c ) throws IOException, JSONException;
+    }
+
+    private String[] readCatalog() throws IOException, JSONException {
+        List<String> ids= new ArrayList<>();
+        boolean[] found= new boolean[1];
+        expect( nextClean(), '{' );
+        readObject( ( name, c ) -> {
+            if ( name.equals("catalog") && c=='[' ) {
+                found[0]= true;
+                readDatasets( ids );
+            } else {
+                skipValue( c );
+            }
+        });
+        if ( !found[0] ) {
+            throw syntaxError( "JSONObject[\"catalog\"] not found." );
+        }
+        return ids.toArray( new String[ids.size()] );
+    }
+
+    /**
+     * read the elements of the catalog array, following the opening bracket.
+     */
+    private void readDatasets( List<String> ids ) throws IOException, JSONException {
+        int c= nextClean();
+        if ( c==']' ) return;
+        while ( true ) {
+            if ( c=='{' ) {
+                readObject( ( name, c1 ) -> {
+                    if ( name.equals("id") && c1=='"' ) {
+                        ids.add( readString( true ) );
+                    } else {
+                        skipValue( c1 );
+                    }
+                });
+            } else {
+                skipValue( c );
+            }
+            c= nextClean();
+            if ( c==']' ) return;
+            expect( c, ',' );
+            c= nextClean();
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+
+package org.hapiserver;
+
+import java.io.IOException;
+import java.util.Iterator;
+import org.json.JSONException;
+
+/**
+ * reads the records of one interval of a longer read, typically with a single
+ * request to the server.
+ * @author jbf
+ */
+interface ChunkReader {
+    
+    /**
+     * return the records within the interval.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return the records, in time order.
+     * @throws IOException when there is an issue reading the data.
+     * @throws JSONException should the server return an invalid response.
+     */
+    Iterator<HapiRecord> read( String startTime, String endTime ) throws IOException, JSONException;
+    
+}
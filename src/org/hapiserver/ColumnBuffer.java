@@ -0,0 +1,120 @@
+
+package org.hapiserver;
+
+import java.util.Arrays;
+
+/**
+ * Growable primitive array holding one parameter for many records, with
+ * array parameters flattened so that each record uses elementCount
+ * consecutive elements.  Only the array for the parameter's type is used.
+ * @author jbf
+ */
+class ColumnBuffer {
+
+    final ParameterSchema.Type type;
+    final int elementCount;
+
+    double[] doubles;
+    int[] integers;
+    String[] strings;
+
+    /**
+     * the number of records in the buffer.
+     */
+    private int nrec;
+
+    /**
+     * the number of records which can be held before the arrays must grow.
+     */
+    private int capacity;
+
+    /**
+     * create the buffer.
+     * @param type the HAPI type.  Times are kept as strings.
+     * @param elementCount the number of elements in each record.
+     * @param capacity the initial number of records which can be held, which
+     *    should be the final number of records when this is known.
+     */
+    ColumnBuffer( ParameterSchema.Type type, int elementCount, int capacity ) {
+        this.type= type;
+        this.elementCount= elementCount;
+        this.capacity= Math.max( 1, capacity );
+        this.nrec= 0;
+        int len= this.capacity*elementCount;
+        switch ( type ) {
+            case DOUBLE:
+                doubles= new double[len];
+                break;
+            case INTEGER:
+                integers= new int[len];
+                break;
+            case ISOTIME:
+            case STRING:
+                strings= new String[len];
+                break;
+            default:
+                throw new IllegalArgumentException("not yet supported: "+type);
+        }
+    }
+
+    /**
+     * reserve space for another record, growing the arrays when needed.
+     * @return the index of the record's first element.
+     */
+    int reserve() {
+        if ( nrec==capacity ) {
+            capacity= capacity + ( capacity >> 1 ) + 1;
+            int len= capacity*elementCount;
+            if ( doubles!=null ) doubles= Arrays.copyOf( doubles, len );
+            if ( integers!=null ) integers= Arrays.copyOf( integers, len );
+            if ( strings!=null ) strings= Arrays.copyOf( strings, len );
+        }
+        int result= nrec*elementCount;
+        nrec++;
+        return result;
+    }
+
+    /**
+     * return the number of records.
+     * @return the number of records.
+     */
+    int size() {
+        return nrec;
+    }
+
+    /**
+     * return the data, as a 1-D array for scalars or a 2-D array for array
+     * parameters.  The flattened arrays are only copied when the number of
+     * records was not known in advance, or when rows are needed.
+     * @return double[], int[], String[], double[][], int[][], or String[][]
+     */
+    Object toArray() {
+        int len= nrec*elementCount;
+        if ( elementCount==1 ) {
+            if ( doubles!=null ) return doubles.length==len ? doubles : Arrays.copyOf( doubles, len );
+            if ( integers!=null ) return integers.length==len ? integers : Arrays.copyOf( integers, len );
+            return strings.length==len ? strings : Arrays.copyOf( strings, len );
+        } else {
+            int n= elementCount;
+            if ( doubles!=null ) {
+                double[][] result= new double[nrec][];
+                for ( int j=0; j<nrec; j++ ) {
+                    result[j]= Arrays.copyOfRange( doubles, j*n, j*n+n );
+                }
+                return result;
+            } else if ( integers!=null ) {
+                int[][] result= new int[nrec][];
+                for ( int j=0; j<nrec; j++ ) {
+                    result[j]= Arrays.copyOfRange( integers, j*n, j*n+n );
+                }
+                return result;
+            } else {
+                String[][] result= new String[nrec][];
+                for ( int j=0; j<nrec; j++ ) {
+                    result[j]= Arrays.copyOfRange( strings, j*n, j*n+n );
+                }
+                return result;
+            }
+        }
+    }
+}
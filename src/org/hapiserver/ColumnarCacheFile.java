@@ -0,0 +1,339 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Columnar day file of the cache, where each parameter is stored as a
+ * contiguous column of fixed-width little-endian values: the time as int64
+ * nanoseconds since 1970-01-01T00:00Z, doubles, 4-byte integers, and
+ * strings padded with nulls to their length.  Other isotime parameters are
+ * stored as strings.  The columns are followed by a footer, and then the
+ * footer's length and a magic number:
+ * <pre>
+ * int version, int nrec, long minTime, long maxTime, short+bytes exampleTime,
+ * int blockRecords, int nblocks, long[nblocks] first time of each block,
+ * int nparam, and for each parameter: short+bytes name, byte type,
+ * int elementCount, int elementWidth, long columnOffset.
+ * </pre>
+ * Readers of a subset of parameters touch only those columns, and the
+ * first time of each block allows a time range to be found without reading
+ * the time column.  An instance collects the records of one day for writing.
+ * @author jbf
+ */
+final class ColumnarCacheFile {
+
+    /**
+     * the extension of columnar files in the cache.
+     */
+    static final String EXT= "columns";
+
+    static final int MAGIC= 0x4C4F4348; // "HCOL" in little-endian bytes.
+
+    static final int VERSION= 1;
+
+    /**
+     * the number of records in each block of the index.
+     */
+    static final int BLOCK_RECORDS= 1024;
+
+    static final byte TYPE_TIME= 0;
+    static final byte TYPE_DOUBLE= 1;
+    static final byte TYPE_INTEGER= 2;
+    static final byte TYPE_STRING= 3;
+
+    /**
+     * the contents of the footer.
+     */
+    static final class Footer {
+        int nrec;
+        long minTime;
+        long maxTime;
+        String exampleTime;
+        int blockRecords;
+        long[] blockTimes;
+        String[] names;
+        byte[] types;
+        int[] elementCounts;
+        int[] elementWidths;
+        long[] offsets;
+
+        /**
+         * return the index of the parameter.
+         * @param name the parameter name.
+         * @return the index, or -1 if the file does not have the parameter.
+         */
+        int indexOf( String name ) {
+            for ( int i=0; i<names.length; i++ ) {
+                if ( names[i].equals(name) ) return i;
+            }
+            return -1;
+        }
+    }
+
+    private final String[] names;
+    private final byte[] types;
+    private final int[] elementCounts;
+    private final int[] elementWidths;
+
+    /**
+     * the columns of the records of the day.
+     */
+    private final ByteBuffer[] columns;
+
+    private int nrec;
+
+    private String exampleTime;
+
+    /**
+     * create a file for collecting the records of a day.
+     * @param info the info for all the parameters of the records.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    ColumnarCacheFile( JSONObject info ) throws JSONException {
+        ParameterSchema schema= ParameterSchema.of(info);
+        int n= schema.getParameterCount();
+        names= schema.getNames();
+        types= new byte[n];
+        elementCounts= new int[n];
+        elementWidths= new int[n];
+        columns= new ByteBuffer[n];
+        for ( int i=0; i<n; i++ ) {
+            switch ( schema.getType(i) ) {
+                case ISOTIME:
+                    types[i]= i==0 ? TYPE_TIME : TYPE_STRING;
+                    elementWidths[i]= i==0 ? 8 : schema.getLength(i);
+                    break;
+                case STRING:
+                    types[i]= TYPE_STRING;
+                    elementWidths[i]= schema.getLength(i);
+                    break;
+                case DOUBLE:
+                    types[i]= TYPE_DOUBLE;
+                    elementWidths[i]= 8;
+                    break;
+                case INTEGER:
+                    types[i]= TYPE_INTEGER;
+                    elementWidths[i]= 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("not supported: "+schema.getType(i));
+            }
+            if ( elementWidths[i]==0 ) {
+                throw new JSONException("length is required: "+names[i]);
+            }
+            elementCounts[i]= schema.getElementCount(i);
+            columns[i]= ByteBuffer.allocate( BLOCK_RECORDS * elementCounts[i] * elementWidths[i] ).order( ByteOrder.LITTLE_ENDIAN );
+        }
+        if ( n==0 || types[0]!=TYPE_TIME ) {
+            throw new IllegalArgumentException("first parameter must be isotime");
+        }
+    }
+
+    /**
+     * return the number of records collected.
+     * @return the number of records collected.
+     */
+    int size() {
+        return nrec;
+    }
+
+    /**
+     * return the column, with room for n more bytes.
+     */
+    private ByteBuffer column( int i, int n ) {
+        ByteBuffer c= columns[i];
+        if ( c.remaining()<n ) {
+            ByteBuffer b= ByteBuffer.allocate( Math.max( c.capacity()*2, c.position()+n ) ).order( ByteOrder.LITTLE_ENDIAN );
+            c.flip();
+            b.put(c);
+            columns[i]= b;
+            c= b;
+        }
+        return c;
+    }
+
+    private static void putString( ByteBuffer c, String s, int width ) {
+        if ( s.length()>1 && s.charAt(0)=='"' && s.charAt(s.length()-1)=='"' ) { // quoted CSV field
+            s= s.substring( 1, s.length()-1 );
+        }
+        byte[] bytes= s.getBytes( StandardCharsets.UTF_8 );
+        int n= Math.min( bytes.length, width );
+        c.put( bytes, 0, n );
+        for ( int k=n; k<width; k++ ) {
+            c.put( (byte)0 );
+        }
+    }
+
+    /**
+     * add the record to the columns.  Binary records are copied without
+     * decoding, except for the time.
+     * @param rec the record
+     */
+    void add( HapiRecord rec ) {
+        if ( nrec==0 ) {
+            exampleTime= rec.getIsoTime(0).trim();
+        }
+        for ( int i=0; i<names.length; i++ ) {
+            int n= elementCounts[i];
+            ByteBuffer c= column( i, n*elementWidths[i] );
+            if ( types[i]==TYPE_TIME ) {
+                c.putLong( rec.getNanosecondsSince1970(i) );
+            } else if ( rec instanceof BinaryHapiRecord ) {
+                c.put( ((BinaryHapiRecord)rec).getAsByteBuffer(i) );
+            } else if ( types[i]==TYPE_DOUBLE ) {
+                if ( n==1 ) {
+                    c.putDouble( rec.getDouble(i) );
+                } else {
+                    for ( double d: rec.getDoubleArray(i) ) c.putDouble(d);
+                }
+            } else if ( types[i]==TYPE_INTEGER ) {
+                if ( n==1 ) {
+                    c.putInt( rec.getInteger(i) );
+                } else {
+                    for ( int d: rec.getIntegerArray(i) ) c.putInt(d);
+                }
+            } else {
+                if ( n==1 ) {
+                    putString( c, rec.getString(i), elementWidths[i] );
+                } else {
+                    for ( String s: rec.getStringArray(i) ) putString( c, s, elementWidths[i] );
+                }
+            }
+        }
+        nrec++;
+    }
+
+    private static void putString( ByteBuffer b, String s ) {
+        byte[] bytes= s.getBytes( StandardCharsets.UTF_8 );
+        b.putShort( (short)bytes.length );
+        b.put( bytes );
+    }
+
+    private static String getString( ByteBuffer b ) {
+        byte[] bytes= new byte[ b.getShort() & 0xFFFF ];
+        b.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * write the columns and footer, and clear the records.
+     * @param writer the writer, with the day's file open.
+     */
+    void writeTo( CacheWriter writer ) {
+        ByteBuffer times= columns[0];
+        int nblocks= ( nrec + BLOCK_RECORDS - 1 ) / BLOCK_RECORDS;
+        int footerSize= 64 + 8*nblocks + exampleTime.length()*4;
+        for ( String name: names ) {
+            footerSize+= 2 + name.length()*4 + 17;
+        }
+        ByteBuffer footer= ByteBuffer.allocate( footerSize ).order( ByteOrder.LITTLE_ENDIAN );
+        footer.putInt( VERSION );
+        footer.putInt( nrec );
+        footer.putLong( nrec==0 ? 0 : times.getLong(0) );
+        footer.putLong( nrec==0 ? 0 : times.getLong( (nrec-1)*8 ) );
+        putString( footer, exampleTime==null ? "" : exampleTime );
+        footer.putInt( BLOCK_RECORDS );
+        footer.putInt( nblocks );
+        for ( int k=0; k<nblocks; k++ ) {
+            footer.putLong( times.getLong( k*BLOCK_RECORDS*8 ) );
+        }
+        footer.putInt( names.length );
+        long offset= 0;
+        for ( int i=0; i<names.length; i++ ) {
+            putString( footer, names[i] );
+            footer.put( types[i] );
+            footer.putInt( elementCounts[i] );
+            footer.putInt( elementWidths[i] );
+            footer.putLong( offset );
+            offset+= columns[i].position();
+        }
+        int footerLength= footer.position();
+        footer.putInt( footerLength );
+        footer.putInt( MAGIC );
+
+        for ( ByteBuffer c: columns ) {
+            writer.write( 0, c.array(), 0, c.position() );
+            c.clear();
+        }
+        writer.write( 0, footer.array(), 0, footer.position() );
+        nrec= 0;
+    }
+
+    /**
+     * map the file into memory.
+     * @param f the file
+     * @return little-endian buffer of the file.
+     * @throws IOException when the file cannot be read.
+     */
+    static ByteBuffer map( File f ) throws IOException {
+        ByteBuffer result;
+        try ( FileInputStream fin= new FileInputStream(f);
+                FileChannel ch= fin.getChannel() ) {
+            result= ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() );
+        }
+        result.order( ByteOrder.LITTLE_ENDIAN );
+        return result;
+    }
+
+    /**
+     * read the footer of the file.
+     * @param buf the contents of the file.
+     * @return the footer.
+     * @throws IOException when the file is not a columnar file.
+     */
+    static Footer readFooter( ByteBuffer buf ) throws IOException {
+        int n= buf.limit();
+        if ( n<8 || buf.getInt(n-4)!=MAGIC ) {
+            throw new IOException("not a columnar cache file");
+        }
+        int footerLength= buf.getInt(n-8);
+        ByteBuffer b= buf.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        b.position( n-8-footerLength );
+        if ( b.getInt()!=VERSION ) {
+            throw new IOException("unsupported version of columnar cache file");
+        }
+        Footer f= new Footer();
+        f.nrec= b.getInt();
+        f.minTime= b.getLong();
+        f.maxTime= b.getLong();
+        f.exampleTime= getString(b);
+        f.blockRecords= b.getInt();
+        f.blockTimes= new long[b.getInt()];
+        for ( int k=0; k<f.blockTimes.length; k++ ) {
+            f.blockTimes[k]= b.getLong();
+        }
+        int nparam= b.getInt();
+        f.names= new String[nparam];
+        f.types= new byte[nparam];
+        f.elementCounts= new int[nparam];
+        f.elementWidths= new int[nparam];
+        f.offsets= new long[nparam];
+        for ( int i=0; i<nparam; i++ ) {
+            f.names[i]= getString(b);
+            f.types[i]= b.get();
+            f.elementCounts[i]= b.getInt();
+            f.elementWidths[i]= b.getInt();
+            f.offsets[i]= b.getLong();
+        }
+        return f;
+    }
+
+    /**
+     * read the footer of the file.
+     * @param f the file
+     * @return the footer.
+     * @throws IOException when the file cannot be read or is not a columnar file.
+     */
+    static Footer readFooter( File f ) throws IOException {
+        return readFooter( map(f) );
+    }
+}
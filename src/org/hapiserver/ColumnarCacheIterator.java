@@ -0,0 +1,191 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Iterator which reads records from columnar day files in the cache, one day
+ * at a time.  Only the columns of the parameters requested are read, and
+ * the footer of each file is used to skip days and blocks of records which
+ * are outside the time range.  The number of records is found in the same 
+ * way, from the footers.
+ * @author jbf
+ * @see ColumnarCacheFile
+ */
+class ColumnarCacheIterator implements SeekableHapiRecordIterator, CountedIterator<HapiRecord> {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    private final File[] files;
+
+    private final String[] names;
+
+    /**
+     * the index of the next day to read.
+     */
+    private int iday= 0;
+
+    private ColumnarHapiRecord.Columns columns;
+
+    /**
+     * the index of the next record of the day, and the index following the last.
+     */
+    private int irec= 0;
+    private int last= 0;
+
+    private long startNanos= Long.MIN_VALUE;
+    private long endNanos= Long.MAX_VALUE;
+
+    /**
+     * the number of records within the time range, -1 if not known, or -2 
+     * before it is counted.
+     */
+    private long count= -2;
+
+    /**
+     * create the iterator, which returns all records of the files.
+     * @param info the info describing the parameters, which must be in the files.
+     * @param files the columnar file for each day.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    ColumnarCacheIterator( JSONObject info, File[] files ) throws JSONException {
+        this.files= files;
+        this.names= ParameterSchema.of(info).getNames();
+    }
+
+    @Override
+    public void seek( String startTime, String endTime ) {
+        if ( iday>0 ) {
+            throw new IllegalStateException("seek must be called before records are read");
+        }
+        startNanos= startTime==null ? Long.MIN_VALUE : TimeUtil.toNanosecondsSince1970(startTime);
+        endNanos= endTime==null ? Long.MAX_VALUE : TimeUtil.toNanosecondsSince1970(endTime);
+        count= -2;
+    }
+
+    /**
+     * return the number of records within the time range, found using the
+     * footer of each day.
+     * @return the number of records, or -1 if the files cannot be read.
+     */
+    @Override
+    public long getCount() {
+        if ( count==-2 ) {
+            long n= 0;
+            try {
+                for ( File f: files ) {
+                    int[] range= readDay( f, new ColumnarHapiRecord.Columns() );
+                    n+= range[1]-range[0];
+                }
+            } catch ( IOException ex ) {
+                logger.log(Level.FINE, "unable to count records of cache", ex );
+                n= -1;
+            }
+            count= n;
+        }
+        return count;
+    }
+
+    /**
+     * return the index of the first record at or after the time, using the
+     * first time of each block to limit the search of the time column.
+     */
+    private static int search( ColumnarCacheFile.Footer footer, ColumnarHapiRecord.Columns columns, long t ) {
+        long[] blockTimes= footer.blockTimes;
+        int lo= 0;
+        int hi= blockTimes.length;
+        while ( lo<hi ) { // find the first block starting at or after t.
+            int mid= ( lo + hi ) >>> 1;
+            if ( blockTimes[mid]<t ) {
+                lo= mid+1;
+            } else {
+                hi= mid;
+            }
+        }
+        if ( lo==0 ) return 0;
+        hi= Math.min( lo * footer.blockRecords, footer.nrec );
+        lo= ( lo-1 ) * footer.blockRecords;
+        int timeOffset= columns.offsets[0];
+        while ( lo<hi ) {
+            int mid= ( lo + hi ) >>> 1;
+            if ( columns.buf.getLong( timeOffset + mid*8 )<t ) {
+                lo= mid+1;
+            } else {
+                hi= mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * read the footer of the day, and find the records within the time range.
+     * @param f the file of the day.
+     * @param c the columns, which are read from the file.
+     * @return the index of the first record, and the index following the last.
+     */
+    private int[] readDay( File f, ColumnarHapiRecord.Columns c ) throws IOException {
+        c.buf= ColumnarCacheFile.map(f);
+        ColumnarCacheFile.Footer footer= ColumnarCacheFile.readFooter( c.buf );
+        if ( footer.nrec==0 || footer.maxTime<startNanos || footer.minTime>=endNanos ) {
+            return new int[] { 0, 0 };
+        }
+        int n= names.length;
+        c.offsets= new int[n];
+        c.types= new byte[n];
+        c.elementCounts= new int[n];
+        c.elementWidths= new int[n];
+        for ( int i=0; i<n; i++ ) {
+            int k= footer.indexOf( names[i] );
+            if ( k==-1 ) {
+                throw new IOException("parameter "+names[i]+" is not in cache file "+f);
+            }
+            c.offsets[i]= (int)footer.offsets[k];
+            c.types[i]= footer.types[k];
+            c.elementCounts[i]= footer.elementCounts[k];
+            c.elementWidths[i]= footer.elementWidths[k];
+        }
+        if ( c.types[0]!=ColumnarCacheFile.TYPE_TIME ) {
+            throw new IOException("first parameter must be the time: "+f);
+        }
+        c.timeFormat= new IsoTimeFormat( footer.exampleTime );
+        int first= startNanos>footer.minTime ? search( footer, c, startNanos ) : 0;
+        int end= endNanos<=footer.maxTime ? search( footer, c, endNanos ) : footer.nrec;
+        return new int[] { first, end };
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( irec>=last ) {
+            if ( iday==files.length ) {
+                return false;
+            }
+            try {
+                logger.log(Level.FINER, "reading columnar cache file {0}", files[iday] );
+                ColumnarHapiRecord.Columns c= new ColumnarHapiRecord.Columns();
+                int[] range= readDay( files[iday], c );
+                columns= c;
+                irec= range[0];
+                last= range[1];
+            } catch ( IOException ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+            iday++;
+        }
+        return true;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        return new ColumnarHapiRecord( columns, irec++ );
+    }
+
+}
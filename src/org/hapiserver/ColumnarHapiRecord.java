@@ -0,0 +1,167 @@
+
+package org.hapiserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HapiRecord backed by a columnar day file of the cache.  The record is
+ * the index of a row, and each value is read from its column when it is
+ * requested.  The columns are shared by all records of the day, so records
+ * may be kept after the iterator is advanced.
+ * @author jbf
+ * @see ColumnarCacheFile
+ */
+class ColumnarHapiRecord implements HapiRecord {
+
+    /**
+     * the columns of one day, for the parameters which were requested.
+     */
+    static final class Columns {
+        ByteBuffer buf;
+        int[] offsets;
+        byte[] types;
+        int[] elementCounts;
+        int[] elementWidths;
+        IsoTimeFormat timeFormat;
+    }
+
+    private final Columns columns;
+    private final int index;
+
+    ColumnarHapiRecord( Columns columns, int index ) {
+        this.columns= columns;
+        this.index= index;
+    }
+
+    /**
+     * return the position of the first element of the parameter.
+     */
+    private int position( int i ) {
+        return columns.offsets[i] + index * columns.elementCounts[i] * columns.elementWidths[i];
+    }
+
+    private String decodeString( int offs, int len ) {
+        ByteBuffer buf= columns.buf;
+        int n= 0;
+        while ( n<len && buf.get(offs+n)!=0 ) n++;
+        byte[] bytes= new byte[n];
+        for ( int j=0; j<n; j++ ) {
+            bytes[j]= buf.get(offs+j);
+        }
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    @Override
+    public String getIsoTime(int i) {
+        if ( columns.types[i]==ColumnarCacheFile.TYPE_TIME ) {
+            return columns.timeFormat.format( getNanosecondsSince1970(i) );
+        } else {
+            return getString(i);
+        }
+    }
+
+    @Override
+    public long getNanosecondsSince1970(int i) {
+        int offs= position(i);
+        if ( columns.types[i]==ColumnarCacheFile.TYPE_TIME ) {
+            return columns.buf.getLong(offs);
+        } else {
+            return TimeUtil.toNanosecondsSince1970( columns.buf, offs, offs+columns.elementWidths[i] );
+        }
+    }
+
+    @Override
+    public String[] getIsoTimeArray(int i) {
+        return getStringArray(i);
+    }
+
+    @Override
+    public String getString(int i) {
+        return decodeString( position(i), columns.elementWidths[i] );
+    }
+
+    @Override
+    public String[] getStringArray(int i) {
+        int n= columns.elementCounts[i];
+        int w= columns.elementWidths[i];
+        int offs= position(i);
+        String[] result= new String[n];
+        for ( int j=0; j<n; j++ ) {
+            result[j]= decodeString( offs + j*w, w );
+        }
+        return result;
+    }
+
+    @Override
+    public double getDouble(int i) {
+        return columns.buf.getDouble( position(i) );
+    }
+
+    @Override
+    public double[] getDoubleArray(int i) {
+        double[] result= new double[columns.elementCounts[i]];
+        getDoubleArray( i, result, 0 );
+        return result;
+    }
+
+    @Override
+    public void getDoubleArray(int i, double[] dest, int off) {
+        int n= columns.elementCounts[i];
+        int offs= position(i);
+        for ( int j=0; j<n; j++ ) {
+            dest[off+j]= columns.buf.getDouble( offs + j*8 );
+        }
+    }
+
+    @Override
+    public int getInteger(int i) {
+        return columns.buf.getInt( position(i) );
+    }
+
+    @Override
+    public int[] getIntegerArray(int i) {
+        int[] result= new int[columns.elementCounts[i]];
+        getIntegerArray( i, result, 0 );
+        return result;
+    }
+
+    @Override
+    public void getIntegerArray(int i, int[] dest, int off) {
+        int n= columns.elementCounts[i];
+        int offs= position(i);
+        for ( int j=0; j<n; j++ ) {
+            dest[off+j]= columns.buf.getInt( offs + j*4 );
+        }
+    }
+
+    @Override
+    public String getAsString(int i) {
+        int n= columns.elementCounts[i];
+        StringBuilder b= new StringBuilder();
+        for ( int j=0; j<n; j++ ) {
+            if ( j>0 ) b.append(',');
+            switch ( columns.types[i] ) {
+                case ColumnarCacheFile.TYPE_TIME:
+                    b.append( getIsoTime(i) );
+                    break;
+                case ColumnarCacheFile.TYPE_DOUBLE:
+                    b.append( columns.buf.getDouble( position(i) + j*8 ) );
+                    break;
+                case ColumnarCacheFile.TYPE_INTEGER:
+                    b.append( columns.buf.getInt( position(i) + j*4 ) );
+                    break;
+                default:
+                    b.append( decodeString( position(i) + j*columns.elementWidths[i], columns.elementWidths[i] ) );
+                    break;
+            }
+        }
+        return b.toString();
+    }
+
+    @Override
+    public int length() {
+        return columns.offsets.length;
+    }
+
+}
@@ -0,0 +1,92 @@
+
+package org.hapiserver;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.function.LongSupplier;
+
+/**
+ * Iterator which returns the records of several iterators, one after the
+ * other.  Each iterator is not opened until the previous one is exhausted,
+ * so that requests to the server are not made until the records are needed.
+ * Closing this closes the iterator being read, and no more are opened.
+ * Since the iterators are not opened, the number of records is only known
+ * when the caller can count them.
+ * @author jbf
+ */
+class ConcatenateHapiRecordIterator implements CountedIterator<HapiRecord>, Closeable {
+    
+    private Iterator<Callable<Iterator<HapiRecord>>> sources;
+    
+    private Iterator<HapiRecord> current;
+    
+    private final LongSupplier count;
+    
+    /**
+     * create the iterator.
+     * @param sources each opens an iterator, in order.
+     */
+    ConcatenateHapiRecordIterator( List<Callable<Iterator<HapiRecord>>> sources ) {
+        this( sources, () -> -1 );
+    }
+    
+    /**
+     * create the iterator, where the number of records can be counted without 
+     * opening the iterators.
+     * @param sources each opens an iterator, in order.
+     * @param count returns the number of records of all the iterators, or -1, 
+     *    and is only called by getCount.
+     */
+    ConcatenateHapiRecordIterator( List<Callable<Iterator<HapiRecord>>> sources, LongSupplier count ) {
+        this.sources= sources.iterator();
+        this.current= null;
+        this.count= count;
+    }
+
+    @Override
+    public long getCount() {
+        return count.getAsLong();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( current==null || !current.hasNext() ) {
+            HapiClient.close( current );
+            current= null;
+            if ( !sources.hasNext() ) {
+                return false;
+            }
+            try {
+                current= sources.next().call();
+            } catch ( RuntimeException ex ) {
+                throw ex;
+            } catch ( Exception ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        return current.next();
+    }
+
+    /**
+     * close the iterator being read, when the records will not be read to the end.
+     */
+    @Override
+    public void close() {
+        sources= Collections.emptyIterator();
+        HapiClient.close( current );
+        current= null;
+    }
+    
+}
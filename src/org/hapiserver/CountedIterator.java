@@ -0,0 +1,22 @@
+
+package org.hapiserver;
+
+import java.util.Iterator;
+
+/**
+ * Iterator which may know in advance how many items it will return, for
+ * example from the length of a binary response or the sizes of cache 
+ * files.  This allows results to be allocated once with the correct size.
+ * @author jbf
+ * @param <T> the type of items returned.
+ */
+interface CountedIterator<T> extends Iterator<T> {
+    
+    /**
+     * return the total number of items this iterator will return, or -1 if 
+     * this is not known.
+     * @return the number of items, or -1.
+     */
+    long getCount();
+    
+}
@@ -0,0 +1,275 @@
+
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes responses sent with a Content-Encoding, such as gzip.  Data
+ * responses are decoded on a separate thread, which reads and inflates
+ * the response into a few buffers while the records of earlier buffers
+ * are parsed, so that the network, the inflation and the parsing overlap.
+ * Responses which are not encoded may be read ahead in the same way.
+ * The thread waits when all the buffers are full, so memory use does not
+ * grow when the reader is slower than the network, and stops when the
+ * stream is closed.  The threads are taken from a shared pool, where idle
+ * threads exit after a minute.  Errors reading the response are thrown by
+ * the read which would have returned the bytes, with unexpected exceptions
+ * wrapped in an IOException.
+ * @author jbf
+ */
+class DecodingInputStream extends InputStream {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    private static final AtomicInteger threadCount= new AtomicInteger();
+
+    private static final ExecutorService executor= Executors.newCachedThreadPool( (Runnable r) -> {
+        Thread t= new Thread( r, "hapiDecode-"+threadCount.incrementAndGet() );
+        t.setDaemon(true);
+        return t;
+    } );
+
+    /**
+     * the content encodings which are requested, in the form of the
+     * Accept-Encoding request header.  Brotli is not supported by Java.
+     */
+    static final String ACCEPT_ENCODING= "gzip, deflate";
+
+    /**
+     * the number of bytes of each buffer.
+     */
+    private static final int BUFFER_BYTES= 65536;
+
+    /**
+     * the number of buffers which may be filled ahead of the reader.
+     */
+    private static final int BUFFER_COUNT= 4;
+
+    private static final class Chunk {
+        final byte[] bytes;
+        int length;
+        IOException error;
+        Chunk( byte[] bytes ) {
+            this.bytes= bytes;
+        }
+    }
+
+    /**
+     * marks the end of the response.
+     */
+    private static final Chunk END= new Chunk( new byte[0] );
+
+    private final InputStream in;
+
+    private final BlockingQueue<Chunk> full= new ArrayBlockingQueue<>(BUFFER_COUNT+1);
+    private final BlockingQueue<Chunk> free= new ArrayBlockingQueue<>(BUFFER_COUNT);
+
+    private Chunk current= null;
+    private int pos= 0;
+
+    private volatile boolean closed= false;
+
+    private DecodingInputStream( InputStream in ) {
+        this.in= in;
+        for ( int i=0; i<BUFFER_COUNT; i++ ) {
+            free.add( new Chunk( new byte[BUFFER_BYTES] ) );
+        }
+        executor.execute( this::run );
+    }
+
+    /**
+     * return true if the content encoding is one which must be decoded.
+     * @param contentEncoding the Content-Encoding response header, or null.
+     * @return true if the content must be decoded.
+     */
+    static boolean isEncoded( String contentEncoding ) {
+        return contentEncoding!=null
+                && contentEncoding.length()>0
+                && !contentEncoding.equalsIgnoreCase("identity");
+    }
+
+    /**
+     * return the decoded content, decoding as the content is read.  This
+     * is used for short responses, like info responses.
+     * @param in the content as it was sent.
+     * @param contentEncoding the Content-Encoding response header, or null.
+     * @return the decoded content.
+     * @throws IOException when the encoding is not supported or the content cannot be read.
+     */
+    static InputStream decode( InputStream in, String contentEncoding ) throws IOException {
+        if ( !isEncoded(contentEncoding) ) {
+            return in;
+        }
+        String enc= contentEncoding.trim().toLowerCase();
+        switch ( enc ) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream( in, 8192 );
+            case "deflate":
+                return inflate( in );
+            default:
+                throw new IOException("unsupported Content-Encoding: "+contentEncoding);
+        }
+    }
+
+    /**
+     * return the decoded content, decoded on a separate thread.  
+     * @param in the content as it was sent.
+     * @param contentEncoding the Content-Encoding response header, or null.
+     * @param readAhead if true, content which is not encoded is also read on
+     *    the separate thread, otherwise it is returned as it is.
+     * @return the decoded content, which must be closed.
+     * @throws IOException when the encoding is not supported or the content cannot be read.
+     */
+    static InputStream decodeBehind( InputStream in, String contentEncoding, boolean readAhead ) throws IOException {
+        if ( !isEncoded(contentEncoding) ) {
+            return readAhead ? new DecodingInputStream( in ) : in;
+        }
+        return new DecodingInputStream( decode( in, contentEncoding ) );
+    }
+
+    /**
+     * inflate "deflate" content, which should have the zlib wrapper, but
+     * which some servers send without it.
+     */
+    private static InputStream inflate( InputStream in ) throws IOException {
+        PushbackInputStream pin= new PushbackInputStream( in, 2 );
+        int b0= pin.read();
+        int b1= b0==-1 ? -1 : pin.read();
+        if ( b1!=-1 ) pin.unread( b1 );
+        if ( b0!=-1 ) pin.unread( b0 );
+        boolean zlib= b1!=-1 && ( b0 & 0x0f )==8 && ( b0*256 + b1 ) % 31==0;
+        return new InflaterInputStream( pin, new Inflater( !zlib ), 8192 );
+    }
+
+    /**
+     * read the decoded content into the free buffers.
+     */
+    private void run() {
+        try {
+            while ( true ) {
+                Chunk c= free.take();
+                if ( closed ) {
+                    return;
+                }
+                c.length= 0;
+                c.error= null;
+                try {
+                    int n= 0;
+                    while ( c.length<c.bytes.length && ( n= in.read( c.bytes, c.length, c.bytes.length-c.length ) )!=-1 ) {
+                        c.length+= n;
+                        if ( in.available()==0 ) break; // pass on what has arrived.
+                    }
+                    if ( c.length>0 ) {
+                        full.put( c );
+                    }
+                    if ( n==-1 ) {
+                        full.put( END );
+                        return;
+                    }
+                } catch ( IOException ex ) {
+                    c.error= ex;
+                    full.put( c );
+                    return;
+                } catch ( RuntimeException | Error ex ) { // the reader would wait forever.
+                    c.error= new IOException( ex );
+                    full.put( c );
+                    return;
+                }
+            }
+        } catch ( InterruptedException ex ) {
+            logger.log(Level.FINE, "decoding interrupted", ex);
+        } finally {
+            try {
+                in.close();
+            } catch ( IOException ex ) {
+                logger.log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * make the next buffer current, waiting for it to be decoded.
+     * @return false at the end of the content.
+     */
+    private boolean next() throws IOException {
+        if ( current==END ) {
+            return false;
+        }
+        if ( current!=null ) {
+            free.add( current );
+        }
+        try {
+            current= full.take();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted reading response");
+        }
+        pos= 0;
+        if ( current.error!=null ) {
+            IOException ex= current.error;
+            current= END;
+            throw ex;
+        }
+        return current!=END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( closed ) throw new IOException("stream is closed");
+        while ( current==null || pos==current.length ) {
+            if ( !next() ) return -1;
+        }
+        return current.bytes[pos++] & 0xff;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( closed ) throw new IOException("stream is closed");
+        if ( len==0 ) return 0;
+        while ( current==null || pos==current.length ) {
+            if ( !next() ) return -1;
+        }
+        int n= Math.min( len, current.length-pos );
+        System.arraycopy( current.bytes, pos, b, off, n );
+        pos+= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current==null || current==END ? 0 : current.length-pos;
+    }
+
+    /**
+     * stop decoding.  The decoding thread stops when it takes the next 
+     * free buffer, after its current read, and closes the response.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( closed ) return;
+        closed= true;
+        Chunk c;
+        while ( ( c= full.poll() )!=null ) { // let the decoding thread see that the stream is closed.
+            if ( c!=END ) free.offer( c );
+        }
+        if ( current!=null && current!=END ) {
+            free.offer( current );
+        }
+        current= END;
+    }
+
+}
@@ -1,32 +1,38 @@
 
 package org.hapiserver;
 
-import com.cottagesystems.util.AbstractLineReader;
 import com.cottagesystems.util.ConcatenateBufferedReader;
 import com.cottagesystems.util.PasteBufferedReader;
 import com.cottagesystems.util.SingleFileBufferedReader;
 import java.awt.EventQueue;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -37,10 +43,13 @@ import java.util.zip.GZIPInputStream;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * Utility classes for interacting with a HAPI server.  JSON
  * responses are presented using JSON, and data responses are record-by-record.
+ * Records which are not read to the end should be closed with 
+ * {@link #close(java.util.Iterator)}, so that the connection to the server is released.
  * @author jbf
  */
 public class HapiClient {
@@ -111,6 +120,321 @@ public class HapiClient {
         this.offline= offline;
     }
     
+    private int fetchConcurrency= 1;
+
+    /**
+     * return the number of requests which may be made at once when reading data.
+     * @return the number of requests which may be made at once.
+     */
+    public int getFetchConcurrency() {
+        return fetchConcurrency;
+    }
+
+    /**
+     * set the number of requests which may be made at once when reading data.
+     * When this is greater than one, long time ranges are read in chunks of
+     * whole days, several chunks are read at once, and the records are 
+     * returned in time order.  The default is 1, where each read is one request.
+     * When the transport limits the number of requests to each server, no
+     * more than that are made at once.
+     * @param fetchConcurrency the number of requests, 1 or more.
+     * @see #setFetchChunkDays(int) 
+     */
+    public void setFetchConcurrency( int fetchConcurrency ) {
+        if ( fetchConcurrency<1 ) {
+            throw new IllegalArgumentException("fetchConcurrency must be at least 1");
+        }
+        this.fetchConcurrency= fetchConcurrency;
+    }
+    
+    private int fetchChunkDays= 1;
+
+    /**
+     * return the number of days read by each request when reading in parallel.
+     * @return the number of days read by each request.
+     */
+    public int getFetchChunkDays() {
+        return fetchChunkDays;
+    }
+
+    /**
+     * set the number of days read by each request when reading in parallel.
+     * @param fetchChunkDays the number of days, 1 or more.
+     * @see #setFetchConcurrency(int) 
+     */
+    public void setFetchChunkDays( int fetchChunkDays ) {
+        if ( fetchChunkDays<1 ) {
+            throw new IllegalArgumentException("fetchChunkDays must be at least 1");
+        }
+        this.fetchChunkDays= fetchChunkDays;
+    }
+    
+    private long readAheadBytes= 64 * 1024 * 1024;
+
+    /**
+     * return the approximate number of bytes of records which may be read 
+     * ahead of the consumer when reading in parallel.
+     * @return the number of bytes.
+     */
+    public long getReadAheadBytes() {
+        return readAheadBytes;
+    }
+
+    /**
+     * set the approximate number of bytes of records which may be read 
+     * ahead of the consumer when reading in parallel.  Requests for later 
+     * chunks wait when this is exceeded.
+     * @param readAheadBytes the number of bytes.
+     * @see #setFetchConcurrency(int) 
+     */
+    public void setReadAheadBytes( long readAheadBytes ) {
+        this.readAheadBytes= readAheadBytes;
+    }
+    
+    /**
+     * return the number of requests which may be made at once when reading
+     * data, which is no more than the transport allows, so that a chunk
+     * never waits for a connection held by a later chunk.
+     */
+    private int fetchConcurrency() {
+        if ( transport instanceof URLConnectionTransport ) {
+            int max= ((URLConnectionTransport)transport).getMaxConnectionsPerHost();
+            if ( max>0 ) {
+                return Math.min( fetchConcurrency, max );
+            }
+        }
+        return fetchConcurrency;
+    }
+    
+    private boolean cacheWriteBehind= true;
+
+    /**
+     * return true if cache files are written on a separate thread.
+     * @return true if cache files are written on a separate thread.
+     */
+    public boolean isCacheWriteBehind() {
+        return cacheWriteBehind;
+    }
+
+    /**
+     * set to true to write cache files on a separate thread, so that reading
+     * records is not slowed by the disk, which is the default.  Reading 
+     * waits only when the writing falls far behind.  When false, each file
+     * is written as records are read.
+     * @param cacheWriteBehind true if cache files are written on a separate thread.
+     */
+    public void setCacheWriteBehind( boolean cacheWriteBehind ) {
+        this.cacheWriteBehind= cacheWriteBehind;
+    }
+    
+    private boolean cacheCompressed= false;
+
+    /**
+     * return true if new cache files are compressed.
+     * @return true if new cache files are compressed.
+     */
+    public boolean isCacheCompressed() {
+        return cacheCompressed;
+    }
+
+    /**
+     * set to true to write new cache files compressed with gzip, with .gz 
+     * added to each name.  Compressed and uncompressed files are both read,
+     * so this may be changed for an existing cache.  The default is false.
+     * @param cacheCompressed true if new cache files are compressed.
+     */
+    public void setCacheCompressed( boolean cacheCompressed ) {
+        this.cacheCompressed= cacheCompressed;
+    }
+    
+    private boolean cacheColumnar= false;
+
+    /**
+     * return true if requests for all parameters are cached in columnar files.
+     * @return true if requests for all parameters are cached in columnar files.
+     */
+    public boolean isCacheColumnar() {
+        return cacheColumnar;
+    }
+
+    /**
+     * set to true to cache requests for all parameters in columnar files,
+     * with one file for each day, where each parameter is a contiguous
+     * column.  Reading a subset of parameters then reads only those columns,
+     * and time ranges are found using an index at the end of the file.
+     * Columnar files are read whenever they are found in the cache, and 
+     * are not compressed.  The default is false.
+     * @param cacheColumnar true if requests for all parameters are cached in columnar files.
+     * @see #setCacheCompressed(boolean) 
+     */
+    public void setCacheColumnar( boolean cacheColumnar ) {
+        this.cacheColumnar= cacheColumnar;
+    }
+
+    private boolean pipelined= false;
+
+    /**
+     * return true if data responses are read and decoded on separate threads.
+     * @return true if data responses are read and decoded on separate threads.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * set to true to read and decode data responses on separate threads.
+     * One thread reads the response into a few reusable buffers, and 
+     * another decodes the records of the buffers, so that the network and
+     * the parsing overlap with the use of the records.  Each thread waits 
+     * when it is a few buffers ahead, so memory use stays the same.  Records 
+     * are copied to pass them between threads, so the records returned may 
+     * be kept.  The default is false, where compressed responses are still 
+     * decompressed on a separate thread.
+     * @param pipelined true if data responses are read and decoded on separate threads.
+     */
+    public void setPipelined( boolean pipelined ) {
+        this.pipelined= pipelined;
+    }
+
+    /**
+     * return the iterator which decodes the records on a separate thread,
+     * if the client is pipelined.
+     * @param records the records of a data response.
+     * @return the records.
+     * @see #setPipelined(boolean) 
+     */
+    private Iterator<HapiRecord> pipeline( Iterator<HapiRecord> records ) {
+        return pipelined ? new PipelinedHapiRecordIterator( records ) : records;
+    }
+
+    /**
+     * close the records of a data request which will not be read to the
+     * end, so that the connection to the server and any threads reading it
+     * are released.  Records which were read to the end are already closed,
+     * and iterators which are not Closeable are left as they are.
+     * @param records the records, such as those returned by getData.
+     */
+    public static void close( Iterator<?> records ) {
+        if ( records instanceof Closeable ) {
+            try {
+                ((Closeable)records).close();
+            } catch ( IOException ex ) {
+                logger.log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    private boolean parallelDecoding= false;
+
+    /**
+     * return true if CSV records are decoded on several threads.
+     * @return true if CSV records are decoded on several threads.
+     */
+    public boolean isParallelDecoding() {
+        return parallelDecoding;
+    }
+
+    /**
+     * set to true to decode CSV responses and cached CSV files on several 
+     * threads.  The characters are read in large chunks split at line 
+     * boundaries, and the chunks are decoded on the common ForkJoinPool, 
+     * parsing the doubles of each record, and the records are returned in 
+     * order.  This helps when decoding is slower than reading, as with
+     * wide records read from the cache or from a fast server.  Records refer
+     * to the characters of their chunk, so keeping a record keeps its chunk.
+     * The default is false.
+     * @param parallelDecoding true if CSV records are decoded on several threads.
+     */
+    public void setParallelDecoding( boolean parallelDecoding ) {
+        this.parallelDecoding= parallelDecoding;
+    }
+
+    /**
+     * return the records of the CSV data response.
+     * @param info the info for the parameters of the response.
+     * @param reader the response.
+     * @return the records.
+     * @throws IOException when the response cannot be read, or contains an error status.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    private Iterator<HapiRecord> csvRecords( JSONObject info, BufferedReader reader ) 
+            throws IOException, JSONException {
+        if ( parallelDecoding ) {
+            reader.mark(1);
+            int c= reader.read();
+            reader.reset();
+            if ( c!='{' ) { // a JSON status is read by HapiClientCSVIterator.
+                return new ParallelCSVIterator( info, reader, ForkJoinPool.commonPool() );
+            }
+        }
+        return new HapiClientCSVIterator( info, reader );
+    }
+
+    /**
+     * the transport shared by clients which do not set their own, so that
+     * connections are reused by all clients.
+     */
+    private static final HapiTransport DEFAULT_TRANSPORT= new URLConnectionTransport();
+
+    private HapiTransport transport= DEFAULT_TRANSPORT;
+
+    /**
+     * return the transport used to make requests.
+     * @return the transport used to make requests.
+     */
+    public HapiTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * set the transport used to make all requests, such as info and data
+     * requests.  The default is a URLConnectionTransport shared by all
+     * clients, which keeps connections alive and does not limit the number
+     * of requests to each server at once.
+     * @param transport the transport used to make requests.
+     */
+    public void setTransport( HapiTransport transport ) {
+        if ( transport==null ) throw new NullPointerException("transport is null");
+        this.transport= transport;
+    }
+
+    /**
+     * make the request using the transport, asking for compressed content.
+     * @param url the URL
+     * @param headers request headers, or null.
+     * @return the response, which must be closed.
+     * @throws IOException when the request cannot be made.
+     * @see #openContent(org.hapiserver.HapiTransport.Response, boolean) 
+     */
+    private HapiTransport.Response openURL( URL url, Map<String,String> headers ) throws IOException {
+        logger.log(Level.FINE, "GET {0}", new Object[] { url } );
+        Map<String,String> h= new LinkedHashMap<>();
+        h.put( "Accept-Encoding", DecodingInputStream.ACCEPT_ENCODING );
+        if ( headers!=null ) h.putAll( headers );
+        return transport.get( url, h, getConnectTimeoutMs(), getReadTimeoutMs() );
+    }
+
+    /**
+     * return the decoded content of the response, closing the response if 
+     * the request failed.  The response is closed when the stream is closed.
+     * @param response the response.
+     * @param behind if true, decode compressed content on a separate thread,
+     *    which is done for data responses.  When the client is pipelined,
+     *    all data responses are read on the separate thread.
+     * @return the content.
+     * @throws IOException when the request failed.
+     */
+    private InputStream openContent( HapiTransport.Response response, boolean behind ) throws IOException {
+        try {
+            InputStream in= response.getInputStream();
+            String enc= response.getHeader("Content-Encoding");
+            return behind ? DecodingInputStream.decodeBehind( in, enc, pipelined ) : DecodingInputStream.decode( in, enc );
+        } catch ( IOException | RuntimeException ex ) {
+            response.close();
+            throw ex;
+        }
+    }
+
     /**
      * return the local folder of the cache for HAPI data.  This will end with
      * a slash.
@@ -180,6 +504,23 @@ public class HapiClient {
      * @throws IOException if there is an issue reading data from the file cache.
      */
     public String readFromCachedURL( URL url, String type ) throws IOException {
+        File f= getCachedURLFile( url, type );
+        if ( f!=null ) {
+            logger.log(Level.FINE, "read from hapi cache: {0}", url);
+            String r= readFromFile( f );
+            return r;
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * return the cache file of the resource, if it is cached and can be used.
+     * @param url the URL to read from the cache, with query parameters like "id".
+     * @param type "json" (the extension) or "" for no additional extension.
+     * @return the file or null.
+     */
+    private File getCachedURLFile( URL url, String type ) {
         
         String hapiCache= getHapiCache();
         
@@ -201,9 +542,7 @@ public class HapiClient {
         if ( f.exists() && f.canRead() ) {
             long age= System.currentTimeMillis() - f.lastModified();
             if ( age < cacheAgeLimitMillis() || isOffline() ) {
-                logger.log(Level.FINE, "read from hapi cache: {0}", url);
-                String r= readFromFile( f );
-                return r;
+                return f;
             } else {
                 logger.log(Level.FINE, "old cache item will not be used: {0}", url);
                 return null;
@@ -215,16 +554,13 @@ public class HapiClient {
 
     
     /**
-     * write the data (for example, an info response) to a cache file.  This is 
-     * called from readFromURL to cache the data.
+     * return the file which will contain the resource in the cache.
      * @param url the resource location, query param id is handled specially, 
      *    but others are ignored.
      * @param type "json" (the extension), or "" if no extension should be added.
-     * @param data the data.
-     * @throws IOException if there is an issue writing data to the file cache.
+     * @return the file, which may not exist.
      */
-    public void writeToCachedURL( URL url, String type, String data ) 
-            throws IOException {
+    private File newCachedURLFile( URL url, String type ) {
         
         String hapiCache= getHapiCache();
         
@@ -251,7 +587,22 @@ public class HapiClient {
         }
         
         String su= hapiCache + u;
-        File f= new File(su);
+        return new File(su);
+    }
+    
+    /**
+     * write the data (for example, an info response) to a cache file.  This is 
+     * called from readFromURL to cache the data.
+     * @param url the resource location, query param id is handled specially, 
+     *    but others are ignored.
+     * @param type "json" (the extension), or "" if no extension should be added.
+     * @param data the data.
+     * @throws IOException if there is an issue writing data to the file cache.
+     */
+    public void writeToCachedURL( URL url, String type, String data ) 
+            throws IOException {
+        
+        File f= newCachedURLFile( url, type );
         if ( f.exists() ) {
             if ( !f.delete() ) {
                 throw new IOException("unable to delete file " + f );
@@ -272,6 +623,56 @@ public class HapiClient {
         }
     }
     
+    /**
+     * return the response when the request failed, which is the JSON 
+     * sent with the error code, or the cached response.
+     * @param response the response which failed.
+     * @param url the URL to read from
+     * @param type the extension to use for the cache file (JSON, bin, txt).
+     * @param ex the exception
+     * @return the response, or null if there is none.
+     * @throws IOException when the exception should be passed on.
+     */
+    private String readAfterError( HapiTransport.Response response, URL url, String type, IOException ex ) 
+            throws IOException {
+        if ( url.getProtocol().startsWith("http") ) {
+            // attempt to read the error stream so that can be indicated.
+            InputStream err= response.getErrorStream(); 
+            if ( err!=null ) {
+                StringBuilder builder2= new StringBuilder();
+                try ( BufferedReader in2= new BufferedReader( new InputStreamReader( 
+                        DecodingInputStream.decode( err, response.getHeader("Content-Encoding") ) ) ) ) {
+                    String line= in2.readLine();
+                    while ( line!=null ) {
+                        builder2.append(line);
+                        builder2.append("\n");
+                        line= in2.readLine();
+                    }
+                    String s2= builder2.toString().trim();
+                    if ( type.equals("json") && s2.length()>0 && s2.charAt(0)=='{' ) {
+                        logger.warning("incorrect error code returned, content is JSON");
+                        return s2;
+                    }
+                } catch ( IOException ex2 ) {
+                    logger.log( Level.FINE, ex2.getMessage(), ex2 );
+                }
+            } else {
+                throw ex;
+            }
+        }
+        logger.log( Level.FINE, ex.getMessage(), ex );
+        LOCK.lock();
+        try {
+            if ( useCache() ) {
+                return readFromCachedURL( url, type );
+            } else {
+                throw ex;
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+    
     /**
      * read data from the URL.  
      * @param url the URL to read from
@@ -288,58 +689,20 @@ public class HapiClient {
             throw new IOException("cache is missing "+url);
         }
         
-        logger.log(Level.FINE, "GET {0}", new Object[] { url } );
-        URLConnection urlc= url.openConnection();
-        urlc.setConnectTimeout( getConnectTimeoutMs() );
-        urlc.setReadTimeout( getReadTimeoutMs() );
-        
         StringBuilder builder= new StringBuilder();
         
-        try ( BufferedReader in= new BufferedReader( 
-                new InputStreamReader( urlc.getInputStream() ) ) ) {
-            String line= in.readLine();
-            while ( line!=null ) {
-                builder.append(line);
-                builder.append("\n");
-                line= in.readLine();
-            }
-        } catch ( IOException ex ) {
-            if ( urlc instanceof HttpURLConnection ) {
-                // attempt to read the error stream so that can be indicated.
-                InputStream err= ((HttpURLConnection)urlc).getErrorStream(); 
-                if ( err!=null ) {
-                    StringBuilder builder2= new StringBuilder();
-                    try ( BufferedReader in2= new BufferedReader( 
-                            new InputStreamReader( ((HttpURLConnection)urlc).getErrorStream() ) ) ) {
-                        String line= in2.readLine();
-                        while ( line!=null ) {
-                            builder2.append(line);
-                            builder2.append("\n");
-                            line= in2.readLine();
-                        }
-                        String s2= builder2.toString().trim();
-                        if ( type.equals("json") && s2.length()>0 && s2.charAt(0)=='{' ) {
-                            logger.warning("incorrect error code returned, content is JSON");
-                            return s2;
-                        }
-                    } catch ( IOException ex2 ) {
-                        logger.log( Level.FINE, ex2.getMessage(), ex2 );
-                    }
-                } else {
-                    throw ex;
-                }
-            }
-            logger.log( Level.FINE, ex.getMessage(), ex );
-            LOCK.lock();
-            try {
-                if ( useCache() ) {
-                    String s= readFromCachedURL( url, type );
-                    if ( s!=null ) return s;
-                } else {
-                    throw ex;
+        try ( HapiTransport.Response response= openURL( url, null ) ) {
+            try ( BufferedReader in= new BufferedReader( 
+                    new InputStreamReader( openContent( response, false ) ) ) ) {
+                String line= in.readLine();
+                while ( line!=null ) {
+                    builder.append(line);
+                    builder.append("\n");
+                    line= in.readLine();
                 }
-            } finally {
-                LOCK.unlock();
+            } catch ( IOException ex ) {
+                String s= readAfterError( response, url, type, ex );
+                if ( s!=null ) return s;
             }
         }
         
@@ -359,16 +722,74 @@ public class HapiClient {
         return result;
     }
     
+    /**
+     * open the JSON response for reading, so that it can be parsed as it is 
+     * read rather than being read into a String first.  When the cache is 
+     * used, the response is copied into the cache as it is read.
+     * @param url the URL to read from
+     * @return a reader of the response, which must be closed.
+     * @throws IOException if there is an issue reading the response.
+     * @see #readFromURL(java.net.URL, java.lang.String) 
+     */
+    private Reader openJSON( URL url ) throws IOException {
+        String type= "json";
+        
+        if ( isOffline() ) {
+            File f= getCachedURLFile( url, type );
+            if ( f==null ) {
+                throw new IOException("cache is missing "+url);
+            }
+            logger.log(Level.FINE, "read from hapi cache: {0}", url);
+            return new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+        }
+        
+        HapiTransport.Response response= openURL( url, null );
+        
+        InputStream in;
+        try {
+            in= response.getInputStream();
+            in= DecodingInputStream.decode( in, response.getHeader("Content-Encoding") );
+        } catch ( IOException ex ) {
+            try {
+                String s= readAfterError( response, url, type, ex );
+                if ( s==null ) {
+                    throw new IOException("empty response from "+url );
+                }
+                return new StringReader(s);
+            } finally {
+                response.close();
+            }
+        }
+        
+        if ( useCache() ) {
+            in= new ResponseTeeInputStream( in, newCachedURLFile( url, type ) );
+        }
+        return new InputStreamReader( in, StandardCharsets.UTF_8 );
+    }
+    
+    /**
+     * read and parse the JSON response as it arrives.
+     * @param url the URL to read from
+     * @return the response.
+     * @throws IOException if there is an issue reading the response.
+     * @throws JSONException should the server return an invalid response
+     */
+    private JSONObject readJSONObject( URL url ) throws IOException, JSONException {
+        try ( Reader r= new BufferedReader( openJSON(url) ) ) {
+            return new JSONObject( new JSONTokener(r) );
+        }
+    }
+    
     private Iterator<HapiRecord> calculateCsvCacheReader( 
             JSONObject info, File[][] filess) throws IOException, JSONException {
         
-        if ( info.getJSONArray("parameters").length()!=filess[0].length ) {
-            throw new IllegalArgumentException("parameters length doesn't equal filess length, something has gone wrong.");
-        }
         ConcatenateBufferedReader cacheReader= new ConcatenateBufferedReader();
         for (File[] files : filess) {
             boolean haveAllForDay= true;
             if (haveAllForDay) {
+                if ( files.length!=1 && files.length!=ParameterSchema.of(info).getParameterCount() ) {
+                    throw new IllegalArgumentException("parameters length doesn't equal files length, something has gone wrong.");
+                }
                 PasteBufferedReader r1= new PasteBufferedReader();
                 r1.setDelim(',');
                 for (File file : files) {
@@ -384,7 +805,11 @@ public class HapiClient {
                         r1.pasteBufferedReader( 
                                 new SingleFileBufferedReader( 
                                         new BufferedReader(oneDayOneParam) ) );
-                    }catch ( IOException ex ) {
+                    } catch ( FileNotFoundException ex ) {
+                        r1.close();
+                        cacheReader.close();
+                        throw ex;
+                    } catch ( IOException ex ) {
                         logger.log( Level.SEVERE, ex.getMessage(), ex );
                         return null;
                     }
@@ -392,6 +817,9 @@ public class HapiClient {
                 cacheReader.concatenateBufferedReader(r1);
             }   
         }
+        if ( parallelDecoding ) {
+            return new ParallelCSVIterator( info, cacheReader, ForkJoinPool.commonPool() );
+        }
         return new LineReaderHapiRecordIterator( info, cacheReader );
     }
         
@@ -399,54 +827,60 @@ public class HapiClient {
     /**
      * connect to the server, letting it know that you have cached files which
      * were last modified as of a certain date.  If the server suggests these
-     * be used with a 304 response, then return an implementation based on 
-     * these.  This might also simply return the data (200), and an iterator is
-     * returned for that, possibly decompressing the data.
+     * be used with a 304 response, then null is returned and the caller reads
+     * the cache files.  This might also simply return the data (200), and an 
+     * iterator is returned for that, possibly decompressing the data.
      * @param url
-     * @param files
+     * @param format the format of the cache files and the response, "csv" or "binary".
      * @param timeStamp
+     * @param startTime the start time
+     * @param endTime the end time.
      * @return
      * @throws IOException 
      */
     private Iterator<HapiRecord> maybeGetDataFromCache(
             JSONObject info,
             URL url, 
-            File[][] files, 
-            long lastModified) throws IOException, JSONException {
-        
-        if ( info.getJSONArray("parameters").length()!=files[0].length ) {
-            throw new IllegalArgumentException("parameters length doesn't equal files length, something has gone wrong.");
-        }
+            String format,
+            long lastModified,
+            String startTime,
+            String endTime ) throws IOException, JSONException {
         
-        HttpURLConnection httpConnect;
         if ( isOffline() ) {
             return null;
             //throw new FileSystem.FileSystemOfflineException("file system is offline");
-        } else {
-            loggerUrl.log(Level.FINE, "GET {0}", new Object[] { url } );            
-            httpConnect= (HttpURLConnection)url.openConnection();
-            httpConnect.setConnectTimeout(getConnectTimeoutMs());
-            httpConnect.setReadTimeout(getReadTimeoutMs());
-            httpConnect.setRequestProperty( "Accept-Encoding", "gzip" );
-            String s= new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z").format(new Date(lastModified));
-            httpConnect.setRequestProperty( "If-Modified-Since", s );
-            //TODOhttpConnect= (HttpURLConnection)HttpUtil.checkRedirect(httpConnect);
-            httpConnect.connect();
-            loggerUrl.log(Level.FINE, "--> {0} {1}", 
-                    new Object[]{httpConnect.getResponseCode(), 
-                        httpConnect.getResponseMessage()});
-        }
-        if ( httpConnect.getResponseCode()==304 ) {
-            logger.fine("using cache files because server says nothing has changed (304)");
-            return calculateCsvCacheReader( info, files );
-        }
-        boolean gzip= "gzip".equals( httpConnect.getContentEncoding() );
-        BufferedReader reader= new BufferedReader( 
-            new InputStreamReader( gzip ? 
-                    new GZIPInputStream( httpConnect.getInputStream() ) : 
-                    httpConnect.getInputStream() ) );
-        AbstractLineReader result= new SingleFileBufferedReader( reader );
-        return new LineReaderHapiRecordIterator( info, result );
+        }
+        Map<String,String> headers= new LinkedHashMap<>();
+        headers.put( "If-Modified-Since", new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z").format(new Date(lastModified)) );
+        loggerUrl.log(Level.FINE, "GET {0}", new Object[] { url } );            
+        HapiTransport.Response response= openURL( url, headers );
+        InputStream in;
+        try {
+            int code= response.getResponseCode();
+            loggerUrl.log(Level.FINE, "--> {0}", code );
+            if ( code==304 ) {
+                response.close();
+                logger.fine("using cache files because server says nothing has changed (304)");
+                return null;
+            }
+            in= openContent( response, true );
+            if ( format.equals("binary") ) {
+                return pipeline( new TrimHapiRecordIterator( 
+                        new HapiClientBinaryIterator( info, in ), 
+                        startTime, endTime ) );
+            }
+            BufferedReader reader= new BufferedReader( new InputStreamReader( in ) );
+            Iterator<HapiRecord> records;
+            if ( parallelDecoding ) {
+                records= new ParallelCSVIterator( info, reader, ForkJoinPool.commonPool() );
+            } else {
+                records= new LineReaderHapiRecordIterator( info, new SingleFileBufferedReader( reader ) );
+            }
+            return pipeline( new TrimHapiRecordIterator( records, startTime, endTime ) );
+        } catch ( IOException | JSONException | RuntimeException ex ) {
+            response.close();
+            throw ex;
+        }
     }        
     
     /**
@@ -498,16 +932,42 @@ public class HapiClient {
      */
     public org.json.JSONObject getCatalog( URL server ) 
             throws IOException, JSONException {
+        return JSONResponseCache.copy( getCatalogShared(server) );
+    }
+    
+    /**
+     * return the catalog, which is shared with other requests and must not
+     * be modified.
+     * @param server the server URL, ending with "hapi".
+     * @return the catalog as a JSON response.
+     * @throws java.io.IOException IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response
+     */
+    private JSONObject getCatalogShared( URL server ) 
+            throws IOException, JSONException {
+        URL url;
+        url= url( server, "catalog" );
+        JSONObject o= JSONResponseCache.get( url.toString(), responseAgeLimitMillis() );
+        if ( o!=null ) {
+            return o;
+        }
         if ( EventQueue.isDispatchThread() ) {
             logger.warning("HAPI network call on event thread");
         }        
-        URL url;
-        url= url( server, "catalog" );
-        String s= readFromURL(url, "json");
-        JSONObject o= new JSONObject(s);
+        o= readJSONObject(url);
+        JSONResponseCache.put( url.toString(), o );
         return o;
     }
     
+    /**
+     * return the age limit of the parsed responses kept in memory.  When 
+     * offline, the responses are used regardless of age, like the cache files.
+     * @return the age limit in milliseconds.
+     */
+    private long responseAgeLimitMillis() {
+        return isOffline() ? Long.MAX_VALUE : cacheAgeLimitMillis();
+    }
+    
     /**
      * return the catalog as a String array.
      * <pre>
@@ -524,7 +984,17 @@ public class HapiClient {
      */
     public String[] getCatalogIdsArray( URL server ) 
             throws IOException, JSONException {
-        JSONObject jo= getCatalog(server);
+        URL url= url( server, "catalog" );
+        JSONObject jo= JSONResponseCache.get( url.toString(), responseAgeLimitMillis() );
+        if ( jo==null ) {
+            // only the ids are read, without parsing the whole catalog.
+            if ( EventQueue.isDispatchThread() ) {
+                logger.warning("HAPI network call on event thread");
+            }        
+            try ( Reader r= openJSON(url) ) {
+                return CatalogIdReader.readIds(r);
+            }
+        }
         JSONArray joa= jo.getJSONArray("catalog");
         
         String[] result= new String[joa.length()];
@@ -544,20 +1014,40 @@ public class HapiClient {
      */
     public org.json.JSONObject getInfo( URL server, String id ) 
             throws IOException, JSONException {
-        if ( EventQueue.isDispatchThread() ) {
-            logger.warning("HAPI network call on event thread");
-        }        
+        return JSONResponseCache.copy( getInfoShared( server, id ) );
+    }
+    
+    /**
+     * get the info for the id, which is shared with other requests and must
+     * not be modified.
+     * @param server the server URL, ending with "hapi".
+     * @param id HAPI dataset identifier, matching [a-zA-Z_]+[a-zA-Z0-9_/]*
+     * @return the JSON for info
+     * @throws java.io.IOException IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response
+     */
+    private JSONObject getInfoShared( URL server, String id ) 
+            throws IOException, JSONException {
         URL url;
         url= url( server, "info?id="+id );
         
-        String s= readFromURL(url, "json");
+        JSONObject o= JSONResponseCache.get( url.toString(), responseAgeLimitMillis() );
+        if ( o!=null ) {
+            return o;
+        }
+        
+        if ( EventQueue.isDispatchThread() ) {
+            logger.warning("HAPI network call on event thread");
+        }        
         
-        JSONObject o= new JSONObject(s);
+        o= readJSONObject(url);
         
         JSONObject status= o.getJSONObject("status");
         if ( status.getInt("code")!=1200 ) {
             throw new HapiException(status);
         }
+        
+        JSONResponseCache.put( url.toString(), o );
                 
         return o;
     }
@@ -573,15 +1063,34 @@ public class HapiClient {
      */
     public JSONObject getInfo(URL server, String id, String parameters) 
             throws IOException, JSONException {
-        if ( EventQueue.isDispatchThread() ) {
-            logger.warning("HAPI network call on event thread");
-        }        
+        return JSONResponseCache.copy( getInfoShared( server, id, parameters ) );
+    }
+    
+    /**
+     * get the info for the id, for a subset of the parameters, which is 
+     * shared with other requests and must not be modified.
+     * @param server the server URL, ending with "hapi".
+     * @param id HAPI dataset identifier, matching [a-zA-Z_]+[a-zA-Z0-9_/]*
+     * @param parameters comma-separated list of parameter names.
+     * @return the JSON for info
+     * @throws java.io.IOException IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response
+     */
+    private JSONObject getInfoShared(URL server, String id, String parameters) 
+            throws IOException, JSONException {
         URL url;
         url= url( server, "info?id="+id + "&parameters="+parameters );
         
-        String s= readFromURL(url, "json");
+        JSONObject o= JSONResponseCache.get( url.toString(), responseAgeLimitMillis() );
+        if ( o!=null ) {
+            return o;
+        }
+        
+        if ( EventQueue.isDispatchThread() ) {
+            logger.warning("HAPI network call on event thread");
+        }        
         
-        JSONObject o= new JSONObject(s);
+        o= readJSONObject(url);
         
         JSONObject status= o.getJSONObject("status");
         if ( status.getInt("code")!=1200 ) {
@@ -590,13 +1099,14 @@ public class HapiClient {
         
         String[] ss= parameters.split(",",-2);
         
-        JSONArray joa= o.getJSONArray("parameters");
+        ParameterSchema schema= ParameterSchema.of(o);
+        int n= schema.getParameterCount();
         
-        if ( ss.length==joa.length() || ss.length==joa.length()-1 ) {
-            int ioff= joa.length()-ss.length;
-            StringBuilder sb= new StringBuilder(joa.getJSONObject(ioff).getString("name"));
-            for ( int i=1+ioff; i<joa.length(); i++ ) {
-                sb.append(",").append(joa.getJSONObject(i).get("name"));
+        if ( ss.length==n || ss.length==n-1 ) {
+            int ioff= n-ss.length;
+            StringBuilder sb= new StringBuilder(schema.getName(ioff));
+            for ( int i=1+ioff; i<n; i++ ) {
+                sb.append(",").append(schema.getName(i));
             }
             String sbs= sb.toString();
             if ( !sbs.equals(parameters) ) {
@@ -608,6 +1118,8 @@ public class HapiClient {
                     "number of parameters in result doesn't jibe with request");
         }
         
+        JSONResponseCache.put( url.toString(), o );
+        
         return o;
     }
     
@@ -622,47 +1134,57 @@ public class HapiClient {
      */
     public String[] getInfoParametersArray( URL server, String id ) 
             throws IOException, JSONException {
-        JSONObject jo= getInfo(server, id);
-        JSONArray joa= jo.getJSONArray("parameters");
-        String[] result= new String[joa.length()];
-        for ( int i=0; i<joa.length(); i++ ) {
-            result[i]= joa.getJSONObject(i).getString("name");
-        }
-        return result;
+        JSONObject jo= getInfoShared(server, id);
+        return ParameterSchema.of(jo).getNames();
     }
     
-//    private static void checkMissingRange( String[] trs, boolean[][] hits, String timeRange) throws IllegalArgumentException {
-//        String missingRange=null;
-//        for ( int i=0; i<trs.length; i++ ) {
-//            for ( int j=0; j<hits[i].length; j++ ) {
-//                if ( hits[i][j]==false ) {
-//                    if ( missingRange==null ) {
-//                        missingRange= trs[i];
-//                    } else {
-//                        missingRange= DatumRangeUtil.union( missingRange, trs.get(i) );
-//                    }
-//                }
-//            }
-//        }
-//        LOGGER.log(Level.FINE, "missingRange={0}", missingRange);
-//        if ( missingRange!=null ) {
-//            if ( missingRange.min().equals(timeRange.min()) || missingRange.max().equals(timeRange.max()) ) {
-//                LOGGER.log(Level.FINE, "candidate for new partial cache, only {0} needs to be loaded.", missingRange);
-//            }
-//        }
-//    }
-
-    private long getEarliestTimeStamp( File[][] files ) {
+    private long getEarliestTimeStamp( CacheManifest manifest, File[][] files ) {
         // digest all this into a single timestamp.  
         // For each day, what is the oldest any of the granules was created?
         // For each interval, what was the oldest of any granule?
         long timeStamp= Long.MAX_VALUE;
         for (File[] files1 : files) {
             for (File file1 : files1 ) {
-                timeStamp = Math.min(timeStamp, file1.lastModified());
+                CacheManifest.Entry e= manifest.get( manifest.relativePath(file1) );
+                timeStamp = Math.min(timeStamp, e==null ? file1.lastModified() : e.writeTime );
             }
         }
         return timeStamp;
+    }
+    
+    /**
+     * return the path of a cache file for the day, relative to the cache of the dataset.
+     * @param day the day, in $Y-$m-$dZ.
+     * @param name the parameter name, or empty string for a file with all parameters.
+     * @param ext the extension, such as "binary".
+     * @return the path, like 2020/01/20200102.x.binary
+     */
+    private static String cacheFilePath( String day, String name, String ext ) {
+        StringBuilder b= new StringBuilder(32);
+        b.append( day, 0, 4 ).append('/').append( day, 5, 7 ).append('/');
+        b.append( day, 0, 4 ).append( day, 5, 7 ).append( day, 8, 10 ).append('.');
+        if ( name.length()>0 ) {
+            b.append( name ).append('.');
+        }
+        return b.append( ext ).toString();
+    }
+    
+    /**
+     * return the path of the file, or the compressed file, if it is in the
+     * manifest of the cache.
+     * @param manifest the manifest of the dataset's cache.
+     * @param path the path of the uncompressed file.
+     * @return the path, or null if neither file is in the cache.
+     */
+    private static String findCacheFile( CacheManifest manifest, String path ) {
+        if ( manifest.get(path)!=null ) {
+            return path;
+        }
+        path= path + ".gz";
+        if ( manifest.get(path)!=null ) {
+            return path;
+        }
+        return null;
     }    
     
     /**
@@ -698,6 +1220,8 @@ public class HapiClient {
             throw new IllegalArgumentException("times must be $Y-$m-$dZ");
         }
         
+        CacheManifest manifest= CacheManifest.getInstance( new File( cacheRootForDataset ) );
+        
         boolean staleCacheFiles;
         long timeNow= System.currentTimeMillis();
         staleCacheFiles= false;
@@ -705,27 +1229,17 @@ public class HapiClient {
             String tr= trs[i];
             for ( int j=0; j<parameters.length; j++ ) {
                 String parameter= parameters[j];
-                String sf= String.format( "%s/%s/%s%s%s.%s.%s", 
-                        tr.substring(0,4), 
-                        tr.substring(5,7),
-                        tr.substring(0,4),
-                        tr.substring(5,7),
-                        tr.substring(8,10),
-                        parameter, 
-                        format );
-                
-                File f= new File( cacheRootForDataset + "/" + sf );
-                if ( !f.exists() ) {
-                    f= new File( cacheRootForDataset + "/" + sf + ".gz" );
-                }
+                String sf= findCacheFile( manifest, cacheFilePath( tr, parameter, format ) );
                 
-                if ( !f.exists() ) {
+                if ( sf==null ) {
                     hits[i][j]= false;
                 } else {
-                    long ageMillis= timeNow - f.lastModified();
+                    File f= new File( cacheRootForDataset + sf );
+                    long fileLastModified= manifest.get(sf).writeTime;
+                    long ageMillis= timeNow - fileLastModified;
                     boolean isStale= ( ageMillis > cacheAgeLimitMillis() );
                     if ( lastModified>0 ) {
-                        isStale= f.lastModified() < lastModified; // Note FAT32 only has 4sec resolution, which could cause problems.
+                        isStale= fileLastModified < lastModified; // Note FAT32 only has 4sec resolution, which could cause problems.
                         if ( !isStale ) {
                             logger.fine("server lastModified indicates the cache file can be used");
                         } else {
@@ -755,11 +1269,15 @@ public class HapiClient {
      * <li> the file exists and we don't have internet access, so use it.
      * <li> the have checked recently and we can trivially use what's in the cache.
      * </ul>
+     * When some days are missing from the cache, only those days are read
+     * from the server, and these are returned with the cached days.
      * @param info the info response for the data request.
      * @param url the URL which will be used to load data, not just the HAPI server location.
      * @param id the dataset id.
+     * @param format the format of the cache files, "csv" or "binary".
      * @param startTime the start time
      * @param endTime then end time.
+     * @param download reads intervals missing from the cache from the server.
      * @return null or an iterator
      * @throws IOException
      * @throws JSONException 
@@ -768,20 +1286,18 @@ public class HapiClient {
             JSONObject info,
             URL url, 
             String id, 
+            String format,
             String startTime,
-            String endTime ) throws IOException, JSONException {
+            String endTime,
+            ChunkReader download ) throws IOException, JSONException {
         
-        String[] parameters;
-        JSONArray array= info.getJSONArray("parameters");
-        parameters= new String[array.length()];
-        for ( int i=0; i<array.length(); i++ ) {
-            parameters[i]= array.getJSONObject(i).getString("name");
-        }
+        String[] parameters= ParameterSchema.of(info).getNames();
         
         String s= getHapiCache();
         
         StringBuilder ub= new StringBuilder( 
                 url.getProtocol() + "/" + url.getHost() + "/" + url.getPath() );
+        boolean allParameters= true;
         if ( url.getQuery()!=null ) {
             String[] querys= url.getQuery().split("\\&");
             Pattern p= Pattern.compile("id=(.+)");
@@ -789,7 +1305,8 @@ public class HapiClient {
                 Matcher m= p.matcher(q);
                 if ( m.matches() ) {
                     ub.append("/").append(m.group(1));
-                    break;
+                } else if ( q.startsWith("parameters=") ) {
+                    allParameters= false;
                 }
             }
         } else {
@@ -802,8 +1319,6 @@ public class HapiClient {
         boolean[][] hits= new boolean[days.length][parameters.length];
         File[][] files= new File[days.length][parameters.length];
         
-        boolean staleCacheFiles;
-        
         String u= ub.toString();
         
         String cacheRootForDataset= s + u + "/";
@@ -812,87 +1327,515 @@ public class HapiClient {
             return null;
         }
         
-        staleCacheFiles= getCacheFilesWithTime( days, id, parameters, 
-                cacheRootForDataset, "csv", hits, files, offline, 0 );
-            
-        if ( staleCacheFiles && !offline ) {
-            logger.fine("old cache files found, but new data is available and accessible");
-            return null;
-        }
+        // which files are in the cache is read from the manifest, rather than from the file system.
+        CacheManifest manifest= CacheManifest.getInstance( new File( cacheRootForDataset ) );
+        manifest.refresh();
+        
+        // stale cache files are not hits when we are on-line, and are read again.
+        getCacheFilesWithTime( days, id, parameters, 
+                cacheRootForDataset, format, hits, files, offline, 0 );
     
-        boolean haveSomething= false;
-        boolean haveAll= true;
+        boolean[] complete= new boolean[days.length];
+        int ncomplete= 0;
         for ( int i=0; i<days.length; i++ ) {
+            File columnar= getColumnarCacheFile( days[i], cacheRootForDataset, parameters );
+            if ( columnar!=null ) {
+                complete[i]= true;
+                files[i]= new File[] { columnar };
+                ncomplete++;
+                continue;
+            }
+            complete[i]= true;
             for ( int j=0; j<parameters.length; j++ ) {
                 if ( hits[i][j]==false ) {
-                    haveAll= false;
+                    complete[i]= false;
                 }
             }
-            if ( haveAll ) {
-                haveSomething= true;
+            if ( !complete[i] && allParameters ) {
+                // all parameters may have been written to one file for the day.
+                File f= getCombinedCacheFile( days[i], cacheRootForDataset, format );
+                if ( f!=null ) {
+                    complete[i]= true;
+                    files[i]= new File[] { f };
+                }
+            }
+            if ( complete[i] ) {
+                ncomplete++;
             }
         }
         
-        if ( !haveAll ) {
-            //checkMissingRange(days, hits, timeRange);
-        }
-        
-        if ( !offline && !haveAll ) {
-            logger.fine("some cache files missing, but we are on-line and should retrieve all of them");
+        if ( ncomplete==0 ) {
+            logger.fine("no cached data found");
             return null;
         }
         
-        if ( !haveSomething ) {
-            logger.fine("no cached data found");
-            return null;
+        if ( ncomplete<days.length ) {
+            logger.log(Level.FINE, "{0} of {1} days found in cache", new Object[] { ncomplete, days.length } );
+            return readCacheWithGaps( info, url, format, startTime, endTime, days, complete, files, manifest, download );
         }
         
         Iterator<HapiRecord> result;
 
-        long timeStamp= getEarliestTimeStamp(files);
+        long timeStamp= getEarliestTimeStamp(manifest,files);
         
         try {
-            result= maybeGetDataFromCache( info, url, files, timeStamp );
+            result= maybeGetDataFromCache( info, url, format, timeStamp, startTime, endTime );
             if ( result!=null ) {
-                result= new TrimHapiRecordIterator(result,startTime,endTime);
                 return result;
             }
         } catch ( IOException ex ) {
             logger.log( Level.WARNING, null, ex );
         }
         
-        result= calculateCsvCacheReader( info, files );
-        if ( result!=null ) {
-            result= new TrimHapiRecordIterator(result,startTime,endTime);
+        return readCacheDaysOrDownload( info, format, days, files, startTime, endTime, manifest, download );
+        
+    }
+    
+    /**
+     * return the file containing all parameters for the day, if it is in the
+     * cache and can be used.
+     * @param day the day, in $Y-$m-$dZ.
+     * @param cacheRootForDataset file system which contains the cached data.
+     * @param format the format of the file, "csv" or "binary".
+     * @return the file, or null if it cannot be used.
+     */
+    private File getCombinedCacheFile( String day, String cacheRootForDataset, String format ) {
+        CacheManifest manifest= CacheManifest.getInstance( new File( cacheRootForDataset ) );
+        String sf= findCacheFile( manifest, cacheFilePath( day, "", format ) );
+        if ( sf==null ) {
+            return null;
+        }
+        File f= new File( cacheRootForDataset + sf );
+        if ( !offline && System.currentTimeMillis() - manifest.get(sf).writeTime > cacheAgeLimitMillis() ) {
+            logger.log(Level.FINE, "cached file is too old to use: {0}", f);
+            return null;
+        }
+        return f;
+    }
+    
+    /**
+     * return the columnar file for the day, if it is in the cache, contains 
+     * the parameters, and can be used.
+     * @param day the day, in $Y-$m-$dZ.
+     * @param cacheRootForDataset file system which contains the cached data.
+     * @param parameters the parameters which must be in the file.
+     * @return the file, or null if it cannot be used.
+     */
+    private File getColumnarCacheFile( String day, String cacheRootForDataset, String[] parameters ) {
+        CacheManifest manifest= CacheManifest.getInstance( new File( cacheRootForDataset ) );
+        String sf= cacheFilePath( day, "", ColumnarCacheFile.EXT );
+        CacheManifest.Entry e= manifest.get(sf);
+        if ( e==null ) {
+            return null;
+        }
+        File f= new File( cacheRootForDataset + sf );
+        if ( !offline && System.currentTimeMillis() - e.writeTime > cacheAgeLimitMillis() ) {
+            logger.log(Level.FINE, "cached file is too old to use: {0}", f);
+            return null;
+        }
+        try {
+            ColumnarCacheFile.Footer footer= ColumnarCacheFile.readFooter(f);
+            for ( String p : parameters ) {
+                if ( footer.indexOf(p)==-1 ) {
+                    return null;
+                }
+            }
+        } catch ( FileNotFoundException ex ) {
+            logger.log(Level.FINE, "cache file was removed: {0}", f);
+            manifest.remove( f );
+            return null;
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to read cache file {0}", f);
+            return null;
+        }
+        return f;
+    }
+    
+    /**
+     * return true if the day is cached in a columnar file.
+     * @param dayFiles the files for the day.
+     * @return true if the day is cached in a columnar file.
+     */
+    private static boolean isColumnar( File[] dayFiles ) {
+        return dayFiles.length==1 && dayFiles[0].getName().endsWith( "." + ColumnarCacheFile.EXT );
+    }
+    
+    /**
+     * return the records of the cache files, without trimming to a time range.
+     * @param info the info response for the data request.
+     * @param format the format of the cache files, "csv" or "binary".
+     * @param files for each day, one file with all parameters or one file for each parameter.
+     * @return the records.
+     * @throws IOException
+     * @throws JSONException 
+     */
+    private Iterator<HapiRecord> readCacheDays( 
+            JSONObject info, String format, File[][] files ) throws IOException, JSONException {
+        if ( isColumnar(files[0]) ) {
+            File[] ff= new File[files.length];
+            for ( int i=0; i<files.length; i++ ) {
+                ff[i]= files[i][0];
+            }
+            return new ColumnarCacheIterator( info, ff );
+        } else if ( format.equals("binary") ) {
+            return new BinaryCacheIterator( info, files );
+        } else {
+            Iterator<HapiRecord> result= calculateCsvCacheReader( info, files );
+            if ( result==null ) {
+                throw new IOException("unable to read cache files");
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * return the records of the cache files within the time range.  The binary
+     * cache seeks to the first and last records, and the CSV cache is read from 
+     * the start of the first day.
+     * @param info the info response for the data request.
+     * @param format the format of the cache files, "csv" or "binary".
+     * @param files for each day, one file with all parameters or one file for each parameter.
+     * @param startTime the start time
+     * @param endTime the end time.
+     * @return the records, or null if the files cannot be read.
+     * @throws IOException
+     * @throws JSONException 
+     */
+    private Iterator<HapiRecord> readCacheFiles( 
+            JSONObject info, String format, File[][] files,
+            String startTime, String endTime ) throws IOException, JSONException {
+        // days may be a mix of columnar files and CSV or binary files.
+        List<Callable<Iterator<HapiRecord>>> segments= new ArrayList<>();
+        int i0= 0;
+        while ( i0<files.length ) {
+            int i1= i0+1;
+            while ( i1<files.length && isColumnar(files[i1])==isColumnar(files[i0]) ) {
+                i1++;
+            }
+            final File[][] ff= Arrays.copyOfRange( files, i0, i1 );
+            segments.add( () -> readCacheDays( info, format, ff ) );
+            i0= i1;
+        }
+        if ( segments.size()>1 ) {
+            return new TrimHapiRecordIterator( new ConcatenateHapiRecordIterator( segments ), startTime, endTime );
+        } else if ( isColumnar(files[0]) || format.equals("binary") ) {
+            return new TrimHapiRecordIterator( readCacheDays( info, format, files ), startTime, endTime );
+        } else {
+            Iterator<HapiRecord> result= calculateCsvCacheReader( info, files );
+            return result==null ? null : new TrimHapiRecordIterator( result, startTime, endTime );
+        }
+    }
+    
+    /**
+     * return true if the exception, or one of its causes, is because a file
+     * does not exist.
+     */
+    private static boolean isMissingFile( Throwable ex ) {
+        while ( ex!=null ) {
+            if ( ex instanceof FileNotFoundException || ex instanceof java.nio.file.NoSuchFileException ) {
+                return true;
+            }
+            ex= ex.getCause();
+        }
+        return false;
+    }
+    
+    /**
+     * return the records of the cached days.  The files of each day are 
+     * opened when the day is reached, and a day with a file which was removed
+     * from the cache by hand is removed from the manifest and read from the
+     * server instead, or skipped when offline.
+     * @param info the info response for the data request.
+     * @param format the format of the cache files, "csv" or "binary".
+     * @param days the days, in $Y-$m-$dZ.
+     * @param files for each day, one file with all parameters or one file for each parameter.
+     * @param startTime the start time, within the first day.
+     * @param endTime the end time, within or at the end of the last day.
+     * @param manifest the manifest of the dataset's cache.
+     * @param download reads days from the server.
+     * @return the records.
+     */
+    private Iterator<HapiRecord> readCacheDaysOrDownload( 
+            JSONObject info, 
+            String format,
+            String[] days,
+            File[][] files,
+            String startTime,
+            String endTime,
+            CacheManifest manifest,
+            ChunkReader download ) {
+        List<Callable<Iterator<HapiRecord>>> segments= new ArrayList<>();
+        for ( int i=0; i<days.length; i++ ) {
+            final File[][] ff= new File[][] { files[i] };
+            final String start= i==0 ? startTime : days[i].substring(0,10) + "T00:00Z";
+            final String end= i==days.length-1 ? endTime : days[i+1].substring(0,10) + "T00:00Z";
+            segments.add( () -> {
+                Iterator<HapiRecord> result= null;
+                try {
+                    result= readCacheFiles( info, format, ff, start, end );
+                    if ( result==null ) {
+                        throw new IOException("unable to read cache files for "+start+"/"+end );
+                    }
+                    result.hasNext(); // opens the files of the day.
+                    return result;
+                } catch ( IOException | RuntimeException ex ) {
+                    if ( !isMissingFile(ex) ) {
+                        throw ex;
+                    }
+                    close( result );
+                    logger.log(Level.FINE, "cache file was removed, reading day from server: {0}", start );
+                    for ( File f: ff[0] ) {
+                        manifest.remove( f );
+                    }
+                    return isOffline() ? Collections.emptyIterator() : download.read( start, end );
+                }
+            } );
+        }
+        return new ConcatenateHapiRecordIterator( segments, 
+                () -> countCacheRecords( info, format, files, startTime, endTime ) );
+    }
+    
+    /**
+     * return the number of records of the cache files within the time range,
+     * found from the sizes of binary files and the footers of columnar files.
+     * @param info the info response for the data request.
+     * @param format the format of the cache files, "csv" or "binary".
+     * @param files for each day, one file with all parameters or one file for each parameter.
+     * @param startTime the start time
+     * @param endTime the end time.
+     * @return the number of records, or -1 if they cannot be counted without reading them, as with CSV files.
+     */
+    private static long countCacheRecords( 
+            JSONObject info, String format, File[][] files,
+            String startTime, String endTime ) {
+        long result= 0;
+        int i0= 0;
+        try {
+            while ( i0<files.length ) {
+                int i1= i0+1;
+                while ( i1<files.length && isColumnar(files[i1])==isColumnar(files[i0]) ) {
+                    i1++;
+                }
+                long n;
+                if ( isColumnar(files[i0]) ) {
+                    File[] ff= new File[i1-i0];
+                    for ( int i=i0; i<i1; i++ ) {
+                        ff[i-i0]= files[i][0];
+                    }
+                    ColumnarCacheIterator it= new ColumnarCacheIterator( info, ff );
+                    it.seek( startTime, endTime );
+                    n= it.getCount();
+                } else if ( format.equals("binary") ) {
+                    n= new BinaryCacheIterator( info, Arrays.copyOfRange( files, i0, i1 ), startTime, endTime ).getCount();
+                } else {
+                    n= -1;
+                }
+                if ( n<0 ) {
+                    return -1;
+                }
+                result+= n;
+                i0= i1;
+            }
+        } catch ( JSONException ex ) {
+            return -1;
         }
         return result;
+    }
+    
+    /**
+     * return the cached days, with the days missing from the cache read from
+     * the server.  Adjacent missing days are read with one request, and
+     * nothing is read until the records are needed.  As when all days are
+     * cached, the server is asked for each run of cached days with 
+     * If-Modified-Since, and the cache files are used when it responds 304.
+     * When offline, the cached days are used and the missing days are skipped.
+     * @param info the info response for the data request.
+     * @param url the URL for the data request.
+     * @param format the format of the cache files, "csv" or "binary".
+     * @param startTime the start time
+     * @param endTime the end time.
+     * @param days the days within the interval, in $Y-$m-$dZ.
+     * @param complete true where all parameters are cached for the day.
+     * @param files the cache file for each day and parameter.
+     * @param manifest the manifest of the dataset's cache.
+     * @param download reads intervals missing from the cache from the server.
+     * @return the records in an iterator.
+     */
+    private Iterator<HapiRecord> readCacheWithGaps( 
+            JSONObject info, 
+            URL url,
+            String format,
+            String startTime, 
+            String endTime, 
+            String[] days, 
+            boolean[] complete, 
+            File[][] files,
+            CacheManifest manifest,
+            ChunkReader download ) {
         
+        List<Callable<Iterator<HapiRecord>>> segments= new ArrayList<>();
+        
+        int i0= 0;
+        while ( i0<days.length ) {
+            int i1= i0+1;
+            while ( i1<days.length && complete[i1]==complete[i0] ) {
+                i1++;
+            }
+            final String start= i0==0 ? startTime : days[i0].substring(0,10) + "T00:00Z";
+            final String end= i1==days.length ? endTime : days[i1].substring(0,10) + "T00:00Z";
+            if ( complete[i0] ) {
+                final File[][] ff= Arrays.copyOfRange( files, i0, i1 );
+                final int i0f= i0;
+                final int i1f= i1;
+                segments.add( () -> {
+                    if ( !isOffline() ) {
+                        try {
+                            Iterator<HapiRecord> result= maybeGetDataFromCache( info, 
+                                    withTimeRange( url, start, end ), format, 
+                                    getEarliestTimeStamp( manifest, ff ), start, end );
+                            if ( result!=null ) {
+                                return result;
+                            }
+                        } catch ( IOException ex ) {
+                            logger.log( Level.WARNING, null, ex );
+                        }
+                    }
+                    return readCacheDaysOrDownload( info, format, Arrays.copyOfRange( days, i0f, i1f ), 
+                            ff, start, end, manifest, download );
+                } );
+            } else if ( !isOffline() ) {
+                logger.log(Level.FINE, "reading days missing from cache: {0}/{1}", new Object[] { start, end } );
+                segments.add( () -> download.read( start, end ) );
+            }
+            i0= i1;
+        }
+        
+        return new ConcatenateHapiRecordIterator( segments );
+    }
+    
+    /**
+     * return the URL for the data request.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param format null for CSV, or "binary"
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return the URL
+     */
+    private static URL dataURL( URL server, String id, String format, 
+            String parameters, String startTime, String endTime ) {
+        StringBuilder b= new StringBuilder("data");
+        b.append("?id=").append(id);
+        if ( format!=null ) {
+            b.append("&format=").append(format);
+        }
+        if ( parameters!=null ) {
+            b.append("&parameters=").append(parameters);
+        }
+        b.append("&time.min=").append(startTime);
+        b.append("&time.max=").append(endTime);
+        return url( server, b.toString() );
+    }
+    
+    /**
+     * return the data request URL with a different time range.
+     * @param url the URL for the data request.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return the URL
+     */
+    private static URL withTimeRange( URL url, String startTime, String endTime ) {
+        StringBuilder b= new StringBuilder( url.getPath() );
+        char sep= '?';
+        for ( String q : url.getQuery().split("\\&") ) {
+            if ( q.startsWith("time.min=") || q.startsWith("start=") ) {
+                q= q.substring( 0, q.indexOf('=')+1 ) + startTime;
+            } else if ( q.startsWith("time.max=") || q.startsWith("stop=") ) {
+                q= q.substring( 0, q.indexOf('=')+1 ) + endTime;
+            }
+            b.append( sep ).append( q );
+            sep= '&';
+        }
+        try {
+            return new URL( url.getProtocol(), url.getHost(), url.getPort(), b.toString() );
+        } catch ( MalformedURLException ex ) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * return the location of the cache for the dataset.
+     * @param dataURL the URL for the data request.
+     * @param id the dataset id.
+     * @return the location of the cache for the dataset.
+     */
+    private File cacheRoot( URL dataURL, String id ) {
+        return Paths.get( getHapiCache(), 
+                dataURL.getProtocol(),
+                dataURL.getHost(),
+                dataURL.getPath(), 
+                id ).toFile();
     }
     
     /**
      * return the data record-by-record, using the CSV response.
+     * @param info the info for the parameters to be read.
      * @param server the server URL, ending with "hapi".
      * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
      * @param startTime the start time, in isoTime.
      * @param endTime the end time, in isoTime.
      * @return Iterator, which will return records until the stream is empty.
      * @throws IOException when there is an issue reading the data.
      * @throws org.json.JSONException should the server return an invalid response.
      */
-    public Iterator<HapiRecord> getDataCSV( 
+    private Iterator<HapiRecord> getDataCSV( 
+            JSONObject info,
             URL server, 
             String id, 
+            String parameters,
             String startTime,
             String endTime ) throws IOException, JSONException {
         
-        JSONObject info= getInfo( server, id );
-
-        URL dataURL= url( server, "data"
-            + "?id="+id 
-            + "&time.min="+startTime 
-            + "&time.max="+endTime );
+        int concurrency= fetchConcurrency();
+        if ( concurrency>1 ) {
+            String[][] chunks= ParallelFetchIterator.chunkTimeRange( startTime, endTime, fetchChunkDays );
+            if ( chunks.length>1 ) {
+                return new ParallelFetchIterator( info, chunks, 
+                        (s,e) -> requestDataCSV( info, server, id, parameters, s, e ),
+                        concurrency, readAheadBytes );
+            }
+        }
+        
+        return requestDataCSV( info, server, id, parameters, startTime, endTime );
+    }
+    
+    /**
+     * return the data record-by-record, using one CSV request.
+     * @param info the info for the parameters to be read.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return Iterator, which will return records until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     */
+    private Iterator<HapiRecord> requestDataCSV( 
+            JSONObject info,
+            URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime ) throws IOException, JSONException {
         
-        Iterator<HapiRecord> result= checkCache( info, dataURL, id, startTime, endTime );
+        URL dataURL= dataURL( server, id, null, parameters, startTime, endTime );
+        
+        // days missing from the cache are written as separate parameters, which is how the cache is read.
+        Iterator<HapiRecord> result= checkCache( info, dataURL, id, "csv", startTime, endTime, 
+                (s,e) -> downloadDataCSV( info, server, id, parameters, s, e, true ) );
         if ( result!=null ) {
             return result;
         } else {            
@@ -900,24 +1843,85 @@ public class HapiClient {
                 logger.fine("cache contains no data");
                 return Collections.emptyIterator();
             }
+            
+            return downloadDataCSV( info, server, id, parameters, startTime, endTime, parameters!=null );
+        }
+    }
+    
+    /**
+     * return the data record-by-record from the server, using one CSV request,
+     * and writing the records to the cache.
+     * @param info the info for the parameters to be read.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @param separateChannels true if each parameter is written to its own cache file.
+     * @return Iterator, which will return records until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     */
+    private Iterator<HapiRecord> downloadDataCSV( 
+            JSONObject info,
+            URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime,
+            boolean separateChannels ) throws IOException, JSONException {
+        
+        URL dataURL= dataURL( server, id, null, parameters, startTime, endTime );
+        
+        HapiTransport.Response response= openURL( dataURL, null );
+        InputStream ins= openContent( response, true );
+        try {
+            boolean columnar= useCache() && cacheColumnar && parameters==null;
+            if ( useCache() && !columnar ) {
+                File cache= cacheRoot( dataURL, id );
+                CacheTeeInputStream tee= new CacheTeeInputStream( info, ins, "csv", startTime, endTime, cache, separateChannels, cacheWriteBehind );
+                tee.setCompressed( cacheCompressed );
+                ins= tee;
+            }
 
-            InputStream ins= dataURL.openStream();
             BufferedReader reader= new BufferedReader( new InputStreamReader(ins) );
-            result= new HapiClientCSVIterator( info, reader );
-            
-            if ( useCache() ) {
-                File cache= Paths.get( getHapiCache(), 
-                        dataURL.getProtocol(),
-                        dataURL.getHost(),
-                        dataURL.getPath(), 
-                        id ).toFile();
-                result= new WriteCacheIterator( info, result, startTime, endTime, cache, false );
+            Iterator<HapiRecord> result= csvRecords( info, reader );
+
+            if ( columnar ) {
+                File cache= cacheRoot( dataURL, id );
+                WriteCacheIterator writeCache= new WriteCacheIterator( info, result, startTime, endTime, cache, false, cacheWriteBehind );
+                writeCache.setColumnar(true);
+                result= writeCache;
             }
-            
-            return result;
+
+            return pipeline( result );
+        } catch ( IOException | JSONException | RuntimeException ex ) {
+            response.close();
+            throw ex;
         }
     }
     
+    /**
+     * return the data record-by-record, using the CSV response.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return Iterator, which will return records until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     */
+    public Iterator<HapiRecord> getDataCSV( 
+            URL server, 
+            String id, 
+            String startTime,
+            String endTime ) throws IOException, JSONException {
+        
+        JSONObject info= getInfoShared( server, id );
+        
+        return getDataCSV( info, server, id, null, startTime, endTime );
+    }
+    
     /**
      * return the data record-by-record, using the CSV response.
      * @param server the server URL, ending with "hapi".
@@ -936,69 +1940,68 @@ public class HapiClient {
             String startTime,
             String endTime ) throws IOException, JSONException {
         
-        JSONObject info= getInfo( server, id, parameters );
-
-        URL dataURL= url( server, "data"
-                + "?id="+id 
-                + "&parameters="+parameters 
-                + "&time.min="+startTime 
-                + "&time.max="+endTime );
-                
-        Iterator<HapiRecord> result= checkCache( info, dataURL, id, startTime, endTime );
-        if ( result!=null ) {
-            return result;
-        } else {
-            if ( isOffline() ) {
-                logger.fine("cache contains no data");
-                return Collections.emptyIterator();
-            }
-            InputStream ins= dataURL.openStream();
-            BufferedReader reader= new BufferedReader( new InputStreamReader(ins) );
-            result= new HapiClientCSVIterator( info, reader );
-            
-            if ( useCache() ) {
-                File cache= Paths.get( getHapiCache(), 
-                        dataURL.getProtocol(), 
-                        dataURL.getHost(), 
-                        dataURL.getPath(), 
-                        id ).toFile();
-                result= new WriteCacheIterator( info, result, startTime, endTime, cache, true );
+        JSONObject info= getInfoShared( server, id, parameters );
+        
+        return getDataCSV( info, server, id, parameters, startTime, endTime );
+    }
+    
+    /**
+     * return the data record-by-record, using the binary response.
+     * @param info the info for the parameters to be read.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return Iterator, which will return records until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     */
+    private Iterator<HapiRecord> getDataBinary( 
+            JSONObject info,
+            URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime ) throws IOException, JSONException {
+        
+        int concurrency= fetchConcurrency();
+        if ( concurrency>1 ) {
+            String[][] chunks= ParallelFetchIterator.chunkTimeRange( startTime, endTime, fetchChunkDays );
+            if ( chunks.length>1 ) {
+                return new ParallelFetchIterator( info, chunks, 
+                        (s,e) -> requestDataBinary( info, server, id, parameters, s, e ),
+                        concurrency, readAheadBytes );
             }
-            
-            return result;
         }
         
+        return requestDataBinary( info, server, id, parameters, startTime, endTime );
     }
     
     /**
-     * return the data record-by-record, using the CSV response.
+     * return the data record-by-record, using one binary request.
+     * @param info the info for the parameters to be read.
      * @param server the server URL, ending with "hapi".
      * @param id the dataset id to read.
-     * @param parameters the parameters, comma separated to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
      * @param startTime the start time, in isoTime.
      * @param endTime the end time, in isoTime.
      * @return Iterator, which will return records until the stream is empty.
      * @throws IOException when there is an issue reading the data.
      * @throws org.json.JSONException should the server return an invalid response.
      */
-    public Iterator<HapiRecord> getDataBinary( 
+    private Iterator<HapiRecord> requestDataBinary( 
+            JSONObject info,
             URL server, 
             String id, 
             String parameters,
             String startTime,
             String endTime ) throws IOException, JSONException {
         
-        JSONObject info= getInfo( server, id, parameters );
-
-        URL dataURL= url( server, "data"
-                + "?id="+id 
-                + "&format=binary"
-                + "&parameters="+parameters 
-                + "&time.min="+startTime 
-                + "&time.max="+endTime );
+        URL dataURL= dataURL( server, id, "binary", parameters, startTime, endTime );
                 
-        //Iterator<HapiRecord> result= checkCache( info, dataURL, id, startTime, endTime );
-        Iterator<HapiRecord> result= null;
+        Iterator<HapiRecord> result= checkCache( info, dataURL, id, "binary", startTime, endTime, 
+                (s,e) -> downloadDataBinary( info, server, id, parameters, s, e, true ) );
         if ( result!=null ) {
             return result;
         } else {
@@ -1007,76 +2010,208 @@ public class HapiClient {
                 return Collections.emptyIterator();
             }
             
-            logger.log(Level.FINE, "opening {0}", dataURL);
-            InputStream ins= dataURL.openStream();
-
-            result= new HapiClientBinaryIterator( info, ins );
-            
-            if ( useCache() ) {
-                File cache= Paths.get( getHapiCache(), 
-                        dataURL.getProtocol(), 
-                        dataURL.getHost(), 
-                        dataURL.getPath(), 
-                        id ).toFile();
-                result= new WriteCacheIterator( info, result, startTime, endTime, cache, true );
-            }
-            
-            return result;
+            return downloadDataBinary( info, server, id, parameters, startTime, endTime, parameters!=null );
         }
         
     }
     
     /**
-     * return the data record-by-record, using the CSV response.
+     * return the data record-by-record from the server, using one binary request,
+     * and writing the records to the cache.
+     * @param info the info for the parameters to be read.
      * @param server the server URL, ending with "hapi".
      * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
      * @param startTime the start time, in isoTime.
      * @param endTime the end time, in isoTime.
+     * @param separateChannels true if each parameter is written to its own cache file.
      * @return Iterator, which will return records until the stream is empty.
      * @throws IOException when there is an issue reading the data.
      * @throws org.json.JSONException should the server return an invalid response.
      */
-    public Iterator<HapiRecord> getDataBinary( 
+    private Iterator<HapiRecord> downloadDataBinary( 
+            JSONObject info,
             URL server, 
             String id, 
+            String parameters,
             String startTime,
-            String endTime ) throws IOException, JSONException {
+            String endTime,
+            boolean separateChannels ) throws IOException, JSONException {
         
-        JSONObject info= getInfo( server, id );
+        URL dataURL= dataURL( server, id, "binary", parameters, startTime, endTime );
+        
+        HapiTransport.Response response= openURL( dataURL, null );
+        InputStream ins= openContent( response, true );
+        try {
+            boolean columnar= useCache() && cacheColumnar && parameters==null;
+            if ( useCache() && !columnar ) {
+                File cache= cacheRoot( dataURL, id );
+                CacheTeeInputStream tee= new CacheTeeInputStream( info, ins, "binary", startTime, endTime, cache, separateChannels, cacheWriteBehind );
+                tee.setCompressed( cacheCompressed );
+                ins= tee;
+            }
 
-        URL dataURL= url( server, "data"
-                + "?id="+id 
-                + "&format=binary"
-                + "&time.min="+startTime 
-                + "&time.max="+endTime );
-                
-        //Iterator<HapiRecord> result= checkCache( info, dataURL, id, startTime, endTime );
-        Iterator<HapiRecord> result= null;
-        if ( result!=null ) {
-            return result;
-        } else {
-            if ( isOffline() ) {
-                logger.fine("cache contains no data");
-                return Collections.emptyIterator();
+            HapiClientBinaryIterator binaryIterator= new HapiClientBinaryIterator( info, ins );
+            if ( !DecodingInputStream.isEncoded( response.getHeader("Content-Encoding") ) ) {
+                binaryIterator.setContentLength( response.getContentLength() );
             }
-            
-            logger.log(Level.FINE, "opening {0}", dataURL);
-            InputStream ins= dataURL.openStream();
 
-            result= new HapiClientBinaryIterator( info, ins );
-            
-            if ( useCache() ) {
-                File cache= Paths.get( getHapiCache(), 
-                        dataURL.getProtocol(), 
-                        dataURL.getHost(), 
-                        dataURL.getPath(), 
-                        id ).toFile();
-                result= new WriteCacheIterator( info, result, startTime, endTime, cache, false );
+            if ( columnar ) {
+                File cache= cacheRoot( dataURL, id );
+                WriteCacheIterator writeCache= new WriteCacheIterator( info, binaryIterator, startTime, endTime, cache, false, cacheWriteBehind );
+                writeCache.setColumnar(true);
+                return pipeline( writeCache );
             }
-            
-            return result;
+
+            return pipeline( binaryIterator );
+        } catch ( IOException | JSONException | RuntimeException ex ) {
+            response.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * return the data record-by-record, using the binary response.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return Iterator, which will return records until the stream is empty.  Note
+     *    one record may be reused for each record read, so use BinaryHapiRecord.copy()
+     *    to keep a record.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     * @see BinaryHapiRecord#copy() 
+     */
+    public Iterator<HapiRecord> getDataBinary( 
+            URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime ) throws IOException, JSONException {
+        
+        JSONObject info= getInfoShared( server, id, parameters );
+        
+        return getDataBinary( info, server, id, parameters, startTime, endTime );
+    }
+    
+    /**
+     * return the data record-by-record, using the binary response.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @return Iterator, which will return records until the stream is empty.  Note
+     *    one record may be reused for each record read, so use BinaryHapiRecord.copy()
+     *    to keep a record.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     * @see BinaryHapiRecord#copy() 
+     */
+    public Iterator<HapiRecord> getDataBinary( 
+            URL server, 
+            String id, 
+            String startTime,
+            String endTime ) throws IOException, JSONException {
+        
+        JSONObject info= getInfoShared( server, id );
+        
+        return getDataBinary( info, server, id, null, startTime, endTime );
+    }
+    
+    /**
+     * return the data in blocks of records, where each block contains a 
+     * primitive array for each parameter.  This avoids creating objects for 
+     * each record and each value, and is appropriate when many records are
+     * to be read.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @param blockSize the maximum number of records in each block.
+     * @return Iterator, which will return blocks until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     * @see HapiRecordBlock
+     */
+    public Iterator<HapiRecordBlock> getDataBlocks( 
+            URL server, 
+            String id, 
+            String startTime,
+            String endTime,
+            int blockSize ) throws IOException, JSONException {
+        return getDataBlocks( server, id, null, startTime, endTime, blockSize, "csv" );
+    }
+    
+    /**
+     * return the data in blocks of records, where each block contains a 
+     * primitive array for each parameter.  This avoids creating objects for 
+     * each record and each value, and is appropriate when many records are
+     * to be read.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @param blockSize the maximum number of records in each block.
+     * @return Iterator, which will return blocks until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     * @see HapiRecordBlock
+     */
+    public Iterator<HapiRecordBlock> getDataBlocks( 
+            URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime,
+            int blockSize ) throws IOException, JSONException {
+        
+        return getDataBlocks( server, id, parameters, startTime, endTime, blockSize, "csv" );
+    }
+    
+    /**
+     * return the data in blocks of records, using the CSV or binary response.
+     * Binary responses are copied into the blocks without decoding each 
+     * record, and are the faster of the two when the server provides them.
+     * @param server the server URL, ending with "hapi".
+     * @param id the dataset id to read.
+     * @param parameters the parameters, comma separated to read, or null for all parameters.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @param blockSize the maximum number of records in each block.
+     * @param format "csv" or "binary"
+     * @return Iterator, which will return blocks until the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException should the server return an invalid response.
+     * @see HapiRecordBlock
+     * @see #getDataBlocks(java.net.URL, java.lang.String, java.lang.String, java.lang.String, java.lang.String, int) 
+     */
+    public Iterator<HapiRecordBlock> getDataBlocks( 
+            URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime,
+            int blockSize,
+            String format ) throws IOException, JSONException {
+        
+        JSONObject info= parameters==null ? getInfoShared( server, id ) : getInfoShared( server, id, parameters );
+        
+        Iterator<HapiRecord> records;
+        switch ( format ) {
+            case "csv":
+                records= getDataCSV( info, server, id, parameters, startTime, endTime );
+                break;
+            case "binary":
+                records= getDataBinary( info, server, id, parameters, startTime, endTime );
+                break;
+            default:
+                throw new IllegalArgumentException("format must be csv or binary");
         }
         
+        return new HapiRecordBlockIterator( info, records, blockSize );
     }
         
     /**
@@ -1119,10 +2254,6 @@ public class HapiClient {
         return getDataCSV(server, id, parameters, startTime, endTime);
     }
     
-    private interface ParameterManager {
-        void addRecord( HapiRecord rec, ArrayList list );
-    }
-    
     /**
      * return all the records, sorted into arrays.  This is provided as a way to conveniently get all data in named
      * arrays, when performance and memory are not an issue.  This uses the streaming version of the API, getData, to 
@@ -1159,185 +2290,118 @@ public class HapiClient {
             String parameters,
             String startTime,
             String endTime ) throws IOException, JSONException {
+        return getAllData( server, id, parameters, startTime, endTime, "csv" );
+    }
+    
+    /**
+     * return all the records, sorted into arrays, using the CSV or binary
+     * response.  Values are accumulated directly into primitive arrays, 
+     * and when the number of records is known in advance, which is the 
+     * case for binary responses which are not compressed and for days read
+     * from binary or columnar cache files, the arrays are allocated once 
+     * with the final size.
+     * @param server the HAPI server
+     * @param id the dataset id
+     * @param parameters a comma-separated list of parameter names
+     * @param startTime the start time
+     * @param endTime the end time
+     * @param format "csv" or "binary"
+     * @return a map from string to array of each of the parameters.
+     * @throws IOException when there is an issue reading the data.
+     * @throws JSONException when the JSON is mis-formatted.
+     * @see #getAllData(java.net.URL, java.lang.String, java.lang.String, java.lang.String, java.lang.String) 
+     */
+    public Map<String,Object> getAllData( URL server, 
+            String id, 
+            String parameters,
+            String startTime,
+            String endTime,
+            String format ) throws IOException, JSONException {
         
-        JSONObject info= getInfo( server, id, parameters );
+        JSONObject info= getInfoShared( server, id, parameters );
 
         Map<String,Object> result= new LinkedHashMap<>();
         
         result.put("_nrec", 0 );
         
-        JSONArray japarameters= info.getJSONArray("parameters");  
+        Iterator<HapiRecord> data;
+        switch ( format ) {
+            case "csv":
+                data= getDataCSV( info, server, id, parameters, startTime, endTime );
+                break;
+            case "binary":
+                data= getDataBinary( info, server, id, parameters, startTime, endTime );
+                break;
+            default:
+                throw new IllegalArgumentException("format must be csv or binary");
+        }
+        
+        int capacity= 1000;
+        if ( data instanceof CountedIterator ) {
+            long count= ((CountedIterator)data).getCount();
+            if ( count>=0 && count<Integer.MAX_VALUE ) {
+                capacity= (int)count;
+            }
+        }
+        
+        ParameterSchema schema= ParameterSchema.of(info);
 
-        int nparameters= japarameters.length();
-        String[] ss= new String[nparameters];
-        ParameterManager[] fieldManagers= new ParameterManager[nparameters];
-        ArrayList[] accumulators= new ArrayList[nparameters];
+        int nparameters= schema.getParameterCount();
+        String[] ss= schema.getNames();
+        ColumnBuffer[] columns= new ColumnBuffer[nparameters];
 
         for ( int i=0; i<nparameters; i++ ) {
-            JSONObject paramObject= japarameters.getJSONObject(i);
-
-            ss[i]= paramObject.getString("name");
-            accumulators[i]= new ArrayList<>();
-                    
-            result.put( ss[i], accumulators[i] );
-            
-            String type= paramObject.getString("type");
-            int[] size;
-            if ( paramObject.has("size") ) {
-                JSONArray elements= paramObject.getJSONArray("size");
-                size = new int[elements.length()];
-                for ( int j=0; j<elements.length(); j++ ) {
-                    size[j]= elements.getInt(j);
-                }
-            } else {
-                size = new int[0];
-            }
-            
-            final int fi= i; // make final so it can be used in lambda expression
-            if ( size.length>0 ) {
-                switch (type) {
-                    case "string":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getStringArray(fi));
-                        };
-                        break;
-                    case "isotime":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getIsoTimeArray(fi));
-                        };
-                        break;
-                    case "double":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getDoubleArray(fi));
-                        };
-                        break;
-                    case "integer":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getIntegerArray(fi));
-                        };
-                        break;
-                    default:
-                        throw new IllegalArgumentException("not yet supported: "+type);
-                }
-            } else {
-                switch (type) {
-                    case "string":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getString(fi));
-                        };
-                        break;
-                    case "isotime":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getIsoTime(fi));
-                        };
-                        break;
-                    case "double":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getDouble(fi));
-                        };
-                        break;
-                    case "integer":
-                        fieldManagers[fi]= (HapiRecord rec, ArrayList list) -> {
-                            list.add(rec.getInteger(fi));
-                        };
-                        break;
-                    default:
-                        throw new IllegalArgumentException("not yet supported: "+type);
-                }
-            }
+            columns[i]= new ColumnBuffer( schema.getType(i), schema.getElementCount(i), capacity );
         }
         
         int irec= 0;
-        Iterator<HapiRecord> data= getData( server, id, parameters, startTime, endTime );
         while ( data.hasNext() ) {
             HapiRecord rec= data.next();
             for ( int i=0; i<nparameters; i++ ) {
-                ArrayList l = (ArrayList) accumulators[i];
-                ParameterManager fm= fieldManagers[i];
-                fm.addRecord(rec,l);
-            }
-            irec=irec+1;
-        }
-        
-        result.put( "_nrec", irec );
-        
-        Object arrayResult;
-        
-        for ( int i=0; i<nparameters; i++ ) {
-            Object o= result.get(ss[i]);
-            ArrayList l= (ArrayList)o;
-            
-            JSONObject paramObject= japarameters.getJSONObject(i);            
-            String type= paramObject.getString("type");
-            int[] size;
-            if ( paramObject.has("size") ) {
-                JSONArray elements= paramObject.getJSONArray("size");
-                size = new int[elements.length()];
-                for ( int j=0; j<elements.length(); j++ ) {
-                    size[j]= elements.getInt(j);
-                }
-            } else {
-                size = new int[0];
-            }
-            
-            if ( size.length>0 ) {
-                switch (type) {
-                    case "string":
-                        arrayResult= l.toArray( new String[l.size()][] );
+                ColumnBuffer c= columns[i];
+                int off= c.reserve();
+                boolean scalar= c.elementCount==1;
+                switch ( c.type ) {
+                    case STRING:
+                        if ( scalar ) {
+                            c.strings[off]= rec.getString(i);
+                        } else {
+                            System.arraycopy( rec.getStringArray(i), 0, c.strings, off, c.elementCount );
+                        }
                         break;
-                    case "isotime":
-                        arrayResult= l.toArray( new String[l.size()][] );
+                    case ISOTIME:
+                        if ( scalar ) {
+                            c.strings[off]= rec.getIsoTime(i);
+                        } else {
+                            System.arraycopy( rec.getIsoTimeArray(i), 0, c.strings, off, c.elementCount );
+                        }
                         break;
-                    case "double":
-                        double[][] dd= new double[l.size()][];
-                        int is= l.size();
-                        for (int j = 0; j < is; j++) {
-                            dd[j] = (double[])l.get(j);
-                        }   
-                        arrayResult= dd;
+                    case DOUBLE:
+                        if ( scalar ) {
+                            c.doubles[off]= rec.getDouble(i);
+                        } else {
+                            rec.getDoubleArray( i, c.doubles, off );
+                        }
                         break;
-                    case "integer":
-                        int[][] ii= new int[l.size()][];
-                        is= l.size();
-                        for (int j = 0; j < is; j++) {
-                            ii[j] = (int[])l.get(j);
-                        }       
-                        arrayResult= ii;
+                    case INTEGER:
+                        if ( scalar ) {
+                            c.integers[off]= rec.getInteger(i);
+                        } else {
+                            rec.getIntegerArray( i, c.integers, off );
+                        }
                         break;
                     default:
-                        throw new IllegalArgumentException("not yet supported: "+type);
+                        throw new IllegalArgumentException("not yet supported: "+c.type);
                 }
-            } else {
-                switch (type) {
-                    case "string":
-                        arrayResult= l.toArray( new String[l.size()] );
-                        break;
-                    case "isotime":
-                        arrayResult= l.toArray( new String[l.size()] );
-                        break;
-                    case "double":
-                        {
-                            double[] dd= new double[l.size()];
-                            int is= l.size();
-                            for (int j = 0; j < is; j++) {
-                                dd[j] = ((Double)l.get(j));
-                            }       arrayResult= dd;
-                            break;
-                        }
-                    case "integer":
-                        {
-                            int[] ii= new int[l.size()];
-                            int is= l.size();
-                            for (int j = 0; j < is; j++) {
-                                ii[j] = ((Integer)l.get(j));
-                            }       arrayResult= ii;
-                            break;
-                        }
-                    default:
-                        throw new IllegalArgumentException("not yet supported: "+type);
-                }                
             }
-            result.put( ss[i], arrayResult );
+            irec=irec+1;
+        }
+        
+        result.put( "_nrec", irec );
+        
+        for ( int i=0; i<nparameters; i++ ) {
+            result.put( ss[i], columns[i].toArray() );
+            columns[i]= null; // allow the flattened arrays to be collected.
         }
 
         return result;
@@ -5,36 +5,101 @@
  */
 package org.hapiserver;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Iterator;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.NoSuchElementException;
-import org.json.JSONArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- *
+ * Iterator for the binary response.  Bytes are read from the channel into
+ * a large block, and each record is a view into this block.  By default
+ * one BinaryHapiRecord is reused for each record (a flyweight), so no
+ * objects are created as records are read, and a record is only valid until
+ * the next call to hasNext or next.  Use setRetainRecords(true), or
+ * BinaryHapiRecord.copy(), when records are kept.
  * @author jbf
  */
-public class HapiClientBinaryIterator implements Iterator<HapiRecord> {
+public class HapiClientBinaryIterator implements CountedIterator<HapiRecord>, Closeable {
+    
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+    
+    /**
+     * the default size of the read buffer, 1MB.
+     */
+    public static final int DEFAULT_BLOCK_SIZE_BYTES= 1024*1024;
     
-    ByteBuffer nextRecord;
     JSONObject info;
-    InputStream ins;
+    ReadableByteChannel channel;
     BinaryHapiRecordConverter converter;
-    byte[] buff;
     int recSize;
     
+    /**
+     * block of records, ready for reading from position to limit.
+     */
+    ByteBuffer block;
+    
+    /**
+     * true when the channel has no more data.
+     */
+    boolean eof;
+    
+    /**
+     * the record which is reset for each record read.
+     */
+    BinaryHapiRecord record;
+    
+    /**
+     * return copies of each record, which can be kept.
+     */
+    boolean retainRecords= false;
+    
+    /**
+     * the number of records in the stream, or -1 if not known.
+     */
+    long recordCount= -1;
+    
+    /**
+     * create an iterator for the binary stream, using the default block size.
+     * @param info the info describing the fields.
+     * @param ins the binary stream.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException when the JSON is mis-formatted.
+     */
     public HapiClientBinaryIterator(JSONObject info, InputStream ins) throws IOException, JSONException {
-        this.ins= ins;
+        this( info, Channels.newChannel(ins), DEFAULT_BLOCK_SIZE_BYTES, false );
+    }
+    
+    /**
+     * create an iterator for the binary channel.
+     * @param info the info describing the fields.
+     * @param channel the binary stream.
+     * @param blockSizeBytes the size of the read buffer, which is rounded down 
+     *    to a whole number of records.
+     * @param direct if true, use a direct buffer rather than a heap buffer.
+     * @throws IOException when there is an issue reading the data.
+     * @throws org.json.JSONException when the JSON is mis-formatted.
+     */
+    public HapiClientBinaryIterator(JSONObject info, ReadableByteChannel channel, 
+            int blockSizeBytes, boolean direct ) throws IOException, JSONException {
+        this.info= info;
+        this.channel= channel;
         converter= new BinaryHapiRecordConverter(info);
         this.recSize= converter.getRecordSizeBytes();
-        this.buff= new byte[recSize];
-        this.nextRecord= readNextRecord( buff, recSize );
+        int capacity= Math.max( recSize, ( blockSizeBytes / recSize ) * recSize );
+        this.block= direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        this.block.order(ByteOrder.LITTLE_ENDIAN);
+        this.block.flip(); // nothing to read yet.
+        this.eof= false;
+        this.record= converter.convert( block, 0 );
+        readNextBlock();
 //        if ( this.nextLine!=null && this.nextLine.startsWith("{") ) {
 //            StringBuilder b= new StringBuilder(this.nextLine);
 //            this.nextLine= readJSON( reader, b );
@@ -58,49 +123,136 @@ public class HapiClientBinaryIterator implements Iterator<HapiRecord> {
         
     }
 
-    private ByteBuffer readNextRecord( byte[] buff, int recSize ) throws IOException {
-        int bytesRead= ins.read( buff, 0, recSize );
-        int totalBytesRead= bytesRead;
-        if ( bytesRead==-1 ) {
-            return null;
-        } else {
-            while ( totalBytesRead<recSize ) {
-                bytesRead= ins.read( buff, bytesRead, recSize-bytesRead );
-                if ( bytesRead==-1 ) {
-                    throw new IllegalArgumentException("partial record read");
-                }
-                totalBytesRead+= bytesRead;
+    /**
+     * move any partial record to the beginning of the block and fill the 
+     * remainder from the channel, so that the block contains at least one 
+     * record, unless the end of the stream is reached.  Note this invalidates 
+     * the record most recently returned.
+     * @throws IOException 
+     */
+    private void readNextBlock() throws IOException {
+        block.compact();
+        while ( block.hasRemaining() ) {
+            if ( channel.read(block)==-1 ) {
+                eof= true;
+                break;
             }
-            ByteBuffer result= ByteBuffer.wrap(buff);
-            result.order(ByteOrder.LITTLE_ENDIAN);
-            return result;
         }
-        
+        block.flip();
+        if ( eof ) {
+            if ( block.remaining()==0 ) {
+                channel.close();
+            } else if ( block.remaining()<recSize ) {
+                channel.close();
+                throw new IllegalArgumentException("partial record read");
+            }
+        }
+    }
+    
+    /**
+     * return copies of each record, which can be kept after the iterator is 
+     * advanced.  By default, one record is reused, and is only valid until
+     * the next call to hasNext or next.
+     * @param retainRecords true if copies of each record should be returned.
+     */
+    public void setRetainRecords( boolean retainRecords ) {
+        this.retainRecords= retainRecords;
+    }
+    
+    /**
+     * return true if copies of each record are returned.
+     * @return true if copies of each record are returned.
+     * @see #setRetainRecords(boolean) 
+     */
+    public boolean isRetainRecords() {
+        return this.retainRecords;
+    }
+    
+    /**
+     * indicate the total number of bytes in the stream, for example from the
+     * Content-Length of an uncompressed response, so that the number of 
+     * records is known.
+     * @param length the number of bytes, or -1 if not known.
+     */
+    void setContentLength( long length ) {
+        if ( length<0 ) {
+            this.recordCount= -1;
+        } else {
+            this.recordCount= length / recSize;
+        }
+    }
+    
+    @Override
+    public long getCount() {
+        return recordCount;
     }
     
     @Override
     public boolean hasNext() {
-        boolean result = nextRecord != null;
-        return result;
+        if ( block.remaining()>=recSize ) {
+            return true;
+        } else if ( eof ) {
+            return false;
+        } else {
+            try {
+                readNextBlock();
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+            return block.remaining()>=recSize;
+        }
     }
 
     @Override
     public HapiRecord next() {
-        if (this.nextRecord == null) {
+        if ( !hasNext() ) {
             throw new NoSuchElementException("No more records");
         }
-        
-        HapiRecord result = this.converter.convert(this.nextRecord);
-        result.getDouble(1);
+        int position= block.position();
+        record.reset( block, position );
+        block.position( position + recSize );
+        if ( retainRecords ) {
+            return record.copy();
+        } else {
+            return record;
+        }
+    }
+    
+    /**
+     * read records directly into the block, without using HapiRecords, 
+     * until the block is full or the stream is empty.
+     * @param records the block which receives the records.
+     * @return the number of records read, which is zero when the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     */
+    public int readBlock( HapiRecordBlock records ) throws IOException {
+        int n= 0;
+        while ( !records.isFull() ) {
+            if ( block.remaining()<recSize ) {
+                if ( eof ) break;
+                readNextBlock();
+                if ( block.remaining()<recSize ) break;
+            }
+            int position= block.position();
+            converter.convert( block, position, records );
+            block.position( position + recSize );
+            n++;
+        }
+        return n;
+    }
+    
+    /**
+     * close the response, when the records will not be read to the end.
+     */
+    @Override
+    public void close() {
+        eof= true;
+        block.position( block.limit() );
         try {
-            this.nextRecord= readNextRecord( buff, recSize );
-
-        } catch (IOException ex) {
-            throw new IllegalArgumentException(ex);
+            channel.close();
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, null, ex);
         }
-
-        return result;
-
     }
     
 }
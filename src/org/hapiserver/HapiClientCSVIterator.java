@@ -2,9 +2,11 @@
 package org.hapiserver;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,7 +15,7 @@ import org.json.JSONObject;
  *
  * @author jbf
  */
-public class HapiClientCSVIterator implements Iterator<HapiRecord> {
+public class HapiClientCSVIterator implements Iterator<HapiRecord>, Closeable {
     
     private static final Logger logger= Logger.getLogger("org.hapiserver");
     
@@ -22,6 +24,11 @@ public class HapiClientCSVIterator implements Iterator<HapiRecord> {
     BufferedReader reader;
     CSVHapiRecordConverter converter;
     
+    /**
+     * characters of the line, reused when reading blocks.
+     */
+    char[] lineBuffer= new char[1024];
+    
     /**
      * because JSON has been detected in the first line, read the rest of the
      * content from the BufferedReader.  Lines are read into builder, and a 
@@ -96,4 +103,42 @@ public class HapiClientCSVIterator implements Iterator<HapiRecord> {
         return (HapiRecord) result;
     }
     
+    /**
+     * read records directly into the block, without creating HapiRecords, 
+     * until the block is full or the stream is empty.
+     * @param block the block which receives the records.
+     * @return the number of records read, which is zero when the stream is empty.
+     * @throws IOException when there is an issue reading the data.
+     */
+    public int readBlock( HapiRecordBlock block ) throws IOException {
+        int n= 0;
+        while ( nextLine!=null && !block.isFull() ) {
+            int len= nextLine.length();
+            if ( lineBuffer.length<len ) {
+                lineBuffer= new char[len*2];
+            }
+            nextLine.getChars( 0, len, lineBuffer, 0 );
+            converter.convert( lineBuffer, 0, len, block );
+            n++;
+            nextLine = reader.readLine();
+            if ( nextLine==null ) {
+                reader.close();
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * close the response, when the records will not be read to the end.
+     */
+    @Override
+    public void close() {
+        nextLine= null;
+        try {
+            reader.close();
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, null, ex);
+        }
+    }
+    
 }
@@ -26,6 +26,17 @@ public interface HapiRecord {
      */
     String[] getIsoTimeArray(int i);
     
+    /**
+     * returns the time as nanoseconds since 1970-01-01T00:00Z.  Records
+     * may decode the time directly, without creating a String.
+     * @param i the index of the column
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     * @see TimeUtil#toNanosecondsSince1970(java.lang.String) 
+     */
+    default long getNanosecondsSince1970(int i) {
+        return TimeUtil.toNanosecondsSince1970( getIsoTime(i) );
+    }
+    
     /**
      * get the string value
      * @param i the index of the column
@@ -56,6 +67,18 @@ public interface HapiRecord {
      */
     double[] getDoubleArray(int i);
 
+    /**
+     * copy the data into the array provided, so that no array is created.
+     * Note that a [n,m] element array will be n*m elements.
+     * @param i the index of the column
+     * @param dest the array to receive the data
+     * @param off the index of the first element within dest.
+     */
+    default void getDoubleArray(int i, double[] dest, int off) {
+        double[] dd= getDoubleArray(i);
+        System.arraycopy( dd, 0, dest, off, dd.length );
+    }
+
     /**
      * get the integer
      * @param i the index of the column
@@ -71,6 +94,18 @@ public interface HapiRecord {
      */
     int[] getIntegerArray(int i);
 
+    /**
+     * copy the data into the array provided, so that no array is created.
+     * Note that a [n,m] element array will be n*m elements.
+     * @param i the index of the column
+     * @param dest the array to receive the data
+     * @param off the index of the first element within dest.
+     */
+    default void getIntegerArray(int i, int[] dest, int off) {
+        int[] ii= getIntegerArray(i);
+        System.arraycopy( ii, 0, dest, off, ii.length );
+    }
+
     /**
      * get the value as a formatted value.
      * @param i the index of the column
@@ -0,0 +1,279 @@
+
+package org.hapiserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A block of records stored as one primitive array for each parameter, so
+ * that many records can be read without creating an object for each record
+ * or each value.  Array parameters are flattened, so that element j of
+ * record k of a parameter with n elements is at index k*n+j.  Times are
+ * stored as nanoseconds since 1970-01-01T00:00Z, doubles as double[],
+ * integers as int[], and strings as String[].  For example, in Jython:
+ * <pre>
+ * {@code
+ * it= HapiClient().getDataBlocks( hapiServer, 'Spectrum', 'Time,Spectra', '2016-01-01T00:00', '2016-01-02T00:00', 10000 )
+ * while it.hasNext():
+ *    block= it.next()
+ *    tt= block.getTimes(0)
+ *    ss= block.getDoubles(1)
+ *    print block.size(), block.getElementCount(1)
+ * }
+ * </pre>
+ * @author jbf
+ */
+public class HapiRecordBlock {
+
+    private final int capacity;
+
+    private int nrec;
+
+    private final ParameterSchema schema;
+
+    private final String[] names;
+
+    private final ParameterSchema.Type[] types;
+
+    /**
+     * the number of elements of each parameter in each record.
+     */
+    private final int[] sizes;
+
+    /**
+     * the arrays containing the data, one for each parameter.
+     */
+    private final Object[] columns;
+
+    /**
+     * create a block to hold up to capacity records.
+     * @param info the info describing the parameters.
+     * @param capacity the maximum number of records.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    public HapiRecordBlock( JSONObject info, int capacity ) throws JSONException {
+        if ( capacity<1 ) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.schema= ParameterSchema.of(info);
+        int n= schema.getParameterCount();
+        this.capacity= capacity;
+        this.names= schema.names;
+        this.types= schema.types;
+        this.sizes= schema.sizes;
+        this.columns= new Object[n];
+        for ( int i=0; i<n; i++ ) {
+            int len= capacity * sizes[i];
+            switch ( types[i] ) {
+                case ISOTIME:
+                    columns[i]= new long[len];
+                    break;
+                case DOUBLE:
+                    columns[i]= new double[len];
+                    break;
+                case INTEGER:
+                    columns[i]= new int[len];
+                    break;
+                case STRING:
+                    columns[i]= new String[len];
+                    break;
+                default:
+                    throw new IllegalArgumentException("not supported: "+types[i]);
+            }
+        }
+        this.nrec= 0;
+    }
+
+    /**
+     * return the number of records in the block.
+     * @return the number of records in the block.
+     */
+    public int size() {
+        return nrec;
+    }
+
+    /**
+     * return the maximum number of records the block can hold.
+     * @return the maximum number of records the block can hold.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * return true if no more records can be added.
+     * @return true if no more records can be added.
+     */
+    public boolean isFull() {
+        return nrec==capacity;
+    }
+
+    /**
+     * return the number of parameters.
+     * @return the number of parameters.
+     */
+    public int getParameterCount() {
+        return names.length;
+    }
+
+    /**
+     * return the name of the parameter.
+     * @param i the index of the parameter.
+     * @return the name of the parameter.
+     */
+    public String getName( int i ) {
+        return names[i];
+    }
+
+    /**
+     * return the HAPI type of the parameter, "isotime", "double", "integer" or "string".
+     * @param i the index of the parameter.
+     * @return the HAPI type of the parameter.
+     */
+    public String getType( int i ) {
+        return types[i].toString();
+    }
+
+    /**
+     * return the schema of the parameters.
+     * @return the schema of the parameters.
+     */
+    public ParameterSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * return the number of elements for each record, which is the product
+     * of the parameter's size, or 1 for scalars.
+     * @param i the index of the parameter.
+     * @return the number of elements for each record.
+     */
+    public int getElementCount( int i ) {
+        return sizes[i];
+    }
+
+    /**
+     * return the times, as nanoseconds since 1970-01-01T00:00Z.  Only the first
+     * size()*getElementCount(i) elements are valid.
+     * @param i the index of an isotime parameter.
+     * @return the times.
+     */
+    public long[] getTimes( int i ) {
+        checkType( i, ParameterSchema.Type.ISOTIME );
+        return (long[])columns[i];
+    }
+
+    /**
+     * return the doubles.  Only the first size()*getElementCount(i) elements
+     * are valid.
+     * @param i the index of a double parameter.
+     * @return the doubles.
+     */
+    public double[] getDoubles( int i ) {
+        checkType( i, ParameterSchema.Type.DOUBLE );
+        return (double[])columns[i];
+    }
+
+    /**
+     * return the integers.  Only the first size()*getElementCount(i) elements
+     * are valid.
+     * @param i the index of an integer parameter.
+     * @return the integers.
+     */
+    public int[] getIntegers( int i ) {
+        checkType( i, ParameterSchema.Type.INTEGER );
+        return (int[])columns[i];
+    }
+
+    /**
+     * return the strings.  Only the first size()*getElementCount(i) elements
+     * are valid.
+     * @param i the index of a string parameter.
+     * @return the strings.
+     */
+    public String[] getStrings( int i ) {
+        checkType( i, ParameterSchema.Type.STRING );
+        return (String[])columns[i];
+    }
+
+    private void checkType( int i, ParameterSchema.Type type ) {
+        if ( types[i]!=type ) {
+            throw new IllegalArgumentException("parameter "+names[i]+" has type "+types[i]+", not "+type);
+        }
+    }
+
+    /**
+     * return the array for the parameter, used by decoders to fill the block.
+     * @param i the index of the parameter.
+     * @return the array.
+     */
+    Object getColumn( int i ) {
+        return columns[i];
+    }
+
+    /**
+     * remove all records, so the block can be reused.
+     */
+    void clear() {
+        nrec= 0;
+    }
+
+    /**
+     * indicate that the decoder has filled another record.
+     */
+    void incrementSize() {
+        if ( nrec==capacity ) {
+            throw new IllegalStateException("block is full");
+        }
+        nrec++;
+    }
+
+    /**
+     * add the record to the block.  This is used when records are not read
+     * from a decoder which can fill the block directly.
+     * @param rec the record.
+     */
+    void add( HapiRecord rec ) {
+        for ( int i=0; i<columns.length; i++ ) {
+            int n= sizes[i];
+            int off= nrec*n;
+            switch ( types[i] ) {
+                case ISOTIME:
+                    long[] tt= (long[])columns[i];
+                    if ( n==1 ) {
+                        tt[off]= rec.getNanosecondsSince1970(i);
+                    } else {
+                        String[] ss= rec.getIsoTimeArray(i);
+                        for ( int j=0; j<n; j++ ) {
+                            tt[off+j]= TimeUtil.toNanosecondsSince1970( ss[j] );
+                        }
+                    }
+                    break;
+                case DOUBLE:
+                    if ( n==1 ) {
+                        ((double[])columns[i])[off]= rec.getDouble(i);
+                    } else {
+                        rec.getDoubleArray( i, (double[])columns[i], off );
+                    }
+                    break;
+                case INTEGER:
+                    if ( n==1 ) {
+                        ((int[])columns[i])[off]= rec.getInteger(i);
+                    } else {
+                        rec.getIntegerArray( i, (int[])columns[i], off );
+                    }
+                    break;
+                case STRING:
+                    if ( n==1 ) {
+                        ((String[])columns[i])[off]= rec.getString(i);
+                    } else {
+                        System.arraycopy( rec.getStringArray(i), 0, columns[i], off, n );
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("not supported: "+types[i]);
+            }
+        }
+        incrementSize();
+    }
+}
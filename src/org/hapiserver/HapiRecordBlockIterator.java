@@ -0,0 +1,84 @@
+
+package org.hapiserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Iterator which collects records into blocks of primitive arrays.  When
+ * the source is HapiClientCSVIterator or HapiClientBinaryIterator, the
+ * decoder fills each block directly, and no HapiRecords are created.
+ * Other sources are read record-by-record.  A new block is returned by each
+ * call to next, so blocks may be kept.
+ * @author jbf
+ */
+public class HapiRecordBlockIterator implements Iterator<HapiRecordBlock>, Closeable {
+
+    private final JSONObject info;
+    private final Iterator<HapiRecord> source;
+    private final int blockSize;
+    private HapiRecordBlock nextBlock;
+
+    /**
+     * create an iterator which reads blocks from the source.
+     * @param info the info describing the parameters of the source.
+     * @param source the records.
+     * @param blockSize the maximum number of records in each block.
+     */
+    public HapiRecordBlockIterator( JSONObject info, Iterator<HapiRecord> source, int blockSize ) {
+        this.info= info;
+        this.source= source;
+        this.blockSize= blockSize;
+        this.nextBlock= null;
+    }
+
+    private HapiRecordBlock readBlock() throws IOException, JSONException {
+        HapiRecordBlock block= new HapiRecordBlock( info, blockSize );
+        if ( source instanceof HapiClientCSVIterator ) {
+            ((HapiClientCSVIterator)source).readBlock(block);
+        } else if ( source instanceof HapiClientBinaryIterator ) {
+            ((HapiClientBinaryIterator)source).readBlock(block);
+        } else {
+            while ( !block.isFull() && source.hasNext() ) {
+                block.add( source.next() );
+            }
+        }
+        return block.size()==0 ? null : block;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if ( nextBlock==null ) {
+            try {
+                nextBlock= readBlock();
+            } catch ( IOException | JSONException ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        return nextBlock!=null;
+    }
+
+    @Override
+    public HapiRecordBlock next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        HapiRecordBlock result= nextBlock;
+        nextBlock= null;
+        return result;
+    }
+
+    /**
+     * close the source, when the blocks will not be read to the end.
+     */
+    @Override
+    public void close() {
+        nextBlock= null;
+        HapiClient.close( source );
+    }
+
+}
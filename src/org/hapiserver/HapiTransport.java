@@ -0,0 +1,81 @@
+
+package org.hapiserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * The connection to HAPI servers, used for all requests made by a
+ * HapiClient, so that connections can be shared and limited.  The default
+ * is {@link URLConnectionTransport}, which keeps connections alive, and
+ * can limit the number of connections to each server.
+ * @author jbf
+ * @see HapiClient#setTransport(org.hapiserver.HapiTransport)
+ */
+public interface HapiTransport {
+
+    /**
+     * the response to a request, which must be closed when it is no longer
+     * needed, so that its connection can be used for the next request.
+     * Closing the stream returned by getInputStream closes the response.
+     */
+    interface Response extends Closeable {
+
+        /**
+         * return the HTTP status code, like 200 or 304.  The request is sent
+         * when this or getInputStream is first called.
+         * @return the status code, or -1 when the response is not HTTP.
+         * @throws IOException when the server cannot be reached.
+         */
+        int getResponseCode() throws IOException;
+
+        /**
+         * return the value of the response header.
+         * @param name the header name, like "Content-Encoding"
+         * @return the value, or null if the header is not present.
+         */
+        String getHeader( String name );
+
+        /**
+         * return the length of the content.
+         * @return the length in bytes, or -1 if it is not known.
+         */
+        long getContentLength();
+
+        /**
+         * return the content of the response.
+         * @return the content.
+         * @throws IOException when the server cannot be reached, or returns an error code.
+         */
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * return the content sent with an error code, which is often a JSON
+         * status describing the error.
+         * @return the content, or null if there is none.
+         */
+        InputStream getErrorStream();
+
+        /**
+         * release the connection.  This does not throw IOException.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * make a GET request.
+     * @param url the URL
+     * @param headers request headers, or null.
+     * @param connectTimeoutMs the number of milliseconds allowed to connect.
+     * @param readTimeoutMs the number of milliseconds allowed for each read.
+     * @return the response, which must be closed.
+     * @throws IOException when the request cannot be made.
+     */
+    Response get( URL url, Map<String,String> headers, int connectTimeoutMs, int readTimeoutMs )
+            throws IOException;
+
+}
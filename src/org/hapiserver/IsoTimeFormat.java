@@ -0,0 +1,236 @@
+
+package org.hapiserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Precompiled form of an isoTime, such as $Y-$jT$H:$MZ or
+ * $Y-$m-$dT$H:$M:$S.$(subsec,places=3)Z, derived once from an example time.
+ * Times are formatted by writing digits into a char array, so that times
+ * can be reformatted or compared with the times of a stream without
+ * creating objects for each record.  Times formatted this way sort as
+ * strings, so the raw characters or bytes of a record's time can be
+ * compared directly with precomputed bounds.  Years must be from 0000 to 9999.
+ * @author jbf
+ */
+public final class IsoTimeFormat {
+
+    private final boolean dayOfYear;
+
+    /**
+     * the number of characters before the Z.
+     */
+    private final int digitsLength;
+
+    private final boolean trailingZ;
+
+    /**
+     * the separators of the longest form, into which the digits are written.
+     */
+    private final char[] template;
+
+    /**
+     * create the format from an example time.
+     * @param exampleForm isoTime string, like 2020-01-01T00:00Z or 2020-001T00:00:00.000Z
+     * @throws IllegalArgumentException when the example is not an isoTime.
+     */
+    public IsoTimeFormat( String exampleForm ) {
+        int n= exampleForm.length();
+        if ( n<8 || exampleForm.charAt(4)!='-' ) {
+            throw new IllegalArgumentException("example is not an isoTime: "+exampleForm);
+        }
+        this.trailingZ= exampleForm.charAt(n-1)=='Z';
+        this.digitsLength= trailingZ ? n-1 : n;
+        this.dayOfYear= isDayOfYear( exampleForm, digitsLength );
+        this.template= ( dayOfYear ? "0000-000T00:00:00.000000000" : "0000-00-00T00:00:00.000000000" ).toCharArray();
+        if ( digitsLength>template.length ) {
+            throw new IllegalArgumentException("example is too long: "+exampleForm);
+        }
+    }
+
+    /**
+     * true if the time uses $Y-$j rather than $Y-$m-$d.
+     */
+    private static boolean isDayOfYear( CharSequence time, int n ) {
+        return n==8 || ( n>8 && time.charAt(8)=='T' );
+    }
+
+    /**
+     * return true if the time has exactly the form of this format, so that
+     * reformatting the time would not change it.
+     * @param time an isoTime
+     * @return true if the time has the same form.
+     */
+    public boolean matches( CharSequence time ) {
+        int n= time.length();
+        if ( n!=length() || n<8 || time.charAt(4)!='-' ) {
+            return false;
+        }
+        if ( trailingZ!=( time.charAt(n-1)=='Z' ) ) {
+            return false;
+        }
+        if ( dayOfYear!=isDayOfYear( time, digitsLength ) ) {
+            return false;
+        }
+        // hour 24 must be moved into the next day.
+        int h= dayOfYear ? 9 : 11;
+        return !( digitsLength>h+1 && time.charAt(h)=='2' && time.charAt(h+1)=='4' );
+    }
+
+    /**
+     * return the number of characters of each formatted time.
+     * @return the number of characters
+     */
+    public int length() {
+        return trailingZ ? digitsLength+1 : digitsLength;
+    }
+
+    /**
+     * return true if times are formatted with day of year, $Y-$j.
+     * @return true if times are formatted with day of year.
+     */
+    public boolean isDayOfYear() {
+        return dayOfYear;
+    }
+
+    /**
+     * write the digits of the value into dest, skipping characters at or
+     * beyond the end of the format.
+     */
+    private int put( char[] dest, int off, int pos, int value, int ndigits ) {
+        for ( int i=ndigits-1; i>=0; i-- ) {
+            if ( pos+i<digitsLength ) {
+                dest[off+pos+i]= (char)( '0' + value % 10 );
+            }
+            value= value / 10;
+        }
+        if ( pos+ndigits<digitsLength ) {
+            return pos+ndigits+1;
+        } else {
+            return pos+ndigits;
+        }
+    }
+
+    /**
+     * format the time into the array, truncating to the precision of the
+     * format.  No objects are created.
+     * @param nanos nanoseconds since 1970-01-01T00:00Z, as from TimeUtil.toNanosecondsSince1970
+     * @param dest the array, which must have room for length() characters after off.
+     * @param off the index of the first character.
+     * @return the number of characters written, which is length().
+     */
+    public int format( long nanos, char[] dest, int off ) {
+        long days= Math.floorDiv( nanos, 86400000000000L );
+        long nanosOfDay= nanos - days * 86400000000000L;
+
+        // convert days to year, month, and day, see http://howardhinnant.github.io/date_algorithms.html
+        long z= days + 719468;
+        long era= Math.floorDiv( z, 146097 );
+        int doe= (int)( z - era * 146097 );
+        int yoe= ( doe - doe/1460 + doe/36524 - doe/146096 ) / 365;
+        int doy= doe - ( 365*yoe + yoe/4 - yoe/100 );
+        int mp= ( 5*doy + 2 ) / 153;
+        int day= doy - ( 153*mp + 2 ) / 5 + 1;
+        int month= mp<10 ? mp+3 : mp-9;
+        int year= (int)( yoe + era*400 ) + ( month<=2 ? 1 : 0 );
+        if ( year<0 || year>9999 ) {
+            throw new IllegalArgumentException("year must be from 0000 to 9999: "+year);
+        }
+
+        for ( int i=0; i<digitsLength; i++ ) {
+            dest[off+i]= template[i];
+        }
+
+        int pos= put( dest, off, 0, year, 4 );
+        if ( dayOfYear ) {
+            pos= put( dest, off, pos, TimeUtil.dayOfYear( year, month, day ), 3 );
+        } else {
+            pos= put( dest, off, pos, month, 2 );
+            pos= put( dest, off, pos, day, 2 );
+        }
+        int seconds= (int)( nanosOfDay / 1000000000L );
+        pos= put( dest, off, pos, seconds / 3600, 2 );
+        pos= put( dest, off, pos, ( seconds / 60 ) % 60, 2 );
+        pos= put( dest, off, pos, seconds % 60, 2 );
+        put( dest, off, pos, (int)( nanosOfDay % 1000000000L ), 9 );
+
+        if ( trailingZ ) {
+            dest[off+digitsLength]= 'Z';
+        }
+        return length();
+    }
+
+    /**
+     * format the time.
+     * @param nanos nanoseconds since 1970-01-01T00:00Z, as from TimeUtil.toNanosecondsSince1970
+     * @return the formatted time.
+     */
+    public String format( long nanos ) {
+        char[] buf= new char[length()];
+        format( nanos, buf, 0 );
+        return new String(buf);
+    }
+
+    /**
+     * format the time into a new array, for use as a bound with the compare methods.
+     * @param time any isoTime
+     * @return the formatted time
+     */
+    public char[] formatChars( String time ) {
+        char[] buf= new char[length()];
+        format( TimeUtil.toNanosecondsSince1970(time), buf, 0 );
+        return buf;
+    }
+
+    /**
+     * return the time in this format.  When the time already has the same
+     * form, it is returned without parsing.
+     * @param time any isoTime
+     * @return the time in this format.
+     */
+    public String reformat( String time ) {
+        if ( matches(time) ) {
+            return time;
+        } else {
+            return format( TimeUtil.toNanosecondsSince1970(time) );
+        }
+    }
+
+    /**
+     * compare the time, as ASCII bytes formatted like the bound, with the bound.
+     * Characters beyond the end of the bound, such as trailing nulls, are ignored.
+     * @param buf the buffer, which is not modified.
+     * @param pos the index of the first byte of the time.
+     * @param len the number of bytes of the time.
+     * @param bound the bound, formatted using this format.
+     * @return negative, zero, or positive as the time is less than, equal to,
+     *    or greater than the bound.
+     */
+    public static int compare( ByteBuffer buf, int pos, int len, char[] bound ) {
+        int n= Math.min( len, bound.length );
+        for ( int i=0; i<n; i++ ) {
+            int c= ( buf.get(pos+i) & 0xFF ) - bound[i];
+            if ( c!=0 ) return c;
+        }
+        return 0;
+    }
+
+    /**
+     * compare the time, as characters formatted like the bound, with the bound.
+     * @param time characters containing the time.
+     * @param start the index of the first character of the time.
+     * @param end the index following the last character of the time.
+     * @param bound the bound, formatted using this format.
+     * @return negative, zero, or positive as the time is less than, equal to,
+     *    or greater than the bound.
+     */
+    public static int compare( CharSequence time, int start, int end, char[] bound ) {
+        int n= Math.min( end-start, bound.length );
+        for ( int i=0; i<n; i++ ) {
+            int c= time.charAt(start+i) - bound[i];
+            if ( c!=0 ) return c;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,110 @@
+
+package org.hapiserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-memory cache of parsed JSON responses, such as info and catalog,
+ * shared by all HapiClient instances, so that repeated requests for the
+ * same dataset do not read and parse the response each time.  Responses
+ * are keyed by their URL, the least-recently used response is dropped when
+ * there are too many, and responses older than the client's cache age
+ * limit are not used.  The objects held are shared, and must not be
+ * modified, so copies are made for callers outside of the library.
+ * @author jbf
+ */
+final class JSONResponseCache {
+
+    /**
+     * the number of responses which are kept.
+     */
+    static final int MAX_ENTRIES= 200;
+
+    private static final class Response {
+        final JSONObject value;
+        final long time;
+        Response( JSONObject value, long time ) {
+            this.value= value;
+            this.time= time;
+        }
+    }
+
+    private static final Map<String,Response> entries=
+            new LinkedHashMap<String,Response>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String,Response> eldest ) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private JSONResponseCache() {
+    }
+
+    /**
+     * return the response, or null if it is not cached or is too old.
+     * @param url the URL of the response.
+     * @param maxAgeMillis the age limit of the response.
+     * @return the response, which must not be modified, or null.
+     */
+    static synchronized JSONObject get( String url, long maxAgeMillis ) {
+        Response e= entries.get(url);
+        if ( e==null ) {
+            return null;
+        }
+        if ( System.currentTimeMillis() - e.time > maxAgeMillis ) {
+            entries.remove(url);
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * keep the response.
+     * @param url the URL of the response.
+     * @param value the response, which must not be modified after this.
+     */
+    static synchronized void put( String url, JSONObject value ) {
+        entries.put( url, new Response( value, System.currentTimeMillis() ) );
+    }
+
+    /**
+     * return a copy of the object, so that it can be modified.  This is
+     * much faster than parsing the response again.
+     * @param jo the object
+     * @return the copy.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    static JSONObject copy( JSONObject jo ) throws JSONException {
+        JSONObject result= new JSONObject();
+        Iterator<?> keys= jo.keys();
+        while ( keys.hasNext() ) {
+            String k= (String)keys.next();
+            result.put( k, copyValue( jo.opt(k) ) );
+        }
+        return result;
+    }
+
+    private static JSONArray copy( JSONArray ja ) throws JSONException {
+        JSONArray result= new JSONArray();
+        for ( int i=0; i<ja.length(); i++ ) {
+            result.put( copyValue( ja.opt(i) ) );
+        }
+        return result;
+    }
+
+    private static Object copyValue( Object o ) throws JSONException {
+        if ( o instanceof JSONObject ) {
+            return copy( (JSONObject)o );
+        } else if ( o instanceof JSONArray ) {
+            return copy( (JSONArray)o );
+        } else {
+            return o; // strings, numbers, booleans and null are immutable.
+        }
+    }
+
+}
@@ -2,9 +2,12 @@
 package org.hapiserver;
 
 import com.cottagesystems.util.AbstractLineReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -12,7 +15,9 @@ import org.json.JSONObject;
  * read records from the AbstractLineReader and convert them into HapiRecords.
  * @author jbf
  */
-public class LineReaderHapiRecordIterator implements Iterator<HapiRecord> {
+public class LineReaderHapiRecordIterator implements Iterator<HapiRecord>, Closeable {
+    
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
     
     String nextLine;
     JSONObject info;
@@ -56,4 +61,17 @@ public class LineReaderHapiRecordIterator implements Iterator<HapiRecord> {
         return (HapiRecord) result;
     }
     
+    /**
+     * close the reader, when the records will not be read to the end.
+     */
+    @Override
+    public void close() {
+        nextLine= null;
+        try {
+            reader.close();
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, null, ex);
+        }
+    }
+    
 }
@@ -0,0 +1,284 @@
+
+package org.hapiserver;
+
+import com.cottagesystems.util.AbstractLineReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Iterator which decodes CSV records on several threads.  The characters
+ * are read in large chunks, which are split at the last newline, and each
+ * chunk is decoded on a ForkJoinPool, where its lines are tokenized and
+ * the numbers of double parameters are parsed.  When the stream has no more
+ * characters ready, the lines which have arrived are decoded without 
+ * waiting for the chunk to fill, so records from a slow server are not
+ * delayed.  Records are returned in the order of the stream.  A few chunks
+ * more than the pool has threads are decoded ahead of the consumer, so 
+ * memory use is bounded.  Errors are thrown after the records which 
+ * precede them.
+ * @author jbf
+ */
+class ParallelCSVIterator implements Iterator<HapiRecord>, Closeable {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    /**
+     * the number of characters read for each chunk, which is increased for
+     * lines which are longer.
+     */
+    private static final int CHUNK_CHARS= 131072;
+
+    private static final class Chunk {
+        final char[] buf;
+        final int length;
+        Chunk( char[] buf, int length ) {
+            this.buf= buf;
+            this.length= length;
+        }
+    }
+
+    private static final class Decoded {
+        final HapiRecord[] records;
+        final int size;
+        final RuntimeException exception;
+        Decoded( HapiRecord[] records, int size, RuntimeException exception ) {
+            this.records= records;
+            this.size= size;
+            this.exception= exception;
+        }
+    }
+
+    private final ParameterSchema schema;
+    private final CSVHapiRecordConverter converter;
+    private final ForkJoinPool pool;
+    private final int maxTasks;
+
+    private final Reader reader;
+    private final AbstractLineReader lineReader;
+
+    /**
+     * characters following the last newline of the previous chunk.
+     */
+    private char[] carry= new char[0];
+    private int carryLength= 0;
+
+    private boolean eof= false;
+    private IOException readException= null;
+
+    private final ArrayDeque<ForkJoinTask<Decoded>> tasks= new ArrayDeque<>();
+
+    private Decoded current= null;
+    private int index= 0;
+
+    private ParallelCSVIterator( JSONObject info, Reader reader, AbstractLineReader lineReader, ForkJoinPool pool )
+            throws JSONException {
+        this.schema= ParameterSchema.of(info);
+        this.converter= new CSVHapiRecordConverter(info);
+        this.reader= reader;
+        this.lineReader= lineReader;
+        this.pool= pool;
+        this.maxTasks= pool.getParallelism() + 2;
+    }
+
+    /**
+     * create an iterator for the CSV stream.
+     * @param info the info describing the fields.
+     * @param reader the CSV stream, which is closed at the end.
+     * @param pool the pool which decodes the chunks.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    ParallelCSVIterator( JSONObject info, Reader reader, ForkJoinPool pool ) throws JSONException {
+        this( info, reader, null, pool );
+    }
+
+    /**
+     * create an iterator for the lines, such as the lines of the cache.
+     * @param info the info describing the fields.
+     * @param lineReader the lines, which is closed at the end.
+     * @param pool the pool which decodes the chunks.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    ParallelCSVIterator( JSONObject info, AbstractLineReader lineReader, ForkJoinPool pool ) throws JSONException {
+        this( info, null, lineReader, pool );
+    }
+
+    /**
+     * read the next chunk of whole lines, which is shorter than the chunk
+     * size when the stream has no more characters ready.
+     * @return the characters, which end with a newline except at the end of
+     *    the stream, or null at the end of the stream.
+     */
+    private Chunk readChunk() throws IOException {
+        if ( lineReader!=null ) {
+            StringBuilder b= new StringBuilder( CHUNK_CHARS + 1024 );
+            String line;
+            while ( b.length()<CHUNK_CHARS && ( line= lineReader.readLine() )!=null ) {
+                b.append(line).append('\n');
+            }
+            if ( b.length()<CHUNK_CHARS ) {
+                eof= true;
+                lineReader.close();
+            }
+            if ( b.length()==0 ) return null;
+            char[] buf= new char[b.length()];
+            b.getChars( 0, buf.length, buf, 0 );
+            return new Chunk( buf, buf.length );
+        }
+        char[] buf= new char[ carryLength + CHUNK_CHARS ];
+        System.arraycopy( carry, 0, buf, 0, carryLength );
+        int length= carryLength;
+        int lastNewline= -1;
+        while ( true ) {
+            int n= reader.read( buf, length, buf.length-length );
+            if ( n==-1 ) {
+                eof= true;
+                reader.close();
+                break;
+            }
+            for ( int i=length+n-1; i>=length; i-- ) {
+                if ( buf[i]=='\n' ) {
+                    lastNewline= i;
+                    break;
+                }
+            }
+            length+= n;
+            if ( lastNewline>=0 && length<buf.length && !reader.ready() ) {
+                break;
+            }
+            if ( length==buf.length ) {
+                if ( lastNewline>=0 ) break;
+                char[] t= new char[ buf.length*2 ]; // a line longer than the chunk.
+                System.arraycopy( buf, 0, t, 0, length );
+                buf= t;
+            }
+        }
+        if ( eof ) {
+            carryLength= 0;
+            return length==0 ? null : new Chunk( buf, length );
+        }
+        carryLength= length-lastNewline-1;
+        if ( carry.length<carryLength ) {
+            carry= new char[ Math.max( carryLength, CHUNK_CHARS ) ];
+        }
+        System.arraycopy( buf, lastNewline+1, carry, 0, carryLength );
+        return new Chunk( buf, lastNewline+1 );
+    }
+
+    /**
+     * decode the lines of the chunk into records, which refer to the
+     * characters of the chunk.
+     */
+    private Decoded decode( char[] buf, int length ) {
+        HapiRecord[] records= new HapiRecord[ Math.max( 16, length/64 ) ];
+        int n= 0;
+        int start= 0;
+        try {
+            while ( start<length ) {
+                int end= start;
+                while ( end<length && buf[end]!='\n' ) end++;
+                CSVHapiRecord rec= (CSVHapiRecord)converter.convert( buf, start, end-start );
+                rec.parseDoubles( schema.types );
+                if ( n==records.length ) {
+                    HapiRecord[] t= new HapiRecord[ n*2 ];
+                    System.arraycopy( records, 0, t, 0, n );
+                    records= t;
+                }
+                records[n++]= rec;
+                start= end+1;
+            }
+        } catch ( RuntimeException ex ) {
+            return new Decoded( records, n, ex );
+        }
+        return new Decoded( records, n, null );
+    }
+
+    /**
+     * read chunks and pass them to the pool, until enough are being decoded
+     * or the stream has no more characters ready.
+     */
+    private void submit() {
+        while ( !eof && readException==null && tasks.size()<maxTasks ) {
+            Chunk chunk;
+            try {
+                if ( !tasks.isEmpty() && reader!=null && !reader.ready() ) {
+                    return; // decode the lines which have arrived before waiting for more.
+                }
+                chunk= readChunk();
+            } catch ( IOException ex ) {
+                readException= ex;
+                return;
+            }
+            if ( chunk==null ) return;
+            tasks.add( pool.submit( () -> decode( chunk.buf, chunk.length ) ) );
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( current==null || index==current.size ) {
+            if ( current!=null && current.exception!=null ) {
+                RuntimeException ex= current.exception;
+                close();
+                throw ex;
+            }
+            submit();
+            ForkJoinTask<Decoded> task= tasks.poll();
+            if ( task==null ) {
+                if ( readException!=null ) {
+                    IOException ex= readException;
+                    readException= null;
+                    throw new IllegalArgumentException(ex);
+                }
+                return false;
+            }
+            current= task.join();
+            index= 0;
+        }
+        return true;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        HapiRecord rec= current.records[index];
+        current.records[index++]= null;
+        return rec;
+    }
+
+    /**
+     * stop decoding and close the stream, when the records will not be read
+     * to the end.
+     */
+    @Override
+    public void close() {
+        eof= true;
+        readException= null;
+        current= null;
+        for ( ForkJoinTask<Decoded> task: tasks ) {
+            task.cancel(false);
+        }
+        tasks.clear();
+        try {
+            if ( reader!=null ) {
+                reader.close();
+            } else {
+                lineReader.close();
+            }
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, null, ex);
+        }
+    }
+
+}
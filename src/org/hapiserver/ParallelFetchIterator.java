@@ -0,0 +1,300 @@
+
+package org.hapiserver;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Iterator which reads a time range as a sequence of chunks of whole days,
+ * reading several chunks at once on a fixed pool of threads, and returns
+ * the records in time order.  A chunk is started only when it is within
+ * the concurrency of the chunk being consumed, so that the chunk the consumer
+ * needs is always being read.  Records read ahead of the consumer are held in
+ * memory, and the total held is limited to a budget of bytes, so that
+ * chunks which are read quickly wait for the consumer.  The chunk being
+ * consumed may always add records when the consumer is waiting for it, so
+ * the budget cannot stall the iterator.  Closing the iterator stops the 
+ * threads and drops the records read ahead, so a consumer which stops 
+ * early must close it.
+ * @author jbf
+ */
+class ParallelFetchIterator implements Iterator<HapiRecord>, Closeable {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    /**
+     * the number of records passed from a reading thread to the consumer at once.
+     */
+    private static final int BATCH_SIZE= 1000;
+
+    /**
+     * size assumed for each record when the info does not allow it to be computed.
+     */
+    private static final int DEFAULT_RECORD_BYTES= 256;
+
+    private static final AtomicInteger threadCount= new AtomicInteger();
+
+    private static class Chunk {
+        final String startTime;
+        final String endTime;
+        ArrayDeque<HapiRecord> records= new ArrayDeque<>();
+        boolean done= false;
+        Throwable exception= null;
+        Chunk( String startTime, String endTime ) {
+            this.startTime= startTime;
+            this.endTime= endTime;
+        }
+    }
+
+    private final Object lock= new Object();
+
+    private final Chunk[] chunks;
+    private final ChunkReader reader;
+    private final int concurrency;
+    private final long budgetBytes;
+    private final long recordBytes;
+
+    /**
+     * the number of bytes of records read but not yet consumed.
+     */
+    private long usedBytes= 0;
+
+    /**
+     * true when the iterator was closed, and the threads should stop.
+     */
+    private volatile boolean cancelled= false;
+
+    /**
+     * the index of the chunk being consumed.
+     */
+    private int current= 0;
+
+    /**
+     * records taken from the current chunk, to be returned by next.
+     */
+    private ArrayDeque<HapiRecord> ready= new ArrayDeque<>();
+
+    /**
+     * create the iterator, which starts reading immediately.
+     * @param info the info for the parameters to be read.
+     * @param chunks start and end time of each chunk, in order.
+     * @param reader reads each chunk.
+     * @param concurrency the number of chunks read at once.
+     * @param budgetBytes the approximate number of bytes of records which may be read ahead.
+     */
+    ParallelFetchIterator( JSONObject info, String[][] chunks, ChunkReader reader,
+            int concurrency, long budgetBytes ) {
+        this.chunks= new Chunk[chunks.length];
+        for ( int i=0; i<chunks.length; i++ ) {
+            this.chunks[i]= new Chunk( chunks[i][0], chunks[i][1] );
+        }
+        this.reader= reader;
+        this.concurrency= concurrency;
+        this.budgetBytes= budgetBytes;
+        this.recordBytes= estimateRecordBytes( info );
+        ThreadFactory threadFactory= (Runnable r) -> {
+            Thread t= new Thread( r, "hapiFetch-"+threadCount.incrementAndGet() );
+            t.setDaemon(true);
+            return t;
+        };
+        ExecutorService executor= Executors.newFixedThreadPool( Math.min( concurrency, chunks.length ), threadFactory );
+        for ( int i=0; i<chunks.length; i++ ) {
+            final int ichunk= i;
+            executor.submit( () -> read(ichunk) );
+        }
+        // threads exit once all chunks are read.
+        executor.shutdown();
+    }
+
+    /**
+     * estimate the memory used by each record, which is the size of the
+     * binary record plus some overhead.  CSV records will be somewhat larger.
+     * @param info the info
+     * @return the approximate number of bytes for each record.
+     */
+    private static long estimateRecordBytes( JSONObject info ) {
+        try {
+            return 64 + 2 * new BinaryHapiRecordConverter(info).getRecordSizeBytes();
+        } catch ( JSONException | IllegalArgumentException ex ) {
+            return DEFAULT_RECORD_BYTES;
+        }
+    }
+
+    /**
+     * break the time range into chunks which start and end at day
+     * boundaries, except for the start of the first and the end of the last.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     * @param chunkDays the number of days in each chunk.
+     * @return the start and end time of each chunk.
+     */
+    static String[][] chunkTimeRange( String startTime, String endTime, int chunkDays ) {
+        String[] days;
+        try {
+            days= TimeUtil.countOffDays( startTime, endTime );
+        } catch ( IllegalArgumentException ex ) {
+            return new String[][] { { startTime, endTime } };
+        }
+        int nchunk= ( days.length + chunkDays - 1 ) / chunkDays;
+        if ( nchunk<2 ) {
+            return new String[][] { { startTime, endTime } };
+        }
+        String[][] result= new String[nchunk][];
+        String start= startTime;
+        for ( int i=0; i<nchunk-1; i++ ) {
+            String end= days[(i+1)*chunkDays].substring(0,10) + "T00:00Z";
+            result[i]= new String[] { start, end };
+            start= end;
+        }
+        result[nchunk-1]= new String[] { start, endTime };
+        return result;
+    }
+
+    /**
+     * read all the records of the chunk, passing them to the consumer in batches.
+     * @param ichunk the index of the chunk.
+     */
+    private void read( int ichunk ) {
+        Chunk chunk= chunks[ichunk];
+        Throwable exception= null;
+        Iterator<HapiRecord> it= null;
+        try {
+            synchronized ( lock ) {
+                while ( !cancelled && ichunk>=current+concurrency ) {
+                    lock.wait();
+                }
+            }
+            if ( cancelled ) {
+                return;
+            }
+            logger.log(Level.FINE, "reading chunk {0}/{1}", new Object[] { chunk.startTime, chunk.endTime } );
+            it= reader.read( chunk.startTime, chunk.endTime );
+            List<HapiRecord> batch= new ArrayList<>(BATCH_SIZE);
+            while ( !cancelled && it.hasNext() ) {
+                HapiRecord rec= it.next();
+                if ( rec instanceof BinaryHapiRecord ) {
+                    rec= ((BinaryHapiRecord)rec).copy(); // the reader reuses its record.
+                }
+                batch.add(rec);
+                if ( batch.size()==BATCH_SIZE ) {
+                    if ( !offer( ichunk, batch ) ) {
+                        break;
+                    }
+                    batch.clear();
+                }
+            }
+            offer( ichunk, batch );
+        } catch ( Throwable ex ) { // errors too, so that the chunk is not taken as complete.
+            exception= ex;
+        } finally {
+            HapiClient.close( it );
+            synchronized ( lock ) {
+                chunk.exception= exception;
+                chunk.done= true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * add the records to the chunk, waiting while they would exceed the
+     * budget, unless the consumer is waiting for this chunk.
+     * @param ichunk the index of the chunk.
+     * @param batch the records.
+     * @return false if the iterator was closed, and no more records are wanted.
+     */
+    private boolean offer( int ichunk, List<HapiRecord> batch ) throws InterruptedException {
+        if ( batch.isEmpty() ) return true;
+        long bytes= batch.size() * recordBytes;
+        Chunk chunk= chunks[ichunk];
+        synchronized ( lock ) {
+            while ( !cancelled && usedBytes+bytes>budgetBytes && !( ichunk==current && chunk.records.isEmpty() ) ) {
+                lock.wait();
+            }
+            if ( cancelled ) {
+                return false;
+            }
+            chunk.records.addAll(batch);
+            usedBytes+= bytes;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if ( !ready.isEmpty() ) {
+            return true;
+        }
+        synchronized ( lock ) {
+            while ( !cancelled && current<chunks.length ) {
+                Chunk chunk= chunks[current];
+                while ( chunk.records.isEmpty() && !chunk.done && !cancelled ) {
+                    try {
+                        lock.wait();
+                    } catch ( InterruptedException ex ) {
+                        close();
+                        Thread.currentThread().interrupt();
+                        throw new IllegalArgumentException(ex);
+                    }
+                }
+                if ( !chunk.records.isEmpty() ) {
+                    ArrayDeque<HapiRecord> t= ready;
+                    ready= chunk.records;
+                    chunk.records= t;
+                    usedBytes-= ready.size() * recordBytes;
+                    lock.notifyAll();
+                    return true;
+                }
+                if ( chunk.exception!=null ) {
+                    close();
+                    throw new IllegalArgumentException( chunk.exception );
+                }
+                current++;
+                lock.notifyAll();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        return ready.poll();
+    }
+
+    /**
+     * stop reading, when the records will not be read to the end.  Chunks 
+     * which are being read are closed, those not yet started are not read,
+     * and the records read ahead are dropped.  The threads are not 
+     * interrupted, so that each can close its records, which may wait for 
+     * files to be written into the cache.
+     */
+    @Override
+    public void close() {
+        synchronized ( lock ) {
+            cancelled= true;
+            for ( Chunk chunk: chunks ) {
+                chunk.records.clear();
+            }
+            usedBytes= 0;
+            ready.clear();
+            lock.notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+
+package org.hapiserver;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The parameters of an info response, read once into arrays, so that the
+ * readers and writers of records do not look into the JSON for each request.
+ * Array parameters are flattened, so each parameter has a number of
+ * elements, and each element has a fixed number of bytes in binary records.
+ * Schemas are immutable, and {@link #of(org.json.JSONObject)} returns the
+ * same schema each time it is called with the same info object.
+ * @author jbf
+ */
+public final class ParameterSchema {
+
+    /**
+     * the HAPI types of parameters.
+     */
+    public enum Type {
+        ISOTIME("isotime"),
+        STRING("string"),
+        DOUBLE("double"),
+        INTEGER("integer");
+
+        private final String name;
+
+        Type( String name ) {
+            this.name= name;
+        }
+
+        /**
+         * return the type with the name used in the info response.
+         * @param name "isotime", "string", "double", or "integer"
+         * @return the type
+         * @throws IllegalArgumentException if the type is not supported.
+         */
+        public static Type fromName( String name ) {
+            for ( Type t: values() ) {
+                if ( t.name.equals(name) ) return t;
+            }
+            throw new IllegalArgumentException("not supported: "+name);
+        }
+
+        /**
+         * return the name used in the info response, like "isotime".
+         * @return the name used in the info response
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final Map<JSONObject,ParameterSchema> schemas= new WeakHashMap<>();
+
+    final String[] names;
+    final Type[] types;
+
+    /**
+     * the number of elements of each parameter, which is the product of its size.
+     */
+    final int[] sizes;
+
+    /**
+     * the number of bytes of each element in binary records, or 0 when the
+     * length of an isotime or string parameter is not given.
+     */
+    final int[] lengths;
+
+    /**
+     * the position of each parameter within binary records.
+     */
+    final int[] offsets;
+
+    final int recordSize;
+
+    /**
+     * the index of the first column of each parameter in CSV records.
+     */
+    final int[] firstColumn;
+
+    /**
+     * the number of columns of CSV records, where each element is a column.
+     */
+    final int ncolumns;
+
+    private final String[] fills;
+    private final String[] units;
+
+    private ParameterSchema( JSONObject info ) throws JSONException {
+        JSONArray params= info.getJSONArray("parameters");
+        int n= params.length();
+        names= new String[n];
+        types= new Type[n];
+        sizes= new int[n];
+        lengths= new int[n];
+        offsets= new int[n];
+        firstColumn= new int[n];
+        fills= new String[n];
+        units= new String[n];
+        int offset= 0;
+        int icol= 0;
+        for ( int i=0; i<n; i++ ) {
+            JSONObject jo= params.getJSONObject(i);
+            names[i]= jo.getString("name");
+            types[i]= Type.fromName( jo.getString("type") );
+            switch ( types[i] ) {
+                case DOUBLE:
+                    lengths[i]= 8;
+                    break;
+                case INTEGER:
+                    lengths[i]= 4;
+                    break;
+                default:
+                    lengths[i]= jo.optInt("length",0);
+                    break;
+            }
+            int size= 1;
+            if ( jo.has("size") ) {
+                JSONArray a= jo.getJSONArray("size");
+                for ( int j=0; j<a.length(); j++ ) {
+                    size*= a.getInt(j);
+                }
+            }
+            sizes[i]= size;
+            offsets[i]= offset;
+            offset+= size * lengths[i];
+            firstColumn[i]= icol;
+            icol+= size;
+            fills[i]= optString( jo, "fill" );
+            units[i]= optString( jo, "units" );
+        }
+        recordSize= offset;
+        ncolumns= icol;
+    }
+
+    private static String optString( JSONObject jo, String key ) {
+        Object o= jo.opt(key);
+        return o==null || o==JSONObject.NULL ? null : o.toString();
+    }
+
+    /**
+     * return the schema for the info, which is made once for each info object.
+     * @param info the info response.
+     * @return the schema.
+     * @throws JSONException when the JSON is mis-formatted.
+     */
+    public static ParameterSchema of( JSONObject info ) throws JSONException {
+        synchronized ( schemas ) {
+            ParameterSchema result= schemas.get(info);
+            if ( result==null ) {
+                result= new ParameterSchema(info);
+                schemas.put( info, result );
+            }
+            return result;
+        }
+    }
+
+    /**
+     * return the number of parameters.
+     * @return the number of parameters.
+     */
+    public int getParameterCount() {
+        return names.length;
+    }
+
+    /**
+     * return the name of the parameter.
+     * @param i the index of the parameter.
+     * @return the name.
+     */
+    public String getName( int i ) {
+        return names[i];
+    }
+
+    /**
+     * return the names of the parameters.
+     * @return a new array of the names.
+     */
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    /**
+     * return the index of the parameter.
+     * @param name the parameter name.
+     * @return the index, or -1 if there is no such parameter.
+     */
+    public int indexOf( String name ) {
+        for ( int i=0; i<names.length; i++ ) {
+            if ( names[i].equals(name) ) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * return the type of the parameter.
+     * @param i the index of the parameter.
+     * @return the type.
+     */
+    public Type getType( int i ) {
+        return types[i];
+    }
+
+    /**
+     * return the number of elements of the parameter, which is the product
+     * of its size, or 1 for scalars.
+     * @param i the index of the parameter.
+     * @return the number of elements.
+     */
+    public int getElementCount( int i ) {
+        return sizes[i];
+    }
+
+    /**
+     * return the number of bytes of each element of the parameter in binary
+     * records.
+     * @param i the index of the parameter.
+     * @return the number of bytes, or 0 if the length is not given.
+     */
+    public int getLength( int i ) {
+        return lengths[i];
+    }
+
+    /**
+     * return the position of the parameter within binary records.
+     * @param i the index of the parameter.
+     * @return the position in bytes.
+     */
+    public int getOffset( int i ) {
+        return offsets[i];
+    }
+
+    /**
+     * return the number of bytes of each binary record.
+     * @return the number of bytes of each binary record.
+     */
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * return the fill value of the parameter.
+     * @param i the index of the parameter.
+     * @return the fill value as it appears in the info, or null.
+     */
+    public String getFill( int i ) {
+        return fills[i];
+    }
+
+    /**
+     * return the units of the parameter.
+     * @param i the index of the parameter.
+     * @return the units as they appear in the info, or null.
+     */
+    public String getUnits( int i ) {
+        return units[i];
+    }
+
+}
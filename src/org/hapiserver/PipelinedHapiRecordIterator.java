@@ -0,0 +1,168 @@
+
+package org.hapiserver;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Iterator which decodes the records of its source on a separate thread,
+ * passing them to the consumer in batches, so that reading and parsing a
+ * response overlap with the consumer's use of the records.  A bounded
+ * number of batches is decoded ahead of the consumer, so memory use does
+ * not grow when the consumer is slower.  Records which the source reuses,
+ * like BinaryHapiRecords, are copied, so the records returned may be kept.
+ * Exceptions thrown by the source are thrown by hasNext, after the records
+ * read before them, and errors are thrown wrapped in an IllegalArgumentException.  The threads are taken from a shared pool, where idle
+ * threads exit after a minute.  A consumer which stops early must close the
+ * iterator, and then the decoding thread stops and closes the source.
+ * @author jbf
+ */
+class PipelinedHapiRecordIterator implements CountedIterator<HapiRecord>, Closeable {
+
+    /**
+     * the number of records passed to the consumer at once.
+     */
+    private static final int BATCH_SIZE= 1000;
+
+    /**
+     * the number of batches which may be decoded ahead of the consumer.
+     */
+    private static final int QUEUE_SIZE= 4;
+
+    private static final AtomicInteger threadCount= new AtomicInteger();
+
+    private static final ExecutorService executor= Executors.newCachedThreadPool( (Runnable r) -> {
+        Thread t= new Thread( r, "hapiPipeline-"+threadCount.incrementAndGet() );
+        t.setDaemon(true);
+        return t;
+    } );
+
+    private static final class Batch {
+        final HapiRecord[] records;
+        final int size;
+        final Throwable exception;
+        Batch( HapiRecord[] records, int size, Throwable exception ) {
+            this.records= records;
+            this.size= size;
+            this.exception= exception;
+        }
+    }
+
+    /**
+     * marks the end of the records.
+     */
+    private static final Batch END= new Batch( new HapiRecord[0], 0, null );
+
+    private final Iterator<HapiRecord> source;
+
+    private final long count;
+
+    private final BlockingQueue<Batch> queue= new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    private Batch current= null;
+    private int index= 0;
+
+    private volatile boolean closed= false;
+
+    /**
+     * create the iterator, which starts decoding immediately.
+     * @param source the records, which are read only by the decoding thread.
+     */
+    PipelinedHapiRecordIterator( Iterator<HapiRecord> source ) {
+        this.source= source;
+        this.count= source instanceof CountedIterator ? ((CountedIterator)source).getCount() : -1;
+        executor.execute( this::run );
+    }
+
+    private void run() {
+        try {
+            HapiRecord[] records= new HapiRecord[BATCH_SIZE];
+            int n= 0;
+            try {
+                while ( !closed && source.hasNext() ) {
+                    HapiRecord rec= source.next();
+                    if ( rec instanceof BinaryHapiRecord ) {
+                        rec= ((BinaryHapiRecord)rec).copy(); // the source reuses its record.
+                    }
+                    records[n++]= rec;
+                    if ( n==BATCH_SIZE ) {
+                        queue.put( new Batch( records, n, null ) );
+                        records= new HapiRecord[BATCH_SIZE];
+                        n= 0;
+                    }
+                }
+            } catch ( RuntimeException | Error ex ) {
+                queue.put( new Batch( records, n, ex ) );
+                return;
+            }
+            if ( n>0 ) {
+                queue.put( new Batch( records, n, null ) );
+            }
+            queue.put( END );
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            HapiClient.close( source );
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( current==null || index==current.size ) {
+            if ( current!=null && current.exception!=null ) {
+                Throwable ex= current.exception;
+                current= END;
+                if ( ex instanceof RuntimeException ) {
+                    throw (RuntimeException)ex;
+                } else {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+            if ( current==END ) {
+                return false;
+            }
+            try {
+                current= queue.take();
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(ex);
+            }
+            index= 0;
+        }
+        return true;
+    }
+
+    @Override
+    public HapiRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
+        }
+        HapiRecord rec= current.records[index];
+        current.records[index++]= null; // the consumer decides whether the record is kept.
+        return rec;
+    }
+
+    /**
+     * stop decoding, when the records will not be read to the end.  The 
+     * decoding thread stops after the record it is reading, and closes the
+     * source.
+     */
+    @Override
+    public void close() {
+        closed= true;
+        queue.clear(); // let the decoding thread see that the iterator is closed.
+        current= END;
+    }
+
+}
@@ -0,0 +1,147 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * InputStream which copies a response, such as an info response, into its
+ * cache file as it is read, so that it can be parsed as it arrives.  The
+ * bytes are written to a staging file, named with the process id and a
+ * count so that each stream has its own, which replaces the cache file when
+ * the stream is closed.  Bytes which were not read are read when the
+ * stream is closed, and if the response cannot be read completely, the
+ * cache file is not replaced.
+ * @author jbf
+ */
+class ResponseTeeInputStream extends FilterInputStream {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    private static final AtomicInteger stagingCount= new AtomicInteger();
+
+    private final File file;
+    private final File staging;
+    private OutputStream out;
+    private boolean closed= false;
+
+    /**
+     * create the stream.
+     * @param in the response.
+     * @param file the cache file.
+     */
+    ResponseTeeInputStream( InputStream in, File file ) {
+        super(in);
+        this.file= file;
+        this.staging= new File( file.getPath() + ".writing." + com.cottagesystems.util.Util.getProcessId("99999") 
+            + "." + stagingCount.incrementAndGet() );
+        File dir= file.getParentFile();
+        if ( !dir.exists() && !dir.mkdirs() ) {
+            logger.log(Level.WARNING, "unable to make directory for {0}", file);
+        }
+        try {
+            this.out= new FileOutputStream( staging );
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write to cache: {0}", file);
+            this.out= null;
+        }
+    }
+
+    private void copy( byte[] b, int off, int len ) {
+        if ( out==null ) return;
+        try {
+            out.write( b, off, len );
+        } catch ( IOException ex ) {
+            logger.log(Level.WARNING, "unable to write to cache: {0}", file);
+            abandon();
+        }
+    }
+
+    /**
+     * stop copying, and remove the staging file.
+     */
+    private void abandon() {
+        if ( out==null ) return;
+        try {
+            out.close();
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, null, ex);
+        }
+        out= null;
+        if ( !staging.delete() ) {
+            logger.info("temporary file left in cache");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c= super.read();
+        if ( c!=-1 ) {
+            copy( new byte[] { (byte)c }, 0, 1 );
+        }
+        return c;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        int n= super.read( b, off, len );
+        if ( n>0 ) {
+            copy( b, off, n );
+        }
+        return n;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException {
+        byte[] buf= new byte[ (int)Math.min( n, 8192 ) ];
+        int r= read( buf, 0, buf.length );
+        return r<0 ? 0 : r;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( closed ) return;
+        closed= true;
+        try {
+            if ( out!=null ) {
+                byte[] buf= new byte[8192];
+                while ( read( buf, 0, buf.length )!=-1 ) {
+                    // read the rest of the response, like trailing whitespace.
+                }
+            }
+        } catch ( IOException ex ) {
+            logger.log(Level.FINE, "response not read completely: {0}", file);
+            abandon();
+        } finally {
+            super.close();
+        }
+        if ( out==null ) return;
+        out.close();
+        out= null;
+        if ( staging.length()==0 ) { // empty responses are not cached.
+            if ( !staging.delete() ) {
+                logger.info("temporary file left in cache");
+            }
+            return;
+        }
+        if ( file.exists() && !file.delete() ) {
+            logger.log(Level.WARNING, "unable to replace cache file {0}", file);
+        }
+        if ( !staging.renameTo( file ) && !staging.delete() ) {
+            logger.info("temporary file left in cache");
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+
+package org.hapiserver;
+
+import java.util.Iterator;
+
+/**
+ * Iterator which can go directly to the records within a time range, 
+ * without reading the records before it, for example because the records
+ * are in files with fixed-length records.
+ * @author jbf
+ */
+interface SeekableHapiRecordIterator extends Iterator<HapiRecord> {
+    
+    /**
+     * limit the records returned to those greater than or equal to startTime,
+     * and less than endTime.  This must be called before any records are read.
+     * @param startTime the start time, in isoTime.
+     * @param endTime the end time, in isoTime.
+     */
+    void seek( String startTime, String endTime );
+    
+}
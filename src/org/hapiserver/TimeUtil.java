@@ -1,11 +1,8 @@
 
 package org.hapiserver;
 
-import java.time.Instant;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.TemporalAccessor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
 
 /**
  * Utilities for times in IsoTime strings (limited set of ISO8601 times)
@@ -20,6 +17,12 @@ import java.util.Date;
  */
 public class TimeUtil {
 
+    /**
+     * the format used by the last call to reformatIsoTime, which is usually 
+     * the same for a stream of times.
+     */
+    private static volatile IsoTimeFormat lastFormat= null;
+    
     /**
      * Rewrite the time using the format of the example time.  For example,
      * <pre>
@@ -28,49 +31,22 @@ public class TimeUtil {
      * print rewriteIsoTime( '2020-01-01T00:00Z', '2020-112Z' ) # ->  '2020-04-21T00:00Z'
      * }
      * </pre>
-     * This allows direct comparisons of times for sorting.
-     * TODO: there's an optimization here, where if input and output are both $Y-$j or
-     * both $Y-$m-$d, then we need not break apart and recombine the time 
-     * (isoTimeToArray call can be avoided).
+     * This allows direct comparisons of times for sorting.  When the time 
+     * already has the same form as the example, it is returned as is.  Use
+     * IsoTimeFormat to format many times without creating Strings.
      * 
      * @param exampleForm isoTime string.
      * @param time the time in any allowed isoTime format
      * @return same time but in the same form as exampleForm.
+     * @see IsoTimeFormat
      */
     public static String reformatIsoTime(String exampleForm, String time) {
-        char c = exampleForm.charAt(8);
-        int[] nn = TimeUtil.isoTimeToArray(TimeUtil.normalizeTimeString(time));
-        switch (c) {
-            case 'T':
-                // $Y-$jT
-                nn[2] = TimeUtil.dayOfYear(nn[0], nn[1], nn[2]);
-                nn[1] = 1;
-                time = String.format("%d-%03dT%02d:%02d:%02d.%09dZ", nn[0], nn[2], nn[3], nn[4], nn[5], nn[6]);
-                break;
-            case 'Z':
-                nn[2] = TimeUtil.dayOfYear(nn[0], nn[1], nn[2]);
-                nn[1] = 1;
-                time = String.format("%d-%03dZ", nn[0], nn[2]);
-                break;
-            default:
-                if ( exampleForm.length()==10 ) {
-                    c= 'Z';
-                } else {
-                    c = exampleForm.charAt(10);
-                }
-                if (c == 'T') {
-                    // $Y-$jT
-                    time = String.format("%d-%02d-%02dT%02d:%02d:%02d.%09dZ", nn[0], nn[1], nn[2], nn[3], nn[4], nn[5], nn[6]);
-                } else if (c == 'Z') {
-                    time = String.format("%d-%02d-%02dZ", nn[0], nn[1], nn[2]);
-                }
-                break;
-        }
-        if (exampleForm.endsWith("Z")) {
-            return time.substring(0, exampleForm.length() - 1) + "Z";
-        } else {
-            return time.substring(0, exampleForm.length());
+        IsoTimeFormat format= lastFormat;
+        if ( format==null || !format.matches(exampleForm) ) {
+            format= new IsoTimeFormat(exampleForm);
+            lastFormat= format;
         }
+        return format.reformat(time);
     }
 
     private TimeUtil() {
@@ -184,26 +160,18 @@ public class TimeUtil {
     }
 
     /**
-     * fast parser requires that each character of string is a digit.
-     * @param s
-     * @return
+     * fast parser requires that each character of the range is a digit.
+     * @param s the string
+     * @param start the index of the first digit
+     * @param end the index following the last digit
+     * @return the value of the digits
      */
-    private static int parseInt(String s) {
-        int result;
-        switch (s.length()) {
-            case 2:
-                result = 10 * (s.charAt(0) - 48) + (s.charAt(1) - 48);
-                return result;
-            case 3:
-                result = 100 * (s.charAt(0) - 48) + 10 * (s.charAt(1) - 48) + (s.charAt(2) - 48);
-                return result;
-            default:
-                result = 0;
-                for (int i = 0; i < s.length(); i++) {
-                    result = 10 * result + (s.charAt(i) - 48);
-                }
-                return result;
+    private static int parseInt(String s, int start, int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            result = 10 * result + (s.charAt(i) - 48);
         }
+        return result;
     }
 
     /**
@@ -227,45 +195,46 @@ public class TimeUtil {
     public static int[] isoTimeToArray(String time) {
         int[] result;
         time= time.trim();
-        if (time.length() == 4) {
+        int len= time.length();
+        if (len == 4) {
             result = new int[]{Integer.parseInt(time), 1, 1, 0, 0, 0, 0};
         } else {
-            if (time.length() < 8) {
+            if (len < 8) {
                 throw new IllegalArgumentException("time must have 4 or greater than 7 elements");
             }
-            if ( time.length()==8 ) { // YYYY-ddd
-                result = new int[]{parseInt(time.substring(0, 4)), 1, parseInt(time.substring(5, 8)), // days
+            int p; // the start of the time of day
+            if ( len==8 ) { // YYYY-ddd
+                result = new int[]{parseInt(time, 0, 4), 1, parseInt(time, 5, 8), // days
                 0, 0, 0, 0};
-                time = time.substring(8);
+                p = 8;
             } else {
                 char ch8= time.charAt(8);
                 if ( ch8 == 'T' || ch8=='Z' ) { // YYYY-dddZ
-                    result = new int[]{parseInt(time.substring(0, 4)), 1, parseInt(time.substring(5, 8)), // days
+                    result = new int[]{parseInt(time, 0, 4), 1, parseInt(time, 5, 8), // days
                     0, 0, 0, 0};
-                    time = time.substring(9);
+                    p = 9;
                 } else { // YYYY-mm-ddT
-                    result = new int[]{parseInt(time.substring(0, 4)), parseInt(time.substring(5, 7)), parseInt(time.substring(8, 10)), 0, 0, 0, 0};
-                    if ( time.length()==10 ) {
-                        time= ""; // Z is missing, which is okay.
-                    } else {
-                        time = time.substring(11);
-                    }
+                    result = new int[]{parseInt(time, 0, 4), parseInt(time, 5, 7), parseInt(time, 8, 10), 0, 0, 0, 0};
+                    p = len==10 ? 10 : 11; // Z may be missing, which is okay.
                 }
             }
-            if (time.endsWith("Z")) {
-                time = time.substring(0, time.length() - 1);
+            int end= len;
+            if ( end>p && time.charAt(end-1)=='Z' ) {
+                end = end - 1;
             }
-            if (time.length() >= 2) {
-                result[3] = parseInt(time.substring(0, 2));
+            int n= end - p;
+            if (n >= 2) {
+                result[3] = parseInt(time, p, p+2);
             }
-            if (time.length() >= 5) {
-                result[4] = parseInt(time.substring(3, 5));
+            if (n >= 5) {
+                result[4] = parseInt(time, p+3, p+5);
             }
-            if (time.length() >= 8) {
-                result[5] = parseInt(time.substring(6, 8));
+            if (n >= 8) {
+                result[5] = parseInt(time, p+6, p+8);
             }
-            if (time.length() > 9) {
-                result[6] = (int) (Math.pow(10, 18 - time.length())) * parseInt(time.substring(9));
+            if (n > 9) {
+                int ndigits= Math.min( n-9, 9 );
+                result[6] = NANOS_PER_DIGIT[ndigits] * parseInt(time, p+9, p+9+ndigits);
             }
             normalizeTime(result);
         }
@@ -313,18 +282,264 @@ public class TimeUtil {
      * print x % 86400000   # and no milliseconds
      * }
      * </pre>
-     * @param time the isoTime, which is parsed using DateTimeFormatter.ISO_INSTANT.parse.
+     * @param time the isoTime
      * @return number of non-leap-second milliseconds since 1970-01-01T00:00Z.
-     * @see DateTimeFormatter#parse 
+     * @see #toNanosecondsSince1970(java.lang.String) 
      */
     public static long toMillisecondsSince1970(String time) {
-        time= normalizeTimeString(time);
-        TemporalAccessor ta = DateTimeFormatter.ISO_INSTANT.parse(time);
-        Instant i = Instant.from(ta);
-        Date d = Date.from(i);
-        return d.getTime();
+        return Math.floorDiv( toNanosecondsSince1970(time), 1000000L );
     }
 
+    /**
+     * return the time as nanoseconds since 1970-01-01T00:00Z.  This does not
+     * include leap seconds.
+     * @param time the isoTime
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     * @see #toMillisecondsSince1970(java.lang.String) 
+     * @see #toNanosecondsSince1970(java.lang.CharSequence, int, int) 
+     */
+    public static long toNanosecondsSince1970(String time) {
+        return toNanosecondsSince1970( time, 0, time.length() );
+    }
+    
+    /**
+     * parse the time using isoTimeToArray, which handles all forms.
+     * @param time the isoTime
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     */
+    private static long toNanosecondsSince1970Slowly(String time) {
+        int[] nn= isoTimeToArray(time);
+        long days= daysSince1970( nn[0], nn[1], nn[2] );
+        return ( ( days * 24 + nn[3] ) * 60 + nn[4] ) * 60000000000L + nn[5] * 1000000000L + nn[6];
+    }
+    
+    /**
+     * nanoseconds represented by the first fractional-second digit, when there are 1 to 9 digits.
+     */
+    private static final int[] NANOS_PER_DIGIT= { 0, 100000000, 10000000, 1000000, 100000, 10000, 1000, 100, 10, 1 };
+    
+    /**
+     * characters of times which are not in char arrays, reused by each thread.
+     */
+    private static final ThreadLocal<char[]> timeChars= ThreadLocal.withInitial( () -> new char[64] );
+    
+    /**
+     * the date part of the last time parsed, and the number of days since 1970
+     * for it, since consecutive times are usually on the same day.
+     */
+    private static final class LastDay {
+        final char[] prefix= new char[10];
+        int length= -1;
+        long days;
+    }
+    
+    /**
+     * the last day parsed by each thread.
+     */
+    private static final ThreadLocal<LastDay> lastDay= ThreadLocal.withInitial( LastDay::new );
+    
+    /**
+     * return the value of the decimal digits, or -1 if any character is not a digit.
+     */
+    private static int parseDigits( char[] buf, int start, int n ) {
+        int result= 0;
+        for ( int i=start; i<start+n; i++ ) {
+            int d= buf[i] - '0';
+            if ( d<0 || d>9 ) return -1;
+            result= result*10 + d;
+        }
+        return result;
+    }
+    
+    /**
+     * return the time as nanoseconds since 1970-01-01T00:00Z, parsing the
+     * characters directly so that no objects are created.  Times like 
+     * $Y-$m-$dT$H:$M:$S.$(subsec)Z and $Y-$jT$H:$M:$S.$(subsec)Z, possibly 
+     * truncated after any field, are parsed here, and other times are 
+     * parsed with isoTimeToArray.  Trailing spaces and nulls, used to pad 
+     * times in binary records, are ignored.  The date of the last time parsed
+     * by each thread is remembered, so that the days need not be calculated 
+     * again for the next time on the same day.
+     * @param buf the characters
+     * @param start the index of the first character of the time.
+     * @param end the index following the last character of the time.
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     * @see #toNanosecondsSince1970(java.lang.String) 
+     */
+    public static long toNanosecondsSince1970( char[] buf, int start, int end ) {
+        int e= end;
+        while ( e>start && buf[e-1]<=' ' ) e--;
+        if ( e>start && buf[e-1]=='Z' ) e--;
+        int n= e-start;
+        int p; // the start of the time of day
+        boolean dayOfYear;
+        if ( n<8 || buf[start+4]!='-' ) {
+            return toNanosecondsSince1970Slowly( new String( buf, start, end-start ).trim() );
+        } else if ( n==8 || buf[start+8]=='T' ) {
+            dayOfYear= true;
+            p= start+8;
+        } else if ( n>=10 && buf[start+7]=='-' ) {
+            dayOfYear= false;
+            p= start+10;
+        } else {
+            return toNanosecondsSince1970Slowly( new String( buf, start, end-start ).trim() );
+        }
+        
+        long days;
+        LastDay last= lastDay.get();
+        char[] prefix= last.prefix;
+        boolean sameDay= last.length==p-start;
+        for ( int i=0; sameDay && i<last.length; i++ ) {
+            sameDay= prefix[i]==buf[start+i];
+        }
+        if ( sameDay ) {
+            days= last.days;
+        } else {
+            int year= parseDigits( buf, start, 4 );
+            int month;
+            int day;
+            if ( dayOfYear ) {
+                month= 1;
+                day= parseDigits( buf, start+5, 3 );
+            } else {
+                month= parseDigits( buf, start+5, 2 );
+                day= parseDigits( buf, start+8, 2 );
+            }
+            if ( year<0 || month<1 || month>12 || day<1 ) {
+                return toNanosecondsSince1970Slowly( new String( buf, start, end-start ).trim() );
+            }
+            int leap= isLeapYear(year) ? 1 : 0;
+            if ( day > ( dayOfYear ? DAY_OFFSET[leap][13] : DAYS_IN_MONTH[leap][month] ) ) {
+                throw new IllegalArgumentException("day is out of range: " + new String( buf, start, end-start ).trim() );
+            }
+            days= daysSince1970( year, month, day );
+            System.arraycopy( buf, start, prefix, 0, p-start );
+            last.length= p-start;
+            last.days= days;
+        }
+        
+        int hour= 0;
+        int minute= 0;
+        int second= 0;
+        int nanos= 0;
+        if ( p<e ) {
+            boolean ok= buf[p]=='T' && e-p>=3;
+            if ( ok ) {
+                hour= parseDigits( buf, p+1, 2 );
+                p+= 3;
+            }
+            if ( ok && p<e ) {
+                ok= buf[p]==':' && e-p>=3;
+                if ( ok ) minute= parseDigits( buf, p+1, 2 );
+                p+= 3;
+            }
+            if ( ok && p<e ) {
+                ok= buf[p]==':' && e-p>=3;
+                if ( ok ) second= parseDigits( buf, p+1, 2 );
+                p+= 3;
+            }
+            if ( ok && p<e ) {
+                int ndigits= e-p-1;
+                ok= buf[p]=='.' && ndigits>=1 && ndigits<=9;
+                if ( ok ) {
+                    nanos= parseDigits( buf, p+1, ndigits );
+                    ok= nanos>=0;
+                    nanos= nanos * NANOS_PER_DIGIT[ndigits];
+                }
+            }
+            if ( !ok || hour<0 || minute<0 || second<0 ) {
+                return toNanosecondsSince1970Slowly( new String( buf, start, end-start ).trim() );
+            }
+        }
+        return ( ( days * 24 + hour ) * 60 + minute ) * 60000000000L + second * 1000000000L + nanos;
+    }
+    
+    /**
+     * return the time as nanoseconds since 1970-01-01T00:00Z, parsing the
+     * characters without creating objects.
+     * @param time the characters, such as a String or StringBuilder.
+     * @param start the index of the first character of the time.
+     * @param end the index following the last character of the time.
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     * @see #toNanosecondsSince1970(char[], int, int) 
+     */
+    public static long toNanosecondsSince1970( CharSequence time, int start, int end ) {
+        int n= end-start;
+        char[] buf= timeChars.get();
+        if ( buf.length<n ) {
+            buf= new char[n];
+            timeChars.set(buf);
+        }
+        if ( time instanceof String ) {
+            ((String)time).getChars( start, end, buf, 0 );
+        } else {
+            for ( int i=0; i<n; i++ ) {
+                buf[i]= time.charAt(start+i);
+            }
+        }
+        return toNanosecondsSince1970( buf, 0, n );
+    }
+    
+    /**
+     * return the time as nanoseconds since 1970-01-01T00:00Z, parsing the
+     * ASCII bytes without creating objects, for example to decode times 
+     * within binary records.  The buffer's position is not changed.
+     * @param bytes the buffer
+     * @param start the index of the first byte of the time.
+     * @param end the index following the last byte of the time.
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     * @see #toNanosecondsSince1970(char[], int, int) 
+     */
+    public static long toNanosecondsSince1970( ByteBuffer bytes, int start, int end ) {
+        int n= end-start;
+        char[] buf= timeChars.get();
+        if ( buf.length<n ) {
+            buf= new char[n];
+            timeChars.set(buf);
+        }
+        for ( int i=0; i<n; i++ ) {
+            buf[i]= (char)( bytes.get(start+i) & 0xFF );
+        }
+        return toNanosecondsSince1970( buf, 0, n );
+    }
+    
+    /**
+     * return the time as nanoseconds since 1970-01-01T00:00Z, parsing the
+     * ASCII bytes without creating objects, for example to find the times 
+     * of records as they are read from a stream.
+     * @param bytes the bytes
+     * @param start the index of the first byte of the time.
+     * @param end the index following the last byte of the time.
+     * @return number of non-leap-second nanoseconds since 1970-01-01T00:00Z.
+     * @see #toNanosecondsSince1970(char[], int, int) 
+     */
+    public static long toNanosecondsSince1970( byte[] bytes, int start, int end ) {
+        int n= end-start;
+        char[] buf= timeChars.get();
+        if ( buf.length<n ) {
+            buf= new char[n];
+            timeChars.set(buf);
+        }
+        for ( int i=0; i<n; i++ ) {
+            buf[i]= (char)( bytes[start+i] & 0xFF );
+        }
+        return toNanosecondsSince1970( buf, 0, n );
+    }
+    
+    /**
+     * return the number of days since 1970-01-01.
+     * @param year the year
+     * @param month the month, from 1 to 12.
+     * @param day the day in the month.
+     * @return the number of days since 1970-01-01, negative before 1970.
+     */
+    private static long daysSince1970( int year, int month, int day ) {
+        int leap = isLeapYear(year) ? 1 : 0;
+        int y= year-1;
+        long days= 365L * ( year-1970 ) + ( y/4 - y/100 + y/400 ) - 477; // 477 leap days before 1970.
+        return days + DAY_OFFSET[leap][month] + day - 1;
+    }
+    
     /**
      * normalize the decomposed time by expressing day of year and month
      * and day of month, and moving hour="24" into the next day. This
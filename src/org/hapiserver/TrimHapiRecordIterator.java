@@ -1,74 +1,136 @@
 
 package org.hapiserver;
 
+import java.io.Closeable;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Return only records within startTime to endTime, more specifically
- * records greater than or equal to startTime, and less than endTime.
+ * records greater than or equal to startTime, and less than endTime.  The
+ * times are compared as nanoseconds since 1970, so that records can decode
+ * their times without creating Strings.  When the source can seek, it is
+ * asked for the records within the range, and these are not checked again.
+ * The source is closed when a record after the range is found, or when 
+ * this is closed.  The number of records is known when the source can seek
+ * and knows how many records are within the range.
  * @author jbf
  */
-public class TrimHapiRecordIterator implements Iterator<HapiRecord>  {
+public class TrimHapiRecordIterator implements CountedIterator<HapiRecord>, Closeable  {
 
     String startTime;
     String endTime;
     
+    private final long startNanos;
+    private final long endNanos;
+    
     Iterator<HapiRecord> source;
+    
+    /**
+     * the record to be returned by next, or null if the source must be read.
+     * Note the source is not read until the record is used, so that sources
+     * which reuse a record for each read can be trimmed.
+     */
     HapiRecord nextRecord=null;
     
+    boolean initialized= false;
+    
+    /**
+     * true once a record at or after startTime has been found.
+     */
+    private boolean started= false;
+    
+    /**
+     * true once a record at or after endTime has been found, or the source is empty.
+     */
+    private boolean done= false;
+    
+    /**
+     * true if the source was limited to the time range.
+     */
+    private boolean sought= false;
+    
     public TrimHapiRecordIterator( Iterator<HapiRecord> source, String startTime, String endTime )  {
         this.source= source;
         this.startTime= startTime;
         this.endTime= endTime;
+        this.startNanos= TimeUtil.toNanosecondsSince1970(startTime);
+        this.endNanos= TimeUtil.toNanosecondsSince1970(endTime);
     }
     
     /**
-     * rewrite the startTime and endTime to the same format as the source,
-     * so simple string comparisons can be made.
+     * limit the source to the time range, if it can seek.
      */
-    private void initializeFirstRec() {
-        startTime= TimeUtil.reformatIsoTime(nextRecord.getIsoTime(0), startTime );
-        endTime= TimeUtil.reformatIsoTime(nextRecord.getIsoTime(0), endTime );
+    private void initialize() {
+        if ( source instanceof SeekableHapiRecordIterator ) {
+            ((SeekableHapiRecordIterator)source).seek( startTime, endTime );
+            sought= true;
+        }
+        initialized= true;
     }
     
-    private void advanceToStartTime() {
-        while ( nextRecord.getIsoTime(0).compareTo(startTime)<0 ) {
-            if ( source.hasNext() ) {
-                nextRecord= source.next();
-            } else {
-                nextRecord= null;
-                return;
-            }
+    @Override
+    public long getCount() {
+        if ( !initialized ) {
+            initialize();
+        }
+        if ( sought && source instanceof CountedIterator ) {
+            return ((CountedIterator)source).getCount();
+        } else {
+            return -1;
         }
-        
     }
+    
     @Override
     public boolean hasNext() {
-        if ( nextRecord==null ) {
-            if ( !source.hasNext() ) {
-                return false;
-            }
-            nextRecord= source.next();
-            initializeFirstRec();
-            advanceToStartTime();
+        if ( nextRecord!=null ) {
+            return true;
         }
-        if ( nextRecord==null ) {
-            // we run off the end of source.
+        if ( done ) {
             return false;
-        } else {
-            return nextRecord.getIsoTime(0).compareTo(endTime)<0;
         }
+        if ( !initialized ) {
+            initialize();
+        }
+        while ( source.hasNext() ) {
+            HapiRecord rec= source.next();
+            if ( sought ) {
+                nextRecord= rec;
+                return true;
+            }
+            long t= rec.getNanosecondsSince1970(0);
+            if ( t>=endNanos ) {
+                close();
+                return false;
+            }
+            if ( started || t>=startNanos ) {
+                started= true;
+                nextRecord= rec;
+                return true;
+            }
+        }
+        done= true;
+        return false;
     }
 
     @Override
     public HapiRecord next() {
-        HapiRecord result= nextRecord;
-        if ( source.hasNext() ) {
-            nextRecord= source.next();
-        } else {
-            nextRecord= null;
+        if ( !hasNext() ) {
+            throw new NoSuchElementException("No more records");
         }
+        HapiRecord result= nextRecord;
+        nextRecord= null;
         return result;
     }
+
+    /**
+     * close the source, when the records will not be read to the end.
+     */
+    @Override
+    public void close() {
+        done= true;
+        nextRecord= null;
+        HapiClient.close( source );
+    }
     
 }
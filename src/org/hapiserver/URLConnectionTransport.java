@@ -0,0 +1,262 @@
+
+package org.hapiserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport using Java's URLConnection, which keeps HTTP connections alive
+ * and reuses them for later requests to the same server, provided that each
+ * response is read completely and closed.  This can limit the number of
+ * requests made to each server at once, so that parallel reads do not open
+ * more connections than are kept alive.  With a limit, a request waits for
+ * an earlier response to be read to the end or closed, but a response which
+ * is never closed holds its permit, so after waiting a while the request is
+ * made anyway.  Java keeps up to five idle connections for each server, set
+ * with the system property http.maxConnections.
+ * @author jbf
+ */
+public class URLConnectionTransport implements HapiTransport {
+
+    private static final Logger logger= Logger.getLogger("org.hapiserver");
+
+    /**
+     * the number of bytes read from an unread response when it is closed,
+     * so that its connection can be reused.  Longer responses are dropped,
+     * with their connections.
+     */
+    private static final int DRAIN_LIMIT= 65536;
+
+    /**
+     * the number of milliseconds a request waits for an earlier response to
+     * be closed, before it is made anyway.
+     */
+    private static final int WAIT_MS= 30000;
+
+    /**
+     * the number of requests made to each server at once, or 0 for no limit.
+     */
+    private int maxConnectionsPerHost;
+
+    private final Map<String,Semaphore> permits= new HashMap<>();
+
+    /**
+     * create the transport, which does not limit the number of requests made
+     * to each server at once.
+     */
+    public URLConnectionTransport() {
+        this(0);
+    }
+
+    /**
+     * create the transport.
+     * @param maxConnectionsPerHost the number of requests made to each server at once, or 0 for no limit.
+     */
+    public URLConnectionTransport( int maxConnectionsPerHost ) {
+        if ( maxConnectionsPerHost<0 ) throw new IllegalArgumentException("maxConnectionsPerHost must not be negative");
+        this.maxConnectionsPerHost= maxConnectionsPerHost;
+    }
+
+    /**
+     * return the number of requests made to each server at once.
+     * @return the number of requests made to each server at once, or 0 for no limit.
+     */
+    public synchronized int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * set the number of requests made to each server at once.  This affects
+     * servers which have not yet been used.
+     * @param maxConnectionsPerHost the number of requests made to each server at once, or 0 for no limit.
+     */
+    public synchronized void setMaxConnectionsPerHost( int maxConnectionsPerHost ) {
+        if ( maxConnectionsPerHost<0 ) throw new IllegalArgumentException("maxConnectionsPerHost must not be negative");
+        this.maxConnectionsPerHost= maxConnectionsPerHost;
+    }
+
+    /**
+     * return the permits for the server, or null when there is no limit.
+     */
+    private synchronized Semaphore getPermits( URL url ) {
+        if ( maxConnectionsPerHost==0 || url.getHost()==null || url.getHost().length()==0 ) {
+            return null;
+        }
+        String host= url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+        Semaphore result= permits.get(host);
+        if ( result==null ) {
+            result= new Semaphore( maxConnectionsPerHost );
+            permits.put( host, result );
+        }
+        return result;
+    }
+
+    @Override
+    public Response get( URL url, Map<String,String> headers, int connectTimeoutMs, int readTimeoutMs )
+            throws IOException {
+        Semaphore semaphore= getPermits(url);
+        if ( semaphore!=null ) {
+            try {
+                if ( !semaphore.tryAcquire( WAIT_MS, TimeUnit.MILLISECONDS ) ) {
+                    logger.log(Level.WARNING, "responses from {0} have not been closed, connecting anyway", url.getHost());
+                    semaphore= null;
+                }
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for a connection to "+url.getHost());
+            }
+        }
+        try {
+            URLConnection urlc= url.openConnection();
+            urlc.setConnectTimeout( connectTimeoutMs );
+            urlc.setReadTimeout( readTimeoutMs );
+            if ( headers!=null ) {
+                for ( Map.Entry<String,String> e: headers.entrySet() ) {
+                    urlc.setRequestProperty( e.getKey(), e.getValue() );
+                }
+            }
+            return new URLConnectionResponse( urlc, semaphore );
+        } catch ( IOException | RuntimeException ex ) {
+            if ( semaphore!=null ) semaphore.release();
+            throw ex;
+        }
+    }
+
+    private static class URLConnectionResponse implements Response {
+
+        private final URLConnection urlc;
+        private Semaphore semaphore;
+        private InputStream in= null;
+
+        URLConnectionResponse( URLConnection urlc, Semaphore semaphore ) {
+            this.urlc= urlc;
+            this.semaphore= semaphore;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if ( urlc instanceof HttpURLConnection ) {
+                return ((HttpURLConnection)urlc).getResponseCode();
+            } else {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getHeader( String name ) {
+            return urlc.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return urlc.getContentLengthLong();
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if ( in==null ) {
+                in= urlc.getInputStream();
+            }
+            return new ResponseInputStream(in);
+        }
+
+        @Override
+        public synchronized InputStream getErrorStream() {
+            if ( in==null && urlc instanceof HttpURLConnection ) {
+                in= ((HttpURLConnection)urlc).getErrorStream();
+                if ( in==null ) return null;
+                return new ResponseInputStream(in);
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * the content, which closes the response when it is closed or when
+         * it has been read completely, so that readers which stop at the
+         * end of the data release the connection.
+         */
+        private class ResponseInputStream extends FilterInputStream {
+
+            private boolean eof= false;
+
+            ResponseInputStream( InputStream in ) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                if ( eof ) return -1;
+                int c= super.read();
+                if ( c==-1 ) close();
+                return c;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException {
+                if ( eof ) return -1;
+                int n= super.read( b, off, len );
+                if ( n==-1 ) close();
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return eof ? 0 : super.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                eof= true;
+                URLConnectionResponse.this.close();
+            }
+        }
+
+        /**
+         * read the rest of a short response, so that the connection is kept.
+         */
+        private static void drain( InputStream in ) throws IOException {
+            byte[] buf= new byte[8192];
+            int n= 0;
+            int r;
+            while ( n<DRAIN_LIMIT && ( r= in.read(buf) )!=-1 ) {
+                n+= r;
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                if ( in==null ) { // a response like 304, which was not read.
+                    try {
+                        in= urlc.getInputStream();
+                    } catch ( IOException ex ) {
+                        if ( urlc instanceof HttpURLConnection ) {
+                            in= ((HttpURLConnection)urlc).getErrorStream();
+                        }
+                    }
+                    if ( in!=null ) drain(in);
+                }
+                if ( in!=null ) in.close();
+            } catch ( IOException ex ) {
+                logger.log(Level.FINE, "closing response", ex);
+            } finally {
+                if ( semaphore!=null ) {
+                    semaphore.release();
+                    semaphore= null;
+                }
+            }
+        }
+    }
+
+}
@@ -1,145 +1,218 @@
 
 package org.hapiserver;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Iterator which writes to cache file as records come in.  Note JSON
- * exceptions are treated as runtime exceptions.
+ * exceptions are treated as runtime exceptions.  The files are written by
+ * a CacheWriter, and in write-behind mode this is done on a separate thread.
+ * Closing the iterator before the records are all read closes the source
+ * and discards the day being written.
  * @author jbf
  */
-public class WriteCacheIterator implements Iterator<HapiRecord> {
+public class WriteCacheIterator implements CountedIterator<HapiRecord>, Closeable {
 
     private static final Logger logger= Logger.getLogger("org.hapiserver");
-    
+
     private final Iterator<HapiRecord> source;
-    private String startTime;
-    private String endTime;
-    
+
+    /**
+     * the first and last day boundaries of the complete days to cache, in
+     * nanoseconds since 1970-01-01T00:00Z.
+     */
+    private final long startNanos;
+    private final long endNanos;
+
+    /**
+     * the format of the day of each cache file.
+     */
+    private static final IsoTimeFormat DAY_FORMAT= new IsoTimeFormat("2000-01-01");
+
+    private static final long NANOS_PER_DAY= 86400000000000L;
+
     private boolean doInitialize= true;
-    
+
     /**
      * indicator of the current interval we are writing to, null indicates not writing.
      */
-    private String currentTag= null; 
-    private String tempEndTime;
-    
+    private String currentTag= null;
+
+    /**
+     * the end of the day being written, in nanoseconds since 1970-01-01T00:00Z.
+     */
+    private long tempEndNanos;
+
+    /**
+     * the number of records of the day being written.
+     */
+    private int dayRecords;
+
     private final File cacheRoot;
-    private final String pid;
-    
-    private File channel;
-    
+
     private String[] names;
-    private File[] channels;
-    
+
     /**
      * either "csv" or "binary"
      */
     private final String ext;
-    
+
+    private final boolean separateChannels;
+
+    private final CacheWriter writer;
+
     /**
-     * either fout or bout is non-null, depending on csv or binary, when writing
-     * all parameters to one file.
+     * the records of the day when writing columnar files, or null.
      */
-    private PrintWriter fout;
-    
+    private ColumnarCacheFile columnar= null;
+
     /**
-     * either fouts or bouts is non-null, depending on csv or binary, when
-     * writing parameters to separate files.
+     * true once the source is exhausted or the iterator is closed, and the writer is closed.
      */
-    private PrintWriter[] fouts;
+    private boolean closed= false;
+
+    JSONObject info;
 
-    private FileOutputStream bout;
-    
     /**
-     * the output stream we close.
+     * create the iterator, which writes the files as records are read.
+     * @param info the info describing the parameters.
+     * @param source the records.
+     * @param startTime the start time of the request.
+     * @param endTime the end time of the request.
+     * @param cacheRoot the root of the cache for the dataset.
+     * @param separateChannels if true, write a file for each parameter.
      */
-    private FileOutputStream[] bouts;
+    public WriteCacheIterator( JSONObject info,
+            Iterator<HapiRecord> source,
+            String startTime,
+            String endTime,
+            File cacheRoot,
+            boolean separateChannels ) {
+        this( info, source, startTime, endTime, cacheRoot, separateChannels, false );
+    }
 
-    private WritableByteChannel cout;
-    
     /**
-     * the channel we write to, used with bouts.
+     * create the iterator, which writes the files as records are read.
+     * @param info the info describing the parameters.
+     * @param source the records.
+     * @param startTime the start time of the request.
+     * @param endTime the end time of the request.
+     * @param cacheRoot the root of the cache for the dataset.
+     * @param separateChannels if true, write a file for each parameter.
+     * @param writeBehind if true, write the files on a separate thread.
      */
-    private WritableByteChannel[] couts; 
-    
-    private final boolean separateChannels;
-    
-    JSONObject info;
-    
-    public WriteCacheIterator( JSONObject info, 
-            Iterator<HapiRecord> source, 
-            String startTime, 
-            String endTime, 
-            File cacheRoot, 
-            boolean separateChannels ) {
-        
+    public WriteCacheIterator( JSONObject info,
+            Iterator<HapiRecord> source,
+            String startTime,
+            String endTime,
+            File cacheRoot,
+            boolean separateChannels,
+            boolean writeBehind ) {
+
         this.source= source;
         // cache complete days.
-        this.startTime= TimeUtil.ceil(startTime);
-        this.endTime= TimeUtil.floor(endTime);
+        this.startNanos= TimeUtil.toNanosecondsSince1970( TimeUtil.ceil(startTime) );
+        this.endNanos= TimeUtil.toNanosecondsSince1970( TimeUtil.floor(endTime) );
         this.info= info;
         this.cacheRoot= cacheRoot;
-        this.pid= com.cottagesystems.util.Util.getProcessId("99999");
         this.separateChannels = separateChannels;
         if ( source instanceof HapiClientBinaryIterator ) {
             this.ext= "binary";
         } else {
             this.ext="csv";
-        } 
+        }
+        this.writer= new CacheWriter( writeBehind, cacheRoot );
+    }
+
+    /**
+     * write gzip files, with .gz added to each name, which the cache readers
+     * also accept.  This must be set before the first record is read.
+     * @param compressed true if the files should be compressed.
+     */
+    public void setCompressed( boolean compressed ) {
+        writer.setCompressed( compressed );
+    }
+
+    /**
+     * write one columnar file for each day, rather than CSV or binary files.
+     * This must be set before the first record is read.  Columnar files 
+     * contain all the parameters of the records, and are not compressed.
+     * @param columnar true if columnar files should be written.
+     * @see ColumnarCacheFile
+     */
+    public void setColumnar( boolean columnar ) {
+        if ( columnar ) {
+            try {
+                this.columnar= new ColumnarCacheFile( info );
+            } catch ( JSONException ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+            writer.setCompressed( false );
+        } else {
+            this.columnar= null;
+        }
     }
 
     /**
-     * rewrite the startTime and endTime to the same format as the source,
-     * so simple string comparisons can be made.
+     * get the names of the parameters from the info.
      * @param record an example record
      */
     private void initializeFirstRec( HapiRecord record ) {
-        startTime= TimeUtil.reformatIsoTime(record.getIsoTime(0), startTime );
-        endTime= TimeUtil.reformatIsoTime(record.getIsoTime(0), endTime );
         doInitialize= false;
         try {
-            JSONArray parameters= info.getJSONArray("parameters");
-            names= new String[record.length()];
-            for ( int i=0; i<names.length; i++ ) {
-                names[i]= parameters.getJSONObject(i).getString("name");
-            }
+            names= ParameterSchema.of(info).getNames();
         } catch (JSONException ex) {
             logger.log(Level.SEVERE, null, ex);
         }
     }
-    
+
+    @Override
+    public long getCount() {
+        if ( source instanceof CountedIterator ) {
+            return ((CountedIterator)source).getCount();
+        } else {
+            return -1;
+        }
+    }
+
     @Override
     public boolean hasNext() {
         boolean hasNext=source.hasNext();
-        if ( hasNext==false ) {
-            if ( separateChannels ) {
-                if ( channels!=null ) {
-                    doInstall();
-                }
-            } else {
-                if ( channel!=null ) {
-                    doInstall();
-                }
+        if ( hasNext==false && !closed ) {
+            if ( currentTag!=null ) {
+                doInstall();
+                currentTag= null;
             }
+            closed= true;
+            writer.close();
         }
         return hasNext;
     }
 
+    /**
+     * stop reading the records, discarding the day being written and closing the source.
+     */
+    @Override
+    public void close() {
+        if ( !closed ) {
+            closed= true;
+            if ( currentTag!=null ) {
+                writer.discardDay();
+                currentTag= null;
+            }
+            writer.close();
+        }
+        HapiClient.close( source );
+    }
+
     /**
      * return the name of the file within the cache.
      * @param cacheRoot the root for the HAPI cache
@@ -147,7 +220,7 @@ public class WriteCacheIterator implements Iterator<HapiRecord> {
      * @param name the parameter name, or empty string
      * @return the file
      */
-    private static File getCacheFile( File cacheRoot, String currentTag, String name, String ext) {
+    static File getCacheFile( File cacheRoot, String currentTag, String name, String ext) {
         String dirWithinCache= currentTag.substring(0,4)+"/"+currentTag.substring(4,6);
         File dir= new File(cacheRoot,dirWithinCache);
         if ( name.length()>0 ) {
@@ -156,194 +229,89 @@ public class WriteCacheIterator implements Iterator<HapiRecord> {
             return new File( dir, currentTag + "."+ ext );
         }
     }
-    
-    
+
     @Override
     public HapiRecord next() {
         HapiRecord record= source.next();
         if ( doInitialize ) {
             initializeFirstRec(record);
         }
-        if ( currentTag!=null && tempEndTime!=null && tempEndTime.compareTo( record.getIsoTime(0) )<=0 ) {
+        long nanos= record.getNanosecondsSince1970(0);
+        if ( currentTag!=null && tempEndNanos<=nanos ) {
             doInstall();
             currentTag= null;
         }
-        
-        if ( currentTag==null &&
-            startTime.compareTo( record.getIsoTime(0) )<=0 &&
-            endTime.compareTo( record.getIsoTime(0) )>0 ) {
-            String tag=  TimeUtil.reformatIsoTime( "2000-01-01Z", record.getIsoTime(0) );
+
+        if ( currentTag==null && startNanos<=nanos && nanos<endNanos ) {
+            String tag= DAY_FORMAT.format( nanos );
             currentTag= tag.substring(0,4) + tag.substring(5,7) + tag.substring( 8,10 );
-            
+
             initializeOutputs();
-            tempEndTime= TimeUtil.reformatIsoTime( record.getIsoTime(0), TimeUtil.nextDay(record.getIsoTime(0)) );
+            dayRecords= 0;
+            tempEndNanos= ( Math.floorDiv( nanos, NANOS_PER_DAY ) + 1 ) * NANOS_PER_DAY;
+        }
+
+        if ( currentTag!=null ) {
+            dayRecords++;
         }
         
-        if ( ext.equals("csv") ) {
-            if ( currentTag!=null ) {
+        if ( currentTag!=null && columnar!=null ) {
+            columnar.add( record );
+        } else if ( currentTag!=null ) {
+            if ( ext.equals("csv") ) {
                 if ( separateChannels ) {
                     for ( int i=0; i<names.length; i++ ) {
-                        fouts[i].println(record.getAsString(i));
+                        byte[] bytes= ( record.getAsString(i) + "\n" ).getBytes( StandardCharsets.UTF_8 );
+                        writer.write( i, bytes, 0, bytes.length );
                     }
                 } else {
                     StringBuilder b= new StringBuilder( record.getAsString(0) );
                     for ( int i=1; i<names.length; i++ ) {
                         b.append(",").append( record.getAsString(i) );
                     }
-                    fout.println(b.toString());
+                    b.append("\n");
+                    byte[] bytes= b.toString().getBytes( StandardCharsets.UTF_8 );
+                    writer.write( 0, bytes, 0, bytes.length );
                 }
-            }
-        } else if ( ext.equals("binary") ) {
-            BinaryHapiRecord brecord= (BinaryHapiRecord)record;
-            if ( currentTag!=null ) {
-                try {
-                    if ( separateChannels ) {
-                        for ( int i=0; i<names.length; i++ ) {
-                            couts[i].write( brecord.getAsByteBuffer(i) );
-                        }
-                    } else {
-                        ByteBuffer out1= brecord.getAsByteBuffer();
-                        cout.write( out1);
+            } else {
+                BinaryHapiRecord brecord= (BinaryHapiRecord)record;
+                if ( separateChannels ) {
+                    for ( int i=0; i<names.length; i++ ) {
+                        writer.write( i, brecord.getAsByteBuffer(i) );
                     }
-                } catch ( IOException ex ) {
-                    logger.warning(ex.getMessage());
-                }    
+                } else {
+                    writer.write( 0, brecord.getAsByteBuffer() );
+                }
             }
         }
-        
+
         return record;
     }
 
     private void doInstall() {
-        switch (ext) {
-            case "csv":
-                if ( separateChannels ) {
-                    for ( int i=0; i<fouts.length; i++ ) {
-                        PrintWriter fout1 = fouts[i];
-                        fout1.close();
-                        install( channels[i] );
-                    }
-                    channels=null;
-                } else {
-                    fout.close();
-                    install( channel );
-                    channel= null;
-                }   break;
-            case "binary":
-                if ( separateChannels ) {
-                    for ( int i=0; i<bouts.length; i++ ) {
-                        OutputStream fout1 = bouts[i];
-                        try {
-                            fout1.close();
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                        install( channels[i] );
-                    }
-                    channels=null;
-                } else {
-                    try {
-                        bout.close();
-                    } catch ( IOException ex ) {
-                        throw new RuntimeException(ex);
-                    }
-                    install( channel );
-                    channel= null;
-                }   break;
-            default:
-                throw new IllegalStateException("ext should be csv or binary");
+        if ( columnar!=null ) {
+            columnar.writeTo( writer );
         }
+        writer.install( dayRecords );
     }
 
     /**
-     * initialize bout or bouts, or fout and fouts to the channels where data
-     * will go. This uses class variable names and separateChannels to identify 
-     * what should be opened.
+     * start the files for the current day. This uses class variable names
+     * and separateChannels to identify what should be opened.
      */
     private void initializeOutputs() {
-        switch (ext) {
-            case "csv":
-                if ( separateChannels ) {
-                    channels= new File[names.length];
-                    fouts= new PrintWriter[names.length];
-                    for ( int i=0; i<names.length; i++ ) {
-                        channels[i]= getCacheFile(cacheRoot, currentTag, names[i], ext );
-                        try {
-                            if ( !channels[i].getParentFile().exists() ) {
-                                if ( !channels[i].getParentFile().mkdirs() ) {
-                                    logger.log(Level.WARNING, "unable to make directory for {0}", channels[i]);
-                                }
-                            }
-                            fouts[i]= new PrintWriter(channels[i] + ".writing."+pid  );
-                        } catch (FileNotFoundException ex) {
-                            logger.log(Level.SEVERE, null, ex);
-                        }
-                    }
-                } else {
-                    channel= getCacheFile(cacheRoot, currentTag, "", ext );
-                    try {
-                        if ( !channel.getParentFile().exists() ) {
-                            if ( !channel.getParentFile().mkdirs() ) {
-                                logger.log(Level.WARNING, "unable to make directory for {0}", channels);
-                            }
-                        }
-                        fout= new PrintWriter( channel + ".writing."+pid );
-                    } catch (FileNotFoundException ex) {
-                        logger.log(Level.SEVERE, null, ex);
-                    }
-                }   break;
-            case "binary":
-                if ( separateChannels ) {
-                    channels= new File[names.length];
-                    bouts= new FileOutputStream[names.length];
-                    couts= new WritableByteChannel[names.length];
-                    for ( int i=0; i<names.length; i++ ) {
-                        channels[i]= getCacheFile(cacheRoot, currentTag, names[i], ext );
-                        try {
-                            if ( !channels[i].getParentFile().exists() ) {
-                                if ( !channels[i].getParentFile().mkdirs() ) {
-                                    logger.log(Level.WARNING, "unable to make directory for {0}", channels[i]);
-                                }
-                            }
-                            bouts[i]= new FileOutputStream(channels[i] + ".writing."+pid  );
-                            couts[i]= bouts[i].getChannel();
-                        } catch (FileNotFoundException ex) {
-                            logger.log(Level.SEVERE, null, ex);
-                        }
-                    }
-                } else {
-                    channel= getCacheFile(cacheRoot, currentTag, "", ext );
-                    try {
-                        if ( !channel.getParentFile().exists() ) {
-                            if ( !channel.getParentFile().mkdirs() ) {
-                                logger.log(Level.WARNING, "unable to make directory for {0}", channels);
-                            }
-                        }
-                        bout= new FileOutputStream( channel + ".writing."+pid );
-                        cout= bout.getChannel();
-                    } catch (FileNotFoundException ex) {
-                        logger.log(Level.SEVERE, null, ex);
-                    }
-                }   break;
-            default:
-                throw new IllegalStateException("ext should be csv or binary");
-        }
-    }
-        
-    private void install(File channel) {
-        String name= channel.getAbsolutePath();
-        File ch= new File( name + ".writing."+pid );
-        if ( !ch.exists() ) {
-            throw new IllegalArgumentException("incorrect name, should have found "+ch);
-        } 
-        logger.log(Level.FINE, "move stage file into cache: {0}", name);
-        if ( !ch.renameTo( new File(name) ) ) {
-            if ( !ch.delete() ) {
-                logger.info("temporary file left in cache");
-            } else {
-                logger.info("Unable to install file in cache");
+        File[] files;
+        if ( columnar!=null ) {
+            files= new File[] { getCacheFile(cacheRoot, currentTag, "", ColumnarCacheFile.EXT ) };
+        } else if ( separateChannels ) {
+            files= new File[names.length];
+            for ( int i=0; i<names.length; i++ ) {
+                files[i]= getCacheFile(cacheRoot, currentTag, names[i], ext );
             }
+        } else {
+            files= new File[] { getCacheFile(cacheRoot, currentTag, "", ext ) };
         }
+        writer.open( files );
     }
 
 }
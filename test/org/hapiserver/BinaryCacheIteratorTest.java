@@ -0,0 +1,116 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BinaryCacheIterator
+ * @author jbf
+ */
+public class BinaryCacheIteratorTest {
+
+    public BinaryCacheIteratorTest() {
+    }
+
+    private static JSONObject info() throws JSONException {
+        return new JSONObject( "{\"HAPI\":\"3.0\",\"parameters\":["
+                + "{\"name\":\"Time\",\"type\":\"isotime\",\"length\":24,\"units\":\"UTC\",\"fill\":null},"
+                + "{\"name\":\"x\",\"type\":\"double\",\"units\":\"nT\",\"fill\":\"-1e31\"}]}" );
+    }
+
+    private static File tempDir() throws IOException {
+        File dir= File.createTempFile( "hapiBinary", "" );
+        if ( !dir.delete() || !dir.mkdir() ) {
+            throw new IOException("unable to make "+dir);
+        }
+        return dir;
+    }
+
+    private static void delete( File f ) {
+        File[] ff= f.listFiles();
+        if ( ff!=null ) {
+            for ( File f1: ff ) delete( f1 );
+        }
+        if ( !f.delete() ) {
+            System.out.println("unable to delete "+f);
+        }
+    }
+
+    /**
+     * write the day with one record each minute, as the Time and x files of the cache.
+     */
+    private static File[] writeDay( File root, String day ) throws IOException {
+        File[] files= new File[] { new File( root, day.replace("-","") + ".Time.binary" ), new File( root, day.replace("-","") + ".x.binary" ) };
+        ByteBuffer times= ByteBuffer.allocate( 1440*24 );
+        ByteBuffer xs= ByteBuffer.allocate( 1440*8 ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i=0; i<1440; i++ ) {
+            times.put( String.format( "%sT%02d:%02d:00.000Z", day, i/60, i%60 ).getBytes( StandardCharsets.US_ASCII ) );
+            xs.putDouble( i );
+        }
+        try ( OutputStream out= new FileOutputStream( files[0] ) ) {
+            out.write( times.array() );
+        }
+        try ( OutputStream out= new FileOutputStream( files[1] ) ) {
+            out.write( xs.array() );
+        }
+        return files;
+    }
+
+    private static int countRecords( Iterator<HapiRecord> it ) {
+        int n= 0;
+        while ( it.hasNext() ) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Test of getCount method, of class BinaryCacheIterator.
+     */
+    @Test
+    public void testGetCount() throws Exception {
+        System.out.println("getCount");
+        File root= tempDir();
+        try {
+            File[][] files= new File[][] { writeDay( root, "2020-01-01" ), writeDay( root, "2020-01-02" ), writeDay( root, "2020-01-03" ) };
+            BinaryCacheIterator it= new BinaryCacheIterator( info(), files );
+            assertEquals( 3*1440, it.getCount() );
+            it.seek( "2020-01-01T12:00Z", "2020-01-03T06:00:30Z" );
+            assertEquals( 720+1440+361, it.getCount() );
+            assertEquals( 720+1440+361, countRecords( it ) );
+        } finally {
+            delete( root );
+        }
+    }
+
+    /**
+     * Test that the count is known when the records are trimmed.
+     */
+    @Test
+    public void testTrimCount() throws Exception {
+        System.out.println("trimCount");
+        File root= tempDir();
+        try {
+            File[][] files= new File[][] { writeDay( root, "2020-01-01" ), writeDay( root, "2020-01-02" ) };
+            TrimHapiRecordIterator it= new TrimHapiRecordIterator(
+                    new BinaryCacheIterator( info(), files ), "2020-01-01T23:00Z", "2020-01-02T01:00Z" );
+            assertEquals( 120, it.getCount() );
+            assertEquals( 120, countRecords( it ) );
+        } finally {
+            delete( root );
+        }
+    }
+
+}
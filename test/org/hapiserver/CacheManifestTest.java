@@ -0,0 +1,143 @@
+
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CacheManifest
+ * @author jbf
+ */
+public class CacheManifestTest {
+
+    public CacheManifestTest() {
+    }
+
+    private static File tempDir() throws IOException {
+        File dir= File.createTempFile( "hapiManifest", "" );
+        if ( !dir.delete() || !dir.mkdir() ) {
+            throw new IOException("unable to make "+dir);
+        }
+        return dir;
+    }
+
+    private static void delete( File f ) {
+        File[] ff= f.listFiles();
+        if ( ff!=null ) {
+            for ( File f1: ff ) delete( f1 );
+        }
+        if ( !f.delete() ) {
+            System.out.println("unable to delete "+f);
+        }
+    }
+
+    private static File write( File root, String path, int nbytes ) throws IOException {
+        File f= new File( root, path );
+        if ( !f.getParentFile().exists() && !f.getParentFile().mkdirs() ) {
+            throw new IOException("unable to make "+f.getParentFile());
+        }
+        try ( OutputStream out= new FileOutputStream(f) ) {
+            out.write( new byte[nbytes] );
+        }
+        return f;
+    }
+
+    /**
+     * append the text to the manifest, as another process would.
+     */
+    private static void append( File root, String text ) throws IOException {
+        try ( OutputStream out= new FileOutputStream( new File( root, CacheManifest.NAME ), true ) ) {
+            out.write( text.getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    /**
+     * Test of add and remove, of class CacheManifest.
+     */
+    @Test
+    public void testAddRemove() throws Exception {
+        System.out.println("addRemove");
+        File root= tempDir();
+        try {
+            CacheManifest manifest= CacheManifest.getInstance( root );
+            manifest.refresh();
+            File f= write( root, "2020/01/20200102.x.binary", 100 );
+            assertEquals( "2020/01/20200102.x.binary", manifest.relativePath(f) );
+            assertNull( manifest.get( "2020/01/20200102.x.binary" ) );
+            manifest.add( f, 12 );
+            CacheManifest.Entry e= manifest.get( "2020/01/20200102.x.binary" );
+            assertNotNull( e );
+            assertEquals( 100, e.size );
+            assertEquals( 12, e.records );
+            manifest.remove( f );
+            assertNull( manifest.get( "2020/01/20200102.x.binary" ) );
+            manifest.refresh();
+            assertNull( manifest.get( "2020/01/20200102.x.binary" ) );
+        } finally {
+            delete( root );
+        }
+    }
+
+    /**
+     * Test that a manifest is made from the files of a cache written without one.
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        System.out.println("rebuild");
+        File root= tempDir();
+        try {
+            write( root, "2020/01/20200101.x.binary", 10 );
+            write( root, "2020/01/20200102.x.binary", 20 );
+            write( root, "2020/01/20200103.x.binary.writing.123.1", 30 );
+            CacheManifest manifest= CacheManifest.getInstance( root );
+            manifest.refresh();
+            assertTrue( new File( root, CacheManifest.NAME ).exists() );
+            assertEquals( 10, manifest.get( "2020/01/20200101.x.binary" ).size );
+            assertEquals( 20, manifest.get( "2020/01/20200102.x.binary" ).size );
+            assertEquals( -1, manifest.get( "2020/01/20200102.x.binary" ).records );
+            assertNull( manifest.get( "2020/01/20200103.x.binary.writing.123.1" ) );
+            assertNull( manifest.get( CacheManifest.NAME ) );
+        } finally {
+            delete( root );
+        }
+    }
+
+    /**
+     * Test that refresh reads the lines added by another process, but not a
+     * line which is still being written, and notices when the manifest is replaced.
+     */
+    @Test
+    public void testOtherProcess() throws Exception {
+        System.out.println("otherProcess");
+        File root= tempDir();
+        try {
+            CacheManifest manifest= CacheManifest.getInstance( root );
+            manifest.refresh();
+            append( root, "2020/01/20200101.x.binary\t10\t5\t1000\n2020/01/20200102.x.bin" );
+            manifest.refresh();
+            assertEquals( 5, manifest.get( "2020/01/20200101.x.binary" ).records );
+            assertNull( manifest.get( "2020/01/20200102.x.binary" ) );
+            append( root, "ary\t20\t6\t1000\n2020/01/20200101.x.binary\t-1\t0\t0\n" );
+            manifest.refresh();
+            assertNull( manifest.get( "2020/01/20200101.x.binary" ) );
+            assertEquals( 6, manifest.get( "2020/01/20200102.x.binary" ).records );
+
+            File temp= new File( root, "manifest.temp" );
+            Files.write( temp.toPath(), "2020/01/20200103.x.binary\t30\t7\t1000\n".getBytes( StandardCharsets.UTF_8 ) );
+            Files.move( temp.toPath(), new File( root, CacheManifest.NAME ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+            manifest.refresh();
+            assertNull( manifest.get( "2020/01/20200102.x.binary" ) );
+            assertEquals( 7, manifest.get( "2020/01/20200103.x.binary" ).records );
+        } finally {
+            delete( root );
+        }
+    }
+
+}
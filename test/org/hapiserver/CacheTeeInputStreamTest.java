@@ -0,0 +1,329 @@
+
+package org.hapiserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CacheTeeInputStream, which must install day files containing
+ * the bytes of the response, however the response is split between reads.
+ * @author jbf
+ */
+public class CacheTeeInputStreamTest {
+
+    public CacheTeeInputStreamTest() {
+    }
+
+    /**
+     * the sizes of the reads: single bytes, odd sizes which split records
+     * and newlines at different places, and large reads.
+     */
+    private static final int[][] READ_SIZES= { { 1 }, { 7, 13, 1 }, { 997 }, { 65536 } };
+
+    private static JSONObject info() throws JSONException {
+        return new JSONObject( "{\"HAPI\":\"3.0\",\"parameters\":["
+                + "{\"name\":\"Time\",\"type\":\"isotime\",\"length\":24,\"units\":\"UTC\",\"fill\":null},"
+                + "{\"name\":\"x\",\"type\":\"double\",\"units\":\"nT\",\"fill\":\"-1e31\"},"
+                + "{\"name\":\"spec\",\"type\":\"double\",\"size\":[3],\"units\":\"counts\",\"fill\":\"-1e31\"},"
+                + "{\"name\":\"label\",\"type\":\"string\",\"length\":8,\"units\":null,\"fill\":null}]}" );
+    }
+
+    private static File tempDir() throws IOException {
+        File dir= File.createTempFile( "hapiTee", "" );
+        if ( !dir.delete() || !dir.mkdir() ) {
+            throw new IOException("unable to make "+dir);
+        }
+        return dir;
+    }
+
+    private static void delete( File f ) {
+        File[] ff= f.listFiles();
+        if ( ff!=null ) {
+            for ( File f1: ff ) delete( f1 );
+        }
+        if ( !f.delete() ) {
+            System.out.println("unable to delete "+f);
+        }
+    }
+
+    private static String time( int day, int i ) {
+        int s= i*600;
+        return String.format( "2020-01-%02dT%02d:%02d:%02d.000Z", day, s/3600, s/60%60, s%60 );
+    }
+
+    /**
+     * return the CSV fields of each parameter of a record, where the label
+     * is quoted and contains a comma.
+     */
+    private static String[] fields( int day, int i ) {
+        return new String[] { time( day, i ), String.valueOf( i*0.5 ),
+            i + "," + (i+1) + "," + (i+2), "\"a," + i%100 + "\"" };
+    }
+
+    /**
+     * return the CSV lines of the days, with a record every ten minutes.
+     */
+    private static String csv( int firstDay, int lastDay, String newline ) {
+        StringBuilder b= new StringBuilder();
+        for ( int day=firstDay; day<=lastDay; day++ ) {
+            for ( int i=0; i<144; i++ ) {
+                b.append( String.join( ",", fields( day, i ) ) ).append( newline );
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * return the CSV column of one parameter for the day, as it is written to its file.
+     */
+    private static String column( int day, int iparam ) {
+        StringBuilder b= new StringBuilder();
+        for ( int i=0; i<144; i++ ) {
+            b.append( fields( day, i )[iparam] ).append( "\n" );
+        }
+        return b.toString();
+    }
+
+    /**
+     * return the binary records of the days, with a record every ten minutes.
+     */
+    private static byte[] binary( int firstDay, int lastDay ) {
+        int recordSize= 24 + 8 + 24 + 8;
+        ByteBuffer b= ByteBuffer.allocate( ( lastDay-firstDay+1 ) * 144 * recordSize ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int day=firstDay; day<=lastDay; day++ ) {
+            for ( int i=0; i<144; i++ ) {
+                b.put( time( day, i ).getBytes( StandardCharsets.US_ASCII ) );
+                b.putDouble( i*0.5 );
+                b.putDouble( i ).putDouble( i+1 ).putDouble( i+2 );
+                b.put( String.format( "lab%05d", i ).getBytes( StandardCharsets.US_ASCII ) );
+            }
+        }
+        return b.array();
+    }
+
+    /**
+     * read all the bytes through the tee, using reads of the sizes given,
+     * where reads of one byte use read().
+     */
+    private static byte[] readAll( InputStream in, int[] sizes ) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        byte[] buf= new byte[65536];
+        int k= 0;
+        while ( true ) {
+            int size= sizes[ k++ % sizes.length ];
+            if ( size==1 ) {
+                int c= in.read();
+                if ( c==-1 ) break;
+                out.write( c );
+            } else {
+                int n= in.read( buf, 0, size );
+                if ( n==-1 ) break;
+                out.write( buf, 0, n );
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * send the response through the tee, check that the reader sees the same
+     * bytes, and return the cache folder.
+     */
+    private static File tee( byte[] response, String format, String startTime, String endTime,
+            boolean separateChannels, int[] sizes ) throws Exception {
+        File root= tempDir();
+        CacheTeeInputStream tee= new CacheTeeInputStream( info(), new ByteArrayInputStream( response ),
+                format, startTime, endTime, root, separateChannels, true );
+        assertArrayEquals( response, readAll( tee, sizes ) );
+        return root;
+    }
+
+    private static byte[] read( File root, String tag, String name, String ext ) throws IOException {
+        File f= WriteCacheIterator.getCacheFile( root, tag, name, ext );
+        assertTrue( "missing "+f, f.exists() );
+        return Files.readAllBytes( f.toPath() );
+    }
+
+    private static byte[] bytes( String s ) {
+        return s.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Test of CSV written to one file for each day, with reads of different sizes.
+     */
+    @Test
+    public void testCSVCombined() throws Exception {
+        System.out.println("CSV combined");
+        for ( int[] sizes: READ_SIZES ) {
+            File root= tee( bytes( csv( 1, 2, "\n" ) ), "csv", "2020-01-01T00:00Z", "2020-01-03T00:00Z", false, sizes );
+            try {
+                assertArrayEquals( bytes( csv( 1, 1, "\n" ) ), read( root, "20200101", "", "csv" ) );
+                assertArrayEquals( bytes( csv( 2, 2, "\n" ) ), read( root, "20200102", "", "csv" ) );
+            } finally {
+                delete( root );
+            }
+        }
+    }
+
+    /**
+     * Test of CSV split into a file for each parameter, where the array and
+     * the quoted string contain commas.
+     */
+    @Test
+    public void testCSVSeparate() throws Exception {
+        System.out.println("CSV separate");
+        String[] names= { "Time", "x", "spec", "label" };
+        for ( int[] sizes: READ_SIZES ) {
+            File root= tee( bytes( csv( 1, 2, "\n" ) ), "csv", "2020-01-01T00:00Z", "2020-01-03T00:00Z", true, sizes );
+            try {
+                for ( int day=1; day<=2; day++ ) {
+                    for ( int j=0; j<names.length; j++ ) {
+                        assertArrayEquals( names[j], bytes( column( day, j ) ), read( root, "2020010"+day, names[j], "csv" ) );
+                    }
+                }
+            } finally {
+                delete( root );
+            }
+        }
+    }
+
+    /**
+     * Test of CSV with lines ending in carriage return and newline.  The
+     * combined files keep the lines as they are, and the parameter files
+     * end each line with a newline.
+     */
+    @Test
+    public void testCRLF() throws Exception {
+        System.out.println("CRLF");
+        for ( int[] sizes: READ_SIZES ) {
+            File root= tee( bytes( csv( 1, 1, "\r\n" ) ), "csv", "2020-01-01T00:00Z", "2020-01-02T00:00Z", false, sizes );
+            try {
+                assertArrayEquals( bytes( csv( 1, 1, "\r\n" ) ), read( root, "20200101", "", "csv" ) );
+            } finally {
+                delete( root );
+            }
+            root= tee( bytes( csv( 1, 1, "\r\n" ) ), "csv", "2020-01-01T00:00Z", "2020-01-02T00:00Z", true, sizes );
+            try {
+                assertArrayEquals( bytes( column( 1, 2 ) ), read( root, "20200101", "spec", "csv" ) );
+                assertArrayEquals( bytes( column( 1, 3 ) ), read( root, "20200101", "label", "csv" ) );
+            } finally {
+                delete( root );
+            }
+        }
+    }
+
+    /**
+     * Test of a response where the last line has no newline, which is
+     * cached with a newline.
+     */
+    @Test
+    public void testNoFinalNewline() throws Exception {
+        System.out.println("noFinalNewline");
+        String csv= csv( 1, 1, "\n" );
+        for ( int[] sizes: READ_SIZES ) {
+            File root= tee( bytes( csv.substring( 0, csv.length()-1 ) ), "csv", "2020-01-01T00:00Z", "2020-01-02T00:00Z", false, sizes );
+            try {
+                assertArrayEquals( bytes( csv ), read( root, "20200101", "", "csv" ) );
+            } finally {
+                delete( root );
+            }
+            root= tee( bytes( csv.substring( 0, csv.length()-1 ) ), "csv", "2020-01-01T00:00Z", "2020-01-02T00:00Z", true, sizes );
+            try {
+                assertArrayEquals( bytes( column( 1, 3 ) ), read( root, "20200101", "label", "csv" ) );
+            } finally {
+                delete( root );
+            }
+        }
+    }
+
+    /**
+     * Test of binary records written to one file for each day, and split
+     * into a file for each parameter.
+     */
+    @Test
+    public void testBinary() throws Exception {
+        System.out.println("binary");
+        int recordSize= 64;
+        byte[] response= binary( 1, 2 );
+        byte[] day2= Arrays.copyOfRange( response, 144*recordSize, response.length );
+        for ( int[] sizes: READ_SIZES ) {
+            File root= tee( response, "binary", "2020-01-01T00:00Z", "2020-01-03T00:00Z", false, sizes );
+            try {
+                assertArrayEquals( Arrays.copyOf( response, 144*recordSize ), read( root, "20200101", "", "binary" ) );
+                assertArrayEquals( day2, read( root, "20200102", "", "binary" ) );
+            } finally {
+                delete( root );
+            }
+            root= tee( response, "binary", "2020-01-01T00:00Z", "2020-01-03T00:00Z", true, sizes );
+            try {
+                byte[] spec= read( root, "20200102", "spec", "binary" );
+                assertEquals( 144*24, spec.length );
+                for ( int i=0; i<144; i++ ) {
+                    for ( int k=0; k<24; k++ ) {
+                        assertEquals( day2[ i*recordSize + 32 + k ], spec[ i*24 + k ] );
+                    }
+                }
+                byte[] label= read( root, "20200102", "label", "binary" );
+                assertEquals( "lab00143", new String( label, 143*8, 8, StandardCharsets.US_ASCII ) );
+            } finally {
+                delete( root );
+            }
+        }
+    }
+
+    /**
+     * Test that days which are not complete within the request are not cached.
+     */
+    @Test
+    public void testPartialDays() throws Exception {
+        System.out.println("partialDays");
+        String csv= csv( 1, 3, "\n" );
+        int start= csv.indexOf( time( 1, 72 ) );
+        int end= csv.indexOf( time( 3, 72 ) );
+        File root= tee( bytes( csv.substring( start, end ) ), "csv", "2020-01-01T12:00Z", "2020-01-03T12:00Z", false, new int[] { 7, 13, 1 } );
+        try {
+            assertFalse( WriteCacheIterator.getCacheFile( root, "20200101", "", "csv" ).exists() );
+            assertArrayEquals( bytes( csv( 2, 2, "\n" ) ), read( root, "20200102", "", "csv" ) );
+            assertFalse( WriteCacheIterator.getCacheFile( root, "20200103", "", "csv" ).exists() );
+        } finally {
+            delete( root );
+        }
+    }
+
+    /**
+     * Test that a day which is not complete when the stream is closed is discarded.
+     */
+    @Test
+    public void testClosedEarly() throws Exception {
+        System.out.println("closedEarly");
+        byte[] response= bytes( csv( 1, 2, "\n" ) );
+        File root= tempDir();
+        try {
+            CacheTeeInputStream tee= new CacheTeeInputStream( info(), new ByteArrayInputStream( response ),
+                    "csv", "2020-01-01T00:00Z", "2020-01-03T00:00Z", root, false, true );
+            byte[] buf= new byte[1000];
+            int n= 0;
+            while ( n<response.length*3/4 ) {
+                n+= tee.read( buf, 0, buf.length );
+            }
+            tee.close();
+            assertArrayEquals( bytes( csv( 1, 1, "\n" ) ), read( root, "20200101", "", "csv" ) );
+            assertFalse( WriteCacheIterator.getCacheFile( root, "20200102", "", "csv" ).exists() );
+        } finally {
+            delete( root );
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+
+package org.hapiserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CacheWriter
+ * @author jbf
+ */
+public class CacheWriterTest {
+
+    public CacheWriterTest() {
+    }
+
+    private static File tempDir() throws IOException {
+        File dir= File.createTempFile( "hapiWriter", "" );
+        if ( !dir.delete() || !dir.mkdir() ) {
+            throw new IOException("unable to make "+dir);
+        }
+        return dir;
+    }
+
+    private static void delete( File f ) {
+        File[] ff= f.listFiles();
+        if ( ff!=null ) {
+            for ( File f1: ff ) delete( f1 );
+        }
+        if ( !f.delete() ) {
+            System.out.println("unable to delete "+f);
+        }
+    }
+
+    /**
+     * return the bytes, 200000 of them so that there are several batches.
+     */
+    private static byte[] content( int seed ) {
+        byte[] result= new byte[200000];
+        for ( int i=0; i<result.length; i++ ) {
+            result[i]= (byte)( i*seed + i/1000 );
+        }
+        return result;
+    }
+
+    private static byte[] read( InputStream in ) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        byte[] buf= new byte[8192];
+        int n;
+        while ( ( n= in.read(buf) )!=-1 ) {
+            out.write( buf, 0, n );
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * return the number of staging files in the folder and its subfolders.
+     */
+    private static int countStaging( File dir ) {
+        int n= 0;
+        File[] ff= dir.listFiles();
+        if ( ff!=null ) {
+            for ( File f: ff ) {
+                n+= f.isDirectory() ? countStaging(f) : ( f.getName().contains(".writing.") ? 1 : 0 );
+            }
+        }
+        return n;
+    }
+
+    /**
+     * write two files for the day, in pieces of different sizes.
+     */
+    private static void writeDay( CacheWriter writer, File[] files, byte[] a, byte[] b ) {
+        writer.open( files );
+        for ( int i=0; i<a.length; i+= 777 ) {
+            writer.write( 0, a, i, Math.min( 777, a.length-i ) );
+        }
+        for ( int i=0; i<b.length; i+= 70001 ) {
+            writer.write( 1, ByteBuffer.wrap( b, i, Math.min( 70001, b.length-i ) ) );
+        }
+    }
+
+    /**
+     * Test of writing on a separate thread and installing the files.
+     */
+    @Test
+    public void testInstall() throws Exception {
+        System.out.println("install");
+        File root= tempDir();
+        try {
+            File[] files= new File[] { new File( root, "2020/01/20200101.Time.binary" ), new File( root, "2020/01/20200101.x.binary" ) };
+            byte[] a= content(3);
+            byte[] b= content(7);
+            CacheWriter writer= new CacheWriter( true, root );
+            writeDay( writer, files, a, b );
+            writer.install( 1440 );
+            writer.close();
+            assertArrayEquals( a, Files.readAllBytes( files[0].toPath() ) );
+            assertArrayEquals( b, Files.readAllBytes( files[1].toPath() ) );
+            assertEquals( 0, countStaging( root ) );
+            CacheManifest manifest= CacheManifest.getInstance( root );
+            manifest.refresh();
+            assertEquals( 1440, manifest.get( "2020/01/20200101.x.binary" ).records );
+            assertEquals( b.length, manifest.get( "2020/01/20200101.x.binary" ).size );
+        } finally {
+            delete( root );
+        }
+    }
+
+    /**
+     * Test that a discarded day leaves no files.
+     */
+    @Test
+    public void testDiscardDay() throws Exception {
+        System.out.println("discardDay");
+        File root= tempDir();
+        try {
+            File[] files= new File[] { new File( root, "2020/01/20200101.Time.binary" ), new File( root, "2020/01/20200101.x.binary" ) };
+            CacheWriter writer= new CacheWriter( true, root );
+            writeDay( writer, files, content(3), content(7) );
+            writer.discardDay();
+            writer.close();
+            assertFalse( files[0].exists() );
+            assertFalse( files[1].exists() );
+            assertEquals( 0, countStaging( root ) );
+        } finally {
+            delete( root );
+        }
+    }
+
+    /**
+     * Test that compressed files can be read with GZIPInputStream.
+     */
+    @Test
+    public void testCompressed() throws Exception {
+        System.out.println("compressed");
+        File root= tempDir();
+        try {
+            File[] files= new File[] { new File( root, "2020/01/20200101.Time.binary" ), new File( root, "2020/01/20200101.x.binary" ) };
+            byte[] a= content(3);
+            byte[] b= content(7);
+            CacheWriter writer= new CacheWriter( false, root );
+            writer.setCompressed( true );
+            writeDay( writer, files, a, b );
+            writer.install( -1 );
+            writer.close();
+            assertFalse( files[0].exists() );
+            assertArrayEquals( a, read( new GZIPInputStream( new FileInputStream( files[0].getPath() + ".gz" ) ) ) );
+            assertArrayEquals( b, read( new GZIPInputStream( new FileInputStream( files[1].getPath() + ".gz" ) ) ) );
+        } finally {
+            delete( root );
+        }
+    }
+
+}
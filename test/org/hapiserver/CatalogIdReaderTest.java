@@ -0,0 +1,97 @@
+
+package org.hapiserver;
+
+import java.io.StringReader;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CatalogIdReader
+ * @author jbf
+ */
+public class CatalogIdReaderTest {
+
+    public CatalogIdReaderTest() {
+    }
+
+    /**
+     * return the ids of the catalog, found using JSONObject.
+     */
+    private static String[] jsonIds( String catalog ) throws JSONException {
+        JSONArray a= new JSONObject( catalog ).getJSONArray("catalog");
+        String[] result= new String[a.length()];
+        for ( int i=0; i<a.length(); i++ ) {
+            result[i]= a.getJSONObject(i).getString("id");
+        }
+        return result;
+    }
+
+    /**
+     * Test of readIds method, of class CatalogIdReader.
+     */
+    @Test
+    public void testReadIds() throws Exception {
+        System.out.println("readIds");
+        String catalog= "{ \"HAPI\": \"3.0\",\n"
+                + "  \"status\": { \"code\": 1200, \"message\": \"OK request successful\" },\n"
+                + "  \"catalog\": [\n"
+                + "    { \"id\": \"ds1\", \"title\": \"with \\\"quotes\\\", commas and {braces]\" },\n"
+                + "    { \"title\": \"id after title\", \"id\": \"ds\\/2\\u00e9\" },\n"
+                + "    { \"id\": \"ds3\", \"info\": { \"id\": \"nested\", \"x\": [ 1, -2.5e3, true, null ] } }\n"
+                + "  ],\n"
+                + "  \"id\": \"not a dataset\"\n"
+                + "}";
+        String[] expResult= new String[] { "ds1", "ds/2\u00e9", "ds3" };
+        assertArrayEquals( expResult, CatalogIdReader.readIds( new StringReader(catalog) ) );
+        assertArrayEquals( jsonIds(catalog), CatalogIdReader.readIds( new StringReader(catalog) ) );
+    }
+
+    /**
+     * Test of readIds method with a catalog larger than the buffer, of class CatalogIdReader.
+     */
+    @Test
+    public void testReadIdsLarge() throws Exception {
+        System.out.println("readIds large");
+        StringBuilder b= new StringBuilder("{\"catalog\":[");
+        for ( int i=0; i<5000; i++ ) {
+            if ( i>0 ) b.append(",");
+            b.append("{\"n\":").append(i).append(",\"id\":\"dataset").append(i).append("\",\"title\":\"title ").append(i).append("\"}");
+        }
+        b.append("],\"HAPI\":\"3.0\",\"status\":{\"code\":1200}}");
+        String catalog= b.toString();
+        String[] result= CatalogIdReader.readIds( new StringReader(catalog) );
+        assertEquals( 5000, result.length );
+        assertArrayEquals( jsonIds(catalog), result );
+    }
+
+    /**
+     * Test of readIds method with an empty catalog, of class CatalogIdReader.
+     */
+    @Test
+    public void testReadIdsEmpty() throws Exception {
+        System.out.println("readIds empty");
+        assertEquals( 0, CatalogIdReader.readIds( new StringReader("{\"HAPI\":\"3.0\",\"catalog\":[ ]}") ).length );
+    }
+
+    /**
+     * Test that readIds rejects responses which are not catalogs.
+     */
+    @Test
+    public void testReadIdsInvalid() throws Exception {
+        System.out.println("readIds invalid");
+        String[] responses= { "{\"HAPI\":\"3.0\",\"status\":{\"code\":1406}}",
+            "{\"catalog\":[{\"id\":\"ds1\"", "[\"catalog\"]", "{\"catalog\":[{\"id\":\"ds1\" \"title\":\"t\"}]}" };
+        for ( String response: responses ) {
+            try {
+                CatalogIdReader.readIds( new StringReader(response) );
+                fail( "expected exception for " + response );
+            } catch ( JSONException ex ) {
+                // expected
+            }
+        }
+    }
+
+}
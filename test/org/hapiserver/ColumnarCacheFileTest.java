@@ -0,0 +1,150 @@
+
+package org.hapiserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ColumnarCacheFile, writing records and reading them with ColumnarCacheIterator.
+ * @author jbf
+ */
+public class ColumnarCacheFileTest {
+
+    public ColumnarCacheFileTest() {
+    }
+
+    private static JSONObject info() throws JSONException {
+        return new JSONObject( "{\"HAPI\":\"3.0\",\"parameters\":["
+                + "{\"name\":\"Time\",\"type\":\"isotime\",\"length\":24,\"units\":\"UTC\",\"fill\":null},"
+                + "{\"name\":\"x\",\"type\":\"double\",\"units\":\"nT\",\"fill\":\"-1e31\"},"
+                + "{\"name\":\"n\",\"type\":\"integer\",\"units\":null,\"fill\":\"-1\"},"
+                + "{\"name\":\"label\",\"type\":\"string\",\"length\":8,\"units\":null,\"fill\":null},"
+                + "{\"name\":\"spec\",\"type\":\"double\",\"size\":[3],\"units\":\"counts\",\"fill\":\"-1e31\"}]}" );
+    }
+
+    /**
+     * return the records of one day, one every 20 seconds.
+     */
+    private static List<HapiRecord> records( JSONObject info, int nrec ) throws Exception {
+        StringBuilder b= new StringBuilder();
+        for ( int i=0; i<nrec; i++ ) {
+            int s= i*20;
+            b.append( String.format( "2020-01-01T%02d:%02d:%02d.000Z", s/3600, s/60%60, s%60 ) );
+            b.append( "," ).append( i*0.5 ).append( "," ).append( i ).append( ",lab" ).append( i%1000 );
+            b.append( "," ).append( i ).append( "," ).append( -i ).append( "," ).append( i*1e10 ).append( "\n" );
+        }
+        List<HapiRecord> result= new ArrayList<>();
+        Iterator<HapiRecord> it= new HapiClientCSVIterator( info, new BufferedReader( new StringReader( b.toString() ) ) );
+        while ( it.hasNext() ) {
+            result.add( it.next() );
+        }
+        return result;
+    }
+
+    private static void delete( File f ) {
+        File[] ff= f.listFiles();
+        if ( ff!=null ) {
+            for ( File f1: ff ) delete( f1 );
+        }
+        if ( !f.delete() ) {
+            System.out.println("unable to delete "+f);
+        }
+    }
+
+    private static File tempDir() throws IOException {
+        File dir= File.createTempFile( "hapiColumnar", "" );
+        if ( !dir.delete() || !dir.mkdir() ) {
+            throw new IOException("unable to make "+dir);
+        }
+        return dir;
+    }
+
+    /**
+     * write the records into a columnar file of the cache.
+     */
+    private static File write( JSONObject info, List<HapiRecord> records, File cacheRoot ) throws JSONException {
+        File f= WriteCacheIterator.getCacheFile( cacheRoot, "20200101", "", ColumnarCacheFile.EXT );
+        ColumnarCacheFile columnar= new ColumnarCacheFile( info );
+        CacheWriter writer= new CacheWriter( false, cacheRoot );
+        writer.open( new File[] { f } );
+        for ( HapiRecord rec: records ) {
+            columnar.add( rec );
+        }
+        assertEquals( records.size(), columnar.size() );
+        columnar.writeTo( writer );
+        writer.install( records.size() );
+        writer.close();
+        return f;
+    }
+
+    private static void assertSameRecord( HapiRecord e, HapiRecord r ) {
+        assertEquals( e.getIsoTime(0), r.getIsoTime(0) );
+        assertEquals( e.getNanosecondsSince1970(0), r.getNanosecondsSince1970(0) );
+        assertEquals( e.getDouble(1), r.getDouble(1), 0. );
+        assertEquals( e.getInteger(2), r.getInteger(2) );
+        assertEquals( e.getString(3), r.getString(3) );
+        assertArrayEquals( e.getDoubleArray(4), r.getDoubleArray(4), 0. );
+    }
+
+    /**
+     * Test of writing records and reading them back.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        JSONObject info= info();
+        List<HapiRecord> records= records( info, 3000 );
+        File cacheRoot= tempDir();
+        try {
+            File f= write( info, records, cacheRoot );
+            assertTrue( f.exists() );
+            assertEquals( 3000, ColumnarCacheFile.readFooter(f).nrec );
+
+            Iterator<HapiRecord> it= new ColumnarCacheIterator( info, new File[] { f } );
+            int n= 0;
+            while ( it.hasNext() ) {
+                HapiRecord r= it.next();
+                assertSameRecord( records.get(n), r );
+                n++;
+            }
+            assertEquals( records.size(), n );
+        } finally {
+            delete( cacheRoot );
+        }
+    }
+
+    /**
+     * Test of reading part of the day, using the first time of each block.
+     */
+    @Test
+    public void testSeek() throws Exception {
+        System.out.println("seek");
+        JSONObject info= info();
+        List<HapiRecord> records= records( info, 3000 );
+        File cacheRoot= tempDir();
+        try {
+            File f= write( info, records, cacheRoot );
+            SeekableHapiRecordIterator it= new ColumnarCacheIterator( info, new File[] { f } );
+            it.seek( "2020-01-01T05:00:10Z", "2020-01-01T12:00Z" ); // records 901 to 2159
+            int n= 901;
+            while ( it.hasNext() ) {
+                HapiRecord r= it.next();
+                assertSameRecord( records.get(n), r );
+                n++;
+            }
+            assertEquals( 2160, n );
+        } finally {
+            delete( cacheRoot );
+        }
+    }
+
+}
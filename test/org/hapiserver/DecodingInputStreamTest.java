@@ -0,0 +1,240 @@
+
+package org.hapiserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for DecodingInputStream
+ * @author jbf
+ */
+public class DecodingInputStreamTest {
+
+    public DecodingInputStreamTest() {
+    }
+
+    /**
+     * return content which compresses, larger than the buffers.
+     */
+    private static byte[] content() {
+        StringBuilder b= new StringBuilder();
+        for ( int i=0; i<20000; i++ ) {
+            b.append( String.format( "2020-01-01T%02d:%02d:%02d.000Z,%d,%e\n", i/3600%24, i/60%60, i%60, i, i*1.1 ) );
+        }
+        return b.toString().getBytes();
+    }
+
+    private static byte[] encode( byte[] bytes, OutputStream out, ByteArrayOutputStream result ) throws IOException {
+        out.write( bytes );
+        out.close();
+        return result.toByteArray();
+    }
+
+    /**
+     * read all the content, in reads of odd sizes.
+     */
+    private static byte[] readAll( InputStream in ) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        byte[] buf= new byte[5000];
+        int k= 0;
+        int n;
+        while ( ( n= in.read( buf, 0, 1 + ( k++ * 997 ) % buf.length ) )!=-1 ) {
+            out.write( buf, 0, n );
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Test of decodeBehind with gzip and deflate content.
+     */
+    @Test
+    public void testDecodeBehind() throws Exception {
+        System.out.println("decodeBehind");
+        byte[] content= content();
+        ByteArrayOutputStream b= new ByteArrayOutputStream();
+        byte[] gzip= encode( content, new GZIPOutputStream(b), b );
+        assertArrayEquals( content, readAll( DecodingInputStream.decodeBehind( new ByteArrayInputStream(gzip), "gzip", false ) ) );
+        assertArrayEquals( content, readAll( DecodingInputStream.decodeBehind( new ByteArrayInputStream(gzip), "x-gzip", false ) ) );
+        b= new ByteArrayOutputStream();
+        byte[] zlib= encode( content, new DeflaterOutputStream(b), b );
+        assertArrayEquals( content, readAll( DecodingInputStream.decodeBehind( new ByteArrayInputStream(zlib), "deflate", false ) ) );
+        b= new ByteArrayOutputStream();
+        byte[] raw= encode( content, new DeflaterOutputStream( b, new Deflater( Deflater.DEFAULT_COMPRESSION, true ) ), b );
+        assertArrayEquals( content, readAll( DecodingInputStream.decodeBehind( new ByteArrayInputStream(raw), "Deflate", false ) ) );
+    }
+
+    /**
+     * Test of content which is not encoded, which is read ahead only when asked.
+     */
+    @Test
+    public void testIdentity() throws Exception {
+        System.out.println("identity");
+        byte[] content= content();
+        InputStream in= new ByteArrayInputStream(content);
+        assertSame( in, DecodingInputStream.decodeBehind( in, null, false ) );
+        assertSame( in, DecodingInputStream.decodeBehind( in, "identity", false ) );
+        assertArrayEquals( content, readAll( DecodingInputStream.decodeBehind( new ByteArrayInputStream(content), null, true ) ) );
+        try {
+            DecodingInputStream.decodeBehind( in, "br", false );
+            fail( "expected exception for unsupported encoding" );
+        } catch ( IOException ex ) {
+            // expected
+        }
+    }
+
+    /**
+     * stream which returns the content and then fails with the exception.
+     */
+    private static class FailingInputStream extends ByteArrayInputStream {
+        final Throwable ex;
+        FailingInputStream( byte[] content, Throwable ex ) {
+            super(content);
+            this.ex= ex;
+        }
+        @Override
+        public synchronized int read( byte[] b, int off, int len ) {
+            int n= super.read( b, off, len );
+            if ( n==-1 ) {
+                if ( ex instanceof Error ) throw (Error)ex;
+                throw (RuntimeException)ex;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * read until the exception, returning it, and check the bytes read before it.
+     */
+    private static IOException readUntilException( InputStream in, byte[] content ) throws Exception {
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            Future<IOException> f= executor.submit( () -> {
+                ByteArrayOutputStream out= new ByteArrayOutputStream();
+                byte[] buf= new byte[1000];
+                try {
+                    int n;
+                    while ( ( n= in.read(buf) )!=-1 ) {
+                        out.write( buf, 0, n );
+                    }
+                } catch ( IOException ex ) {
+                    assertArrayEquals( content, out.toByteArray() );
+                    return ex;
+                } finally {
+                    in.close();
+                }
+                fail( "expected exception" );
+                return null;
+            });
+            return f.get( 10, TimeUnit.SECONDS );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that an error reading the response is thrown after the bytes read before it.
+     */
+    @Test
+    public void testIOException() throws Exception {
+        System.out.println("ioException");
+        byte[] content= content();
+        InputStream failing= new SequenceInputStream( new ByteArrayInputStream(content), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        });
+        IOException ex= readUntilException( DecodingInputStream.decodeBehind( failing, null, true ), content );
+        assertEquals( "connection reset", ex.getMessage() );
+    }
+
+    /**
+     * Test that unexpected exceptions and errors of the decoding thread are
+     * thrown to the reader, rather than leaving it waiting.
+     */
+    @Test
+    public void testUnexpectedException() throws Exception {
+        System.out.println("unexpectedException");
+        byte[] content= content();
+        IOException ex= readUntilException( DecodingInputStream.decodeBehind(
+                new FailingInputStream( content, new IllegalStateException("bad") ), null, true ), content );
+        assertEquals( IllegalStateException.class, ex.getCause().getClass() );
+        ex= readUntilException( DecodingInputStream.decodeBehind(
+                new FailingInputStream( content, new StackOverflowError() ), null, true ), content );
+        assertEquals( StackOverflowError.class, ex.getCause().getClass() );
+    }
+
+    /**
+     * stream which returns a few bytes and then waits until it is released,
+     * like a server which is slow to send the rest of the response.
+     */
+    private static class StalledInputStream extends InputStream {
+        final CountDownLatch released= new CountDownLatch(1);
+        final CountDownLatch closed= new CountDownLatch(1);
+        boolean sent= false;
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( !sent ) {
+                sent= true;
+                for ( int i=0; i<10; i++ ) b[off+i]= (byte)('0'+i);
+                return 10;
+            }
+            try {
+                released.await();
+            } catch ( InterruptedException ex ) {
+                throw new IOException(ex);
+            }
+            return -1;
+        }
+        @Override
+        public int available() {
+            return 0;
+        }
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * Test that the bytes which have arrived are passed to the reader without
+     * waiting for the buffer to fill, and that the response is closed once
+     * the read in progress returns.
+     */
+    @Test
+    public void testStalled() throws Exception {
+        System.out.println("stalled");
+        StalledInputStream stalled= new StalledInputStream();
+        InputStream in= DecodingInputStream.decodeBehind( stalled, null, true );
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> f= executor.submit( () -> in.read( new byte[100] ) );
+            assertEquals( 10, f.get( 10, TimeUnit.SECONDS ).intValue() );
+        } finally {
+            executor.shutdownNow();
+        }
+        in.close();
+        stalled.released.countDown();
+        assertTrue( "response should be closed", stalled.closed.await( 10, TimeUnit.SECONDS ) );
+    }
+
+}
@@ -0,0 +1,145 @@
+
+package org.hapiserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ParallelCSVIterator, which must return the same records as
+ * HapiClientCSVIterator.
+ * @author jbf
+ */
+public class ParallelCSVIteratorTest {
+
+    public ParallelCSVIteratorTest() {
+    }
+
+    /**
+     * return info with a time, a string, and a spectrum with size elements.
+     */
+    private static JSONObject info( int size ) throws JSONException {
+        return new JSONObject( "{\"HAPI\":\"3.0\",\"parameters\":["
+                + "{\"name\":\"Time\",\"type\":\"isotime\",\"length\":24,\"units\":\"UTC\",\"fill\":null},"
+                + "{\"name\":\"label\",\"type\":\"string\",\"length\":8,\"units\":null,\"fill\":null},"
+                + "{\"name\":\"spec\",\"type\":\"double\",\"size\":[" + size + "],\"units\":\"counts\",\"fill\":\"-1e31\"}]}" );
+    }
+
+    /**
+     * return CSV records for the info.
+     * @param nrec the number of records.
+     * @param size the number of elements of the spectrum.
+     * @param newline the characters ending each line.
+     * @param finalNewline if false, the last line has no newline.
+     */
+    private static String csv( int nrec, int size, String newline, boolean finalNewline ) {
+        StringBuilder b= new StringBuilder();
+        for ( int i=0; i<nrec; i++ ) {
+            b.append( String.format( "2020-01-01T%02d:%02d:%02d.000Z", i/3600%24, i/60%60, i%60 ) );
+            b.append( ",\"a,").append( i%100 ).append( "\"" );
+            for ( int j=0; j<size; j++ ) {
+                b.append( "," ).append( i+j*0.25 );
+            }
+            if ( finalNewline || i<nrec-1 ) {
+                b.append( newline );
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * reader which returns a few characters for each read, and is never
+     * ready, like a slow server.
+     */
+    private static class SlowReader extends StringReader {
+        SlowReader( String s ) {
+            super(s);
+        }
+        @Override
+        public int read( char[] cbuf, int off, int len ) throws IOException {
+            return super.read( cbuf, off, Math.min( len, 1000 ) );
+        }
+        @Override
+        public boolean ready() {
+            return false;
+        }
+    }
+
+    /**
+     * check that both iterators return the same records.
+     */
+    private static void assertSameRecords( JSONObject info, String csv, Reader reader, int nrec ) throws Exception {
+        Iterator<HapiRecord> expect= new HapiClientCSVIterator( info, new BufferedReader( new StringReader(csv) ) );
+        Iterator<HapiRecord> result= new ParallelCSVIterator( info, reader, ForkJoinPool.commonPool() );
+        int n= 0;
+        while ( expect.hasNext() ) {
+            assertTrue( "record "+n, result.hasNext() );
+            HapiRecord e= expect.next();
+            HapiRecord r= result.next();
+            assertEquals( e.length(), r.length() );
+            assertEquals( e.getIsoTime(0), r.getIsoTime(0) );
+            assertEquals( e.getNanosecondsSince1970(0), r.getNanosecondsSince1970(0) );
+            assertEquals( e.getString(1), r.getString(1) );
+            assertArrayEquals( e.getDoubleArray(2), r.getDoubleArray(2), 0. );
+            n++;
+        }
+        assertFalse( result.hasNext() );
+        assertEquals( nrec, n );
+    }
+
+    /**
+     * Test of lines ending with carriage return and newline.
+     */
+    @Test
+    public void testCRLF() throws Exception {
+        System.out.println("CRLF");
+        JSONObject info= info(4);
+        String csv= csv( 20000, 4, "\r\n", true );
+        assertSameRecords( info, csv, new StringReader(csv), 20000 );
+    }
+
+    /**
+     * Test of a stream where the last line has no newline.
+     */
+    @Test
+    public void testNoFinalNewline() throws Exception {
+        System.out.println("noFinalNewline");
+        JSONObject info= info(4);
+        String csv= csv( 20000, 4, "\n", false );
+        assertSameRecords( info, csv, new StringReader(csv), 20000 );
+        csv= csv( 20000, 4, "\r\n", false );
+        assertSameRecords( info, csv, new StringReader(csv), 20000 );
+    }
+
+    /**
+     * Test of lines which are longer than the chunks which are read.
+     */
+    @Test
+    public void testLongLines() throws Exception {
+        System.out.println("longLines");
+        JSONObject info= info(20000);
+        String csv= csv( 5, 20000, "\n", true );
+        assertTrue( csv.length()/5 > 131072 );
+        assertSameRecords( info, csv, new StringReader(csv), 5 );
+    }
+
+    /**
+     * Test of a stream which delivers a few characters at a time, where lines
+     * are decoded before the chunk is full.
+     */
+    @Test
+    public void testSlowStream() throws Exception {
+        System.out.println("slowStream");
+        JSONObject info= info(4);
+        String csv= csv( 5000, 4, "\n", false );
+        assertSameRecords( info, csv, new SlowReader(csv), 5000 );
+    }
+
+}
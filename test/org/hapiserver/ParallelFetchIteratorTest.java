@@ -0,0 +1,171 @@
+
+package org.hapiserver;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ParallelFetchIterator
+ * @author jbf
+ */
+public class ParallelFetchIteratorTest {
+
+    public ParallelFetchIteratorTest() {
+    }
+
+    private static JSONObject info() throws JSONException {
+        return new JSONObject( "{\"HAPI\":\"3.0\",\"parameters\":["
+                + "{\"name\":\"Time\",\"type\":\"isotime\",\"length\":24,\"units\":\"UTC\",\"fill\":null},"
+                + "{\"name\":\"x\",\"type\":\"double\",\"units\":\"nT\",\"fill\":\"-1e31\"}]}" );
+    }
+
+    /**
+     * records which hold a permit, like a response holds a connection,
+     * until they are read to the end or closed.
+     */
+    private static class PermitRecords implements Iterator<HapiRecord>, Closeable {
+        final Iterator<HapiRecord> records;
+        Semaphore permits;
+        PermitRecords( Iterator<HapiRecord> records, Semaphore permits ) {
+            this.records= records;
+            this.permits= permits;
+        }
+        @Override
+        public boolean hasNext() {
+            boolean result= records.hasNext();
+            if ( !result ) close();
+            return result;
+        }
+        @Override
+        public HapiRecord next() {
+            return records.next();
+        }
+        @Override
+        public void close() {
+            if ( permits!=null ) {
+                permits.release();
+                permits= null;
+            }
+        }
+    }
+
+    /**
+     * return one record each minute of the day.
+     */
+    private static Iterator<HapiRecord> day( JSONObject info, String startTime ) throws IOException, JSONException {
+        StringBuilder b= new StringBuilder();
+        String day= startTime.substring(0,10);
+        for ( int i=0; i<1440; i++ ) {
+            b.append( String.format( "%sT%02d:%02d:00.000Z,%d\n", day, i/60, i%60, i ) );
+        }
+        return new HapiClientCSVIterator( info, new BufferedReader( new StringReader( b.toString() ) ) );
+    }
+
+    /**
+     * Test that the chunk being consumed is read when the later chunks hold
+     * all the connections and wait for the read-ahead budget.
+     */
+    @Test
+    public void testSlowFirstChunk() throws Exception {
+        System.out.println("slow first chunk");
+        JSONObject info= info();
+        Semaphore permits= new Semaphore(4);
+        String[][] chunks= ParallelFetchIterator.chunkTimeRange( "2020-01-01T00:00Z", "2020-01-10T00:00Z", 1 );
+        assertEquals( 9, chunks.length );
+        ChunkReader reader= ( s, e ) -> {
+            try {
+                if ( s.startsWith("2020-01-01") ) {
+                    Thread.sleep(300); // the other chunks start first.
+                }
+                if ( !permits.tryAcquire( 10, TimeUnit.SECONDS ) ) {
+                    throw new IOException("no connection for "+s);
+                }
+            } catch ( InterruptedException ex ) {
+                throw new IOException(ex);
+            }
+            return new PermitRecords( day( info, s ), permits );
+        };
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> f= executor.submit( () -> {
+                Iterator<HapiRecord> it= new ParallelFetchIterator( info, chunks, reader, 4, 10000 );
+                int n= 0;
+                long last= Long.MIN_VALUE;
+                while ( it.hasNext() ) {
+                    long t= it.next().getNanosecondsSince1970(0);
+                    assertTrue( t>last );
+                    last= t;
+                    n++;
+                }
+                return n;
+            });
+            assertEquals( 9*1440, f.get( 20, TimeUnit.SECONDS ).intValue() );
+            assertEquals( 4, permits.availablePermits() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that an error reading a chunk is thrown to the consumer, rather
+     * than the chunk being taken as complete.
+     */
+    @Test
+    public void testError() throws Exception {
+        System.out.println("error");
+        JSONObject info= info();
+        String[][] chunks= ParallelFetchIterator.chunkTimeRange( "2020-01-01T00:00Z", "2020-01-04T00:00Z", 1 );
+        ChunkReader reader= ( s, e ) -> {
+            Iterator<HapiRecord> records= day( info, s );
+            if ( !s.startsWith("2020-01-02") ) {
+                return records;
+            }
+            return new Iterator<HapiRecord>() {
+                int n= 0;
+                @Override
+                public boolean hasNext() {
+                    if ( n==100 ) throw new StackOverflowError();
+                    return records.hasNext();
+                }
+                @Override
+                public HapiRecord next() {
+                    n++;
+                    return records.next();
+                }
+            };
+        };
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> f= executor.submit( () -> {
+                Iterator<HapiRecord> it= new ParallelFetchIterator( info, chunks, reader, 3, 10000000 );
+                int n= 0;
+                try {
+                    while ( it.hasNext() ) {
+                        it.next();
+                        n++;
+                    }
+                    fail( "expected exception" );
+                } catch ( IllegalArgumentException ex ) {
+                    assertEquals( StackOverflowError.class, ex.getCause().getClass() );
+                }
+                return n;
+            });
+            assertEquals( 1440, f.get( 20, TimeUnit.SECONDS ).intValue() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
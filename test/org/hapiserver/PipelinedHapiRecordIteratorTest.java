@@ -0,0 +1,110 @@
+
+package org.hapiserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PipelinedHapiRecordIterator
+ * @author jbf
+ */
+public class PipelinedHapiRecordIteratorTest {
+
+    public PipelinedHapiRecordIteratorTest() {
+    }
+
+    private static JSONObject info() throws JSONException {
+        return new JSONObject( "{\"HAPI\":\"3.0\",\"parameters\":["
+                + "{\"name\":\"Time\",\"type\":\"isotime\",\"length\":24,\"units\":\"UTC\",\"fill\":null},"
+                + "{\"name\":\"x\",\"type\":\"double\",\"units\":\"nT\",\"fill\":\"-1e31\"}]}" );
+    }
+
+    /**
+     * records which fail with the exception, or the error if it is null, after the first nrec.
+     */
+    private static Iterator<HapiRecord> failing( JSONObject info, int nrec, RuntimeException ex, Error err ) throws IOException, JSONException {
+        StringBuilder b= new StringBuilder();
+        for ( int i=0; i<1440; i++ ) {
+            b.append( String.format( "2020-01-01T%02d:%02d:00.000Z,%d\n", i/60, i%60, i ) );
+        }
+        Iterator<HapiRecord> records= new HapiClientCSVIterator( info, new BufferedReader( new StringReader( b.toString() ) ) );
+        return new Iterator<HapiRecord>() {
+            int n= 0;
+            @Override
+            public boolean hasNext() {
+                if ( n==nrec ) {
+                    if ( ex!=null ) throw ex;
+                    throw err;
+                }
+                return records.hasNext();
+            }
+            @Override
+            public HapiRecord next() {
+                n++;
+                return records.next();
+            }
+        };
+    }
+
+    /**
+     * read the records, returning the number read before the exception.
+     */
+    private static int readUntilException( Iterator<HapiRecord> it, Class<?> exceptionClass, Class<?> causeClass ) throws Exception {
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> f= executor.submit( () -> {
+                int n= 0;
+                try {
+                    while ( it.hasNext() ) {
+                        it.next();
+                        n++;
+                    }
+                    fail( "expected exception" );
+                } catch ( RuntimeException ex ) {
+                    assertEquals( exceptionClass, ex.getClass() );
+                    if ( causeClass!=null ) {
+                        assertEquals( causeClass, ex.getCause().getClass() );
+                    }
+                }
+                return n;
+            });
+            return f.get( 10, TimeUnit.SECONDS );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that an exception from the source is thrown after the records read before it.
+     */
+    @Test
+    public void testException() throws Exception {
+        System.out.println("exception");
+        JSONObject info= info();
+        assertEquals( 1000, readUntilException( new PipelinedHapiRecordIterator( failing( info, 1000, new IllegalStateException("bad"), null ) ),
+                IllegalStateException.class, null ) );
+    }
+
+    /**
+     * Test that an error from the source is passed to the consumer, rather
+     * than leaving the consumer waiting.
+     */
+    @Test
+    public void testError() throws Exception {
+        System.out.println("error");
+        JSONObject info= info();
+        assertEquals( 1000, readUntilException( new PipelinedHapiRecordIterator( failing( info, 1000, null, new StackOverflowError() ) ),
+                IllegalArgumentException.class, StackOverflowError.class ) );
+    }
+
+}
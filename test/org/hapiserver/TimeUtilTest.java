@@ -22,6 +22,10 @@ public class TimeUtilTest {
         String expResult = "2020-04-21T00:00Z";
         String result = TimeUtil.reformatIsoTime( "2020-01-01T00:00Z", "2020-112Z");
         assertEquals(expResult, result);
+        assertEquals( "2020-112T01:02:03.456Z", TimeUtil.reformatIsoTime( "2000-001T00:00:00.000Z", "2020-04-21T01:02:03.456789Z") );
+        assertEquals( "2020-04-22", TimeUtil.reformatIsoTime( "2000-01-01", "2020-04-21T24:00Z") );
+        assertEquals( "1999-365Z", TimeUtil.reformatIsoTime( "2000-001Z", "1999-12-31T23:59:59.999999999Z") );
+        assertEquals( "2020-04-21T00:00:00.000000000Z", TimeUtil.reformatIsoTime( "2000-01-01T00:00:00.000000000Z", "2020-112") );
     }
 
     /**
@@ -172,4 +176,107 @@ public class TimeUtilTest {
         
     }
     
+    /**
+     * Test of toNanosecondsSince1970 method, parsing characters, of class TimeUtil.
+     */
+    @Test
+    public void testToNanosecondsSince1970Chars() {
+        System.out.println("toNanosecondsSince1970(char[],int,int)");
+        String[] times= { "2000-01-02T00:00:00.0Z", "2020-112Z", "2020-112T23:45:06.000000001Z", 
+            "2020-04-21T12:20Z", "2020-04-21T12", "2020-04-21", "2020-12-31T23:59:59.999Z", "1999-364T24:00Z" };
+        for ( String time: times ) {
+            char[] buf= ( "," + time + "\0\0," ).toCharArray();
+            long result= TimeUtil.toNanosecondsSince1970( buf, 1, buf.length-1 );
+            assertEquals( time, TimeUtil.toNanosecondsSince1970(time), result );
+        }
+        char[] buf= "2000-01-02T00:00:00.0Z".toCharArray();
+        assertEquals( 10958 * 86400000000000L, TimeUtil.toNanosecondsSince1970( buf, 0, buf.length ) );
+    }
+    
+    /**
+     * Test of toNanosecondsSince1970 method, of class TimeUtil.
+     */
+    @Test
+    public void testToNanosecondsSince1970() {
+        System.out.println("toNanosecondsSince1970");
+        assertEquals( 10958 * 86400000000000L, TimeUtil.toNanosecondsSince1970("2000-01-02T00:00:00.0Z") );
+        assertEquals( 10958 * 86400000000000L + 1, TimeUtil.toNanosecondsSince1970("2000-002T00:00:00.000000001") );
+        assertEquals( -86400000000000L + 3600000000000L, TimeUtil.toNanosecondsSince1970("1969-12-31T01Z") );
+        assertEquals( TimeUtil.toNanosecondsSince1970("2020-04-21T12:20Z"), TimeUtil.toNanosecondsSince1970("2020-112T12:20:00.000Z") );
+    }
+    
+    /**
+     * Test of toNanosecondsSince1970 method, parsing a CharSequence, of class TimeUtil.
+     */
+    @Test
+    public void testToNanosecondsSince1970CharSequence() {
+        System.out.println("toNanosecondsSince1970(CharSequence,int,int)");
+        StringBuilder b= new StringBuilder("x,2020-04-21T12:20:00.5Z,y");
+        assertEquals( TimeUtil.toNanosecondsSince1970("2020-112T12:20:00.5Z"), 
+                TimeUtil.toNanosecondsSince1970( b, 2, 24 ) );
+    }
+    
+    /**
+     * Test of toNanosecondsSince1970 method, parsing bytes, of class TimeUtil.
+     */
+    @Test
+    public void testToNanosecondsSince1970Bytes() {
+        System.out.println("toNanosecondsSince1970(ByteBuffer,int,int)");
+        java.nio.ByteBuffer bytes= java.nio.ByteBuffer.wrap( "..2020-112T12:20:00.5Z\0\0".getBytes() );
+        assertEquals( TimeUtil.toNanosecondsSince1970("2020-04-21T12:20:00.500Z"), 
+                TimeUtil.toNanosecondsSince1970( bytes, 2, bytes.limit() ) );
+        assertEquals( 0, bytes.position() );
+    }
+
+    /**
+     * Test of toNanosecondsSince1970 method, parsing a byte array, of class TimeUtil.
+     */
+    @Test
+    public void testToNanosecondsSince1970ByteArray() {
+        System.out.println("toNanosecondsSince1970(byte[],int,int)");
+        byte[] bytes= "2020-04-21T12:20:00.500Z,1.5\n".getBytes();
+        assertEquals( TimeUtil.toNanosecondsSince1970("2020-112T12:20:00.5Z"), 
+                TimeUtil.toNanosecondsSince1970( bytes, 0, 24 ) );
+    }
+
+    /**
+     * Test that toNanosecondsSince1970 rejects days which are not in the month or year.
+     */
+    @Test
+    public void testToNanosecondsSince1970InvalidDay() {
+        System.out.println("toNanosecondsSince1970 invalid day");
+        assertEquals( TimeUtil.toNanosecondsSince1970("2020-03-01T00:00Z"), TimeUtil.toNanosecondsSince1970("2020-02-29T24:00Z") );
+        assertEquals( TimeUtil.toNanosecondsSince1970("2020-12-31T00:00Z"), TimeUtil.toNanosecondsSince1970("2020-366T00:00Z") );
+        String[] times= { "2020-02-30T00:00Z", "2021-02-29T00:00Z", "2021-04-31", "2021-400T00:00Z", "2021-366T00:00Z" };
+        for ( String time: times ) {
+            try {
+                TimeUtil.toNanosecondsSince1970(time);
+                fail( "expected exception for " + time );
+            } catch ( IllegalArgumentException ex ) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test of IsoTimeFormat, formatting and comparing times without creating Strings.
+     */
+    @Test
+    public void testIsoTimeFormat() {
+        System.out.println("IsoTimeFormat");
+        IsoTimeFormat format= new IsoTimeFormat("2000-001T00:00:00.000Z");
+        char[] buf= new char[30];
+        long nanos= TimeUtil.toNanosecondsSince1970("1969-12-31T23:59:59.9995Z");
+        assertEquals( 22, format.format( nanos, buf, 2 ) );
+        assertEquals( "1969-365T23:59:59.999Z", new String( buf, 2, 22 ) );
+        assertTrue( format.matches("2020-112T01:02:03.456Z") );
+        assertFalse( format.matches("2020-04-21T01:02:03.45Z") );
+        assertEquals( "2020-112T01:02:03.456Z", format.reformat("2020-112T01:02:03.456Z") );
+        char[] bound= format.formatChars("2020-04-21T01:02Z");
+        java.nio.ByteBuffer bytes= java.nio.ByteBuffer.wrap( "2020-112T01:02:03.456Z\0\0".getBytes() );
+        assertTrue( IsoTimeFormat.compare( bytes, 0, bytes.limit(), bound )>0 );
+        assertEquals( 0, IsoTimeFormat.compare( "x2020-112T01:02:00.000Z", 1, 23, bound ) );
+        assertTrue( IsoTimeFormat.compare( "2020-111T23:59:59.999Z", 0, 22, bound )<0 );
+    }
+    
 }
@@ -0,0 +1,149 @@
+
+package org.hapiserver;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for URLConnectionTransport, using a local HTTP server.
+ * @author jbf
+ */
+public class URLConnectionTransportTest {
+
+    public URLConnectionTransportTest() {
+    }
+
+    /**
+     * start a server which sends 100000 bytes for each request.
+     */
+    private static HttpServer startServer() throws IOException {
+        HttpServer server= HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        byte[] content= new byte[100000];
+        server.createContext( "/hapi", exchange -> {
+            exchange.sendResponseHeaders( 200, content.length );
+            try ( OutputStream out= exchange.getResponseBody() ) {
+                out.write( content );
+            } catch ( IOException ex ) {
+                // the client stopped reading.
+            }
+        });
+        server.setExecutor( Executors.newCachedThreadPool() );
+        server.start();
+        return server;
+    }
+
+    private static URL url( HttpServer server ) throws IOException {
+        return new URL( "http://localhost:" + server.getAddress().getPort() + "/hapi/data" );
+    }
+
+    /**
+     * make the request and read one byte, without closing the response.
+     */
+    private static HapiTransport.Response readOneByte( HapiTransport transport, URL url ) throws IOException {
+        HapiTransport.Response response= transport.get( url, null, 5000, 5000 );
+        InputStream in= response.getInputStream();
+        assertEquals( 0, in.read() );
+        return response;
+    }
+
+    /**
+     * Test that the default transport does not wait for responses which are never closed.
+     */
+    @Test
+    public void testNoLimit() throws Exception {
+        System.out.println("no limit");
+        HttpServer server= startServer();
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            HapiTransport transport= new URLConnectionTransport();
+            URL url= url( server );
+            List<HapiTransport.Response> responses= new ArrayList<>();
+            Future<?> f= executor.submit( () -> {
+                for ( int i=0; i<10; i++ ) {
+                    responses.add( readOneByte( transport, url ) );
+                }
+                return null;
+            });
+            f.get( 10, TimeUnit.SECONDS );
+            for ( HapiTransport.Response r: responses ) {
+                r.close();
+            }
+        } finally {
+            executor.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Test that a request waits for an earlier response to be closed, when
+     * the number of requests is limited.
+     */
+    @Test
+    public void testLimit() throws Exception {
+        System.out.println("limit");
+        HttpServer server= startServer();
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            HapiTransport transport= new URLConnectionTransport(1);
+            URL url= url( server );
+            HapiTransport.Response first= readOneByte( transport, url );
+            Future<HapiTransport.Response> second= executor.submit( () -> readOneByte( transport, url ) );
+            try {
+                second.get( 500, TimeUnit.MILLISECONDS );
+                fail( "second request should wait for the first to be closed" );
+            } catch ( TimeoutException ex ) {
+                // expected
+            }
+            first.close();
+            second.get( 10, TimeUnit.SECONDS ).close();
+        } finally {
+            executor.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Test that a response read to the end releases its connection, without
+     * being closed.
+     */
+    @Test
+    public void testReadToEnd() throws Exception {
+        System.out.println("read to end");
+        HttpServer server= startServer();
+        ExecutorService executor= Executors.newSingleThreadExecutor();
+        try {
+            HapiTransport transport= new URLConnectionTransport(1);
+            URL url= url( server );
+            Future<?> f= executor.submit( () -> {
+                byte[] buf= new byte[8192];
+                for ( int i=0; i<5; i++ ) {
+                    InputStream in= transport.get( url, null, 5000, 5000 ).getInputStream();
+                    long n= 0;
+                    int r;
+                    while ( ( r= in.read(buf) )!=-1 ) n+= r;
+                    assertEquals( 100000, n );
+                }
+                return null;
+            });
+            f.get( 10, TimeUnit.SECONDS );
+        } finally {
+            executor.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+}